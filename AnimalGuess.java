@@ -6,10 +6,21 @@ import java.util.Scanner;
  * Learns from user input and saves knowledge between sessions
  */
 public class AnimalGuess {
-    private DecisionTree gameBase;
     private Scanner scanner;
     private String filename;
 
+    /** Knowledge base in whichever format the file holds, with its journal */
+    private KnowledgeFile knowledge;
+
+    /** Game logic shared with the server and scripted replay */
+    private GameEngine engine;
+
+    /** Log of played rounds for later replay, or null if not enabled */
+    private SessionLog sessionLog;
+
+    /** Sequence-numbered log of learned splits for replicas, or null if not enabled */
+    private DeltaLog deltaLog;
+
     /**
      * Creates game with specified knowledge file
      * @param filename the file to load/save decision tree
@@ -17,42 +28,49 @@ public class AnimalGuess {
     public AnimalGuess(String filename) {
         this.scanner = new Scanner(System.in);
         this.filename = filename;
-        loadGameBase();
+        this.knowledge = new KnowledgeFile(filename);
+        GameMetrics.publish();
+        this.engine = knowledge.getEngine();
+        openDeltaLog();
+        openSessionLog();
     }
 
-    /*
-     * Loads decision tree from file or creates default tree if file doesn't exist
+    /**
+     * Opens the session log named by the animalguess.sessionLog system property, if set
      */
-    private void loadGameBase() {
-        try { //load file
-            System.out.println("Loading decision tree from: " + filename);
-            this.gameBase = DecisionTree.readFile(filename);
-            System.out.println("Tree loaded successfully.");
-            System.out.println();
-        } catch (IOException e) { //file doesn't exist or issue in reading
-            System.out.println("Couldn't load tree from file. Using default tree.");
-            startDefaultGameBase();
-            System.out.println();
+    private void openSessionLog() {
+        String logFile = System.getProperty("animalguess.sessionLog");
+        if (logFile == null) {
+            return;
+        }
+        try {
+            this.sessionLog = new SessionLog(logFile);
+        } catch (IOException e) {
+            System.out.println("Error in opening session log: " + e.getMessage());
         }
     }
 
     /**
-     * Initializes game with a simple default tree
-     */
-    private void startDefaultGameBase() {
-        DecisionTree mouse = new DecisionTree("Mouse");
-        this.gameBase = mouse; //setting root in the tree to be Mouse
-    }
-    
-    /**
-     * Saves current decision tree to file
+     * Opens the delta log in the directory named by the animalguess.deltaLog
+     * system property, if set, so replicas receive every learned split
+     * Deltas are also served to replicas on animalguess.deltaLog.port, if set
      */
-    private void saveGameBase() {
+    private void openDeltaLog() {
+        String directory = System.getProperty("animalguess.deltaLog");
+        if (directory == null) {
+            return;
+        }
         try {
-            gameBase.writeToFile(filename);
-            System.out.println("Game knowledge saved to: " + filename);
+            this.deltaLog = new DeltaLog(directory, LearningJournal.configuredPolicy());
+            engine.addLearningListener(deltaLog);
+            String port = System.getProperty("animalguess.deltaLog.port");
+            if (port != null) {
+                System.out.println("Serving learned splits to replicas on port " + deltaLog.serve(Integer.parseInt(port)));
+            }
         } catch (IOException e) {
-            System.out.println("Error in saving knowledge to file: " + e.getMessage());
+            System.out.println("Error in opening delta log: " + e.getMessage());
+        } catch (NumberFormatException e) {
+            System.out.println("Error in delta log port: " + e.getMessage());
         }
     }
 
@@ -97,52 +115,49 @@ public class AnimalGuess {
         System.out.println("Think of an animal.");
         System.out.println("I'll try to guess it.");
 
-        DecisionTree currentNode = gameBase;
-        DecisionTree parentNode = null;
-        boolean lastAnswerWasYes = false;
+        GameEngine.Game game = engine.newGame();
 
         //traverse through tree asking questions
-        while (currentNode != null && !currentNode.isLeaf()) {
-            String question = currentNode.getData();
-            boolean response = getYesOrNoAnswer(question + " ");
-
-            parentNode = currentNode;
-
-            if (response) {
-                currentNode = currentNode.getLeft(); //move to parent node's left child
-                lastAnswerWasYes = true;
-            } else {
-                currentNode = currentNode.getRight(); //move to parent node's right child
-                lastAnswerWasYes = false;
-            }
+        while (game.getState() == GameEngine.State.QUESTION) {
+            game.answer(getYesOrNoAnswer(game.getPrompt() + " "));
         }
 
         // reached a leaf
-        if (currentNode != null) {
-            String guess = currentNode.getData();
-            boolean isGuessCorrect = getYesOrNoAnswer("Is your animal a " + guess + "? ");
+        if (game.getState() == GameEngine.State.GUESS) {
+            boolean isGuessCorrect = getYesOrNoAnswer("Is your animal a " + game.getPrompt() + "? ");
+            game.answer(isGuessCorrect);
 
             if (isGuessCorrect) {
                 System.out.println("Yay I guessed it!");
+                recordSession(game, null, false);
             } else {
                 System.out.println("Oh no, I guessed wrong.");
-                learnFromWrongGuess(currentNode, parentNode, lastAnswerWasYes);
+                learnFromWrongGuess(game);
             }
         }
     }
 
     /**
      * Learns from wrong guess by adding new question to tree
-     * @param wrongNode node containing wrong guess
-     * @param parentNode parent of wrong node
-     * @param cameFromYesBranch whether wrongNode was left child
+     * The engine's listener also appends the split to the journal so it survives a crash,
+     * and the journal is compacted once it passes the size threshold
+     * Formats read as play reaches them have no animal index, so for them an
+     * animal that already has a leaf elsewhere isn't detected
+     * @param game round whose guess was wrong
      */
-    private void learnFromWrongGuess(DecisionTree wrongNode, DecisionTree parentNode, boolean cameFromYesBranch) {
+    private void learnFromWrongGuess(GameEngine.Game game) {
         System.out.println("Please help me to learn.");
         System.out.println("What was your animal?");
 
         String userAnimal = readUserInput();
-        String wrongGuess = wrongNode.getData();
+        String wrongGuess = game.getPrompt();
+
+        AnimalIndex animalIndex = engine.getAnimalIndex();
+        TreePath knownPath = (animalIndex == null) ? null : animalIndex.pathOf(userAnimal);
+        if (knownPath != null) { //don't add a second leaf for the same animal
+            System.out.println("I already know about the " + userAnimal + "! One of your answers must have led me away from it.");
+            return;
+        }
 
         System.out.println("Type a yes or no question that would distinguish between a " + userAnimal + " and a " + wrongGuess + ": ");
 
@@ -150,30 +165,33 @@ public class AnimalGuess {
 
         boolean answerNewQuestion = getYesOrNoAnswer("Would you answer yes to this question for the " + userAnimal + "?");
 
-        DecisionTree correctAnimalNode = new DecisionTree(userAnimal);
-        DecisionTree oldAnimalNode = new DecisionTree(wrongGuess);
-        DecisionTree newQuestionNode;
-
-        if (answerNewQuestion) {
-            newQuestionNode = new DecisionTree(newQuestion, correctAnimalNode, oldAnimalNode);
-        } else {
-            newQuestionNode = new DecisionTree(newQuestion, oldAnimalNode, correctAnimalNode);
-        }
-
-        if (parentNode == null) {
-            gameBase = newQuestionNode; //newQuestionNode is now new root
-        } else {
-            if (cameFromYesBranch) {
-                parentNode.setLeft(newQuestionNode);
-            } else {
-                parentNode.setRight(newQuestionNode);
-            }
+        try {
+            game.learn(userAnimal, newQuestion, answerNewQuestion);
+            knowledge.compactJournal(); //keeps replay after a crash short in long sessions
+        } catch (IOException e) {
+            System.out.println("Error in recording learned animal: " + e.getMessage());
         }
+        recordSession(game, newQuestion, answerNewQuestion);
 
         System.out.println("Thank you! I will remember this information next time.");
 
     }
 
+    /**
+     * Appends a finished round to the session log, if one is enabled
+     */
+    private void recordSession(GameEngine.Game game, String question, boolean animalIsYes) {
+        if (sessionLog == null) {
+            return;
+        }
+        try {
+            sessionLog.record(game, question, animalIsYes);
+            sessionLog.flush();
+        } catch (IOException e) {
+            System.out.println("Error in writing to session log: " + e.getMessage());
+        }
+    }
+
     /**
      * Main method to run animal guessing game
      * @param args command line arguments (optional filename)
@@ -191,8 +209,19 @@ public class AnimalGuess {
         }
 
         System.out.println("Thank you for playing!");
-        game.saveGameBase();
+        game.knowledge.save(true);
         game.scanner.close();
+        try {
+            game.knowledge.close();
+            if (game.deltaLog != null) {
+                game.deltaLog.close();
+            }
+            if (game.sessionLog != null) {
+                game.sessionLog.close();
+            }
+        } catch (IOException e) {
+            System.out.println("Error in closing learning journal: " + e.getMessage());
+        }
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,244 @@
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Hash index from animal name to the leaves holding it
+ * Names are normalized (trimmed, lower case, single spaces) so "Dog" and
+ * " dog" count as the same animal. The index is built while a tree is read
+ * and updated on every split, so lookups and duplicate reports never walk
+ * the tree; names found on more than one leaf are tracked as they appear
+ */
+public class AnimalIndex {
+
+    /** One leaf holding an animal, chained to other leaves with the same name */
+    private static class Entry {
+        DecisionTree node;
+        TreePath path;
+        Entry next;
+
+        Entry(DecisionTree node, TreePath path, Entry next) {
+            this.node = node;
+            this.path = path;
+            this.next = next;
+        }
+    }
+
+    /** Leaves by normalized name */
+    private final Map<String, Entry> entries = new HashMap<>();
+
+    /** Normalized names held by more than one leaf, in the order they became duplicates */
+    private final Set<String> duplicateNames = new LinkedHashSet<>();
+
+    /** Number of indexed leaves */
+    private int size;
+
+    /**
+     * Normalizes an animal name for comparison
+     * @param animal name as typed or stored
+     * @return trimmed lower-case name with single spaces
+     */
+    public static String normalize(String animal) {
+        return animal.trim().replaceAll("\\s+", " ").toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Builds an index for an existing tree in one traversal
+     * @param tree root of tree
+     * @return index of every leaf
+     */
+    public static AnimalIndex build(DecisionTree tree) {
+        AnimalIndex index = new AnimalIndex();
+        ArrayDeque<DecisionTree> nodes = new ArrayDeque<>();
+        ArrayDeque<TreePath> paths = new ArrayDeque<>();
+        nodes.push(tree);
+        paths.push(TreePath.ROOT);
+        while (!nodes.isEmpty()) {
+            DecisionTree node = nodes.pop();
+            TreePath path = paths.pop();
+            if (node.isLeaf()) {
+                index.add(node, path);
+            }
+            if (node.getRight() != null) {
+                nodes.push(node.getRight());
+                paths.push(path.child(false));
+            }
+            if (node.getLeft() != null) {
+                nodes.push(node.getLeft());
+                paths.push(path.child(true));
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Adds a leaf to the index
+     * @param leaf leaf node holding an animal
+     * @param path path from the root to the leaf
+     */
+    public synchronized void add(DecisionTree leaf, TreePath path) {
+        String name = normalize(leaf.getData());
+        Entry first = entries.get(name);
+        if (first != null) {
+            duplicateNames.add(name);
+        }
+        entries.put(name, new Entry(leaf, path, first));
+        size++;
+    }
+
+    /**
+     * Updates the index after the leaf at a path became a question
+     * The animal that was at the path moves to one side of the question,
+     * and any new animal on the other side is added
+     * @param path path of the node that was split
+     * @param question node now at that path, with two leaf children
+     */
+    public synchronized void splitAt(TreePath path, DecisionTree question) {
+        splitAt(path, question.getLeft(), question.getRight());
+    }
+
+    /**
+     * Updates the index after the leaf at a path became a question, given the
+     * question's children as they were when it was added, since they may have
+     * been split again by the time the index hears of it
+     * @param path path of the node that was split
+     * @param yes question's yes child
+     * @param no question's no child
+     */
+    synchronized void splitAt(TreePath path, DecisionTree yes, DecisionTree no) {
+        update(yes, path, path.child(true));
+        update(no, path, path.child(false));
+    }
+
+    /**
+     * Points the entry for a leaf's animal at oldPath to the leaf, or adds it if there is none
+     */
+    private void update(DecisionTree leaf, TreePath oldPath, TreePath newPath) {
+        if (leaf == null || !leaf.isLeaf()) {
+            return;
+        }
+        for (Entry entry = entries.get(normalize(leaf.getData())); entry != null; entry = entry.next) {
+            if (entry.path.equals(oldPath)) {
+                entry.node = leaf;
+                entry.path = newPath;
+                return;
+            }
+        }
+        add(leaf, newPath);
+    }
+
+    /**
+     * Removes a node that was indexed as a leaf before it turned out to have children
+     * @param leaf node that was added
+     */
+    synchronized void remove(DecisionTree leaf) {
+        String name = normalize(leaf.getData());
+        Entry previous = null;
+        for (Entry entry = entries.get(name); entry != null; previous = entry, entry = entry.next) {
+            if (entry.node != leaf) {
+                continue;
+            }
+            if (previous != null) {
+                previous.next = entry.next;
+            } else if (entry.next != null) {
+                entries.put(name, entry.next);
+            } else {
+                entries.remove(name);
+            }
+            size--;
+            Entry first = entries.get(name);
+            if (first == null || first.next == null) {
+                duplicateNames.remove(name);
+            }
+            return;
+        }
+    }
+
+    /**
+     * Finds a leaf holding an animal
+     * @param animal name to look up, in any case or spacing
+     * @return most recently added leaf with that animal, or null if unknown
+     */
+    public synchronized DecisionTree lookup(String animal) {
+        Entry entry = entries.get(normalize(animal));
+        return (entry == null) ? null : entry.node;
+    }
+
+    /**
+     * Finds where an animal lives in the tree
+     * @param animal name to look up, in any case or spacing
+     * @return path of most recently added leaf with that animal, or null if unknown
+     */
+    public synchronized TreePath pathOf(String animal) {
+        Entry entry = entries.get(normalize(animal));
+        return (entry == null) ? null : entry.path;
+    }
+
+    /**
+     * Finds every place an animal lives in the tree
+     * @param animal name to look up, in any case or spacing
+     * @return paths of all leaves with that animal, newest first
+     */
+    public synchronized List<TreePath> pathsOf(String animal) {
+        List<TreePath> paths = new ArrayList<>();
+        for (Entry entry = entries.get(normalize(animal)); entry != null; entry = entry.next) {
+            paths.add(entry.path);
+        }
+        return paths;
+    }
+
+    /**
+     * Reports animals found on more than one leaf
+     * @return normalized name to paths of its leaves, newest first
+     */
+    public synchronized Map<String, List<TreePath>> duplicates() {
+        Map<String, List<TreePath>> report = new LinkedHashMap<>();
+        for (String name : duplicateNames) {
+            report.put(name, pathsOf(name));
+        }
+        return report;
+    }
+
+    /**
+     * Gets the number of indexed leaves
+     * @return leaf count
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Lists animals that appear on more than one leaf of a knowledge base
+     * Usage: java AnimalIndex filename
+     * @param args command line arguments
+     */
+    public static void main(String[] args) {
+        if (args.length != 1) {
+            System.out.println("Usage: java AnimalIndex filename");
+            return;
+        }
+
+        try {
+            AnimalIndex index;
+            if (BinaryKnowledgeBase.isBinaryFile(args[0])) {
+                index = build(BinaryKnowledgeBase.read(args[0]));
+            } else {
+                index = new AnimalIndex();
+                DecisionTree.readFile(args[0], index);
+            }
+            System.out.println(index.size() + " animals indexed.");
+            for (Map.Entry<String, List<TreePath>> duplicate : index.duplicates().entrySet()) {
+                System.out.println("Duplicate animal " + duplicate.getKey() + " at paths " + duplicate.getValue());
+            }
+        } catch (IOException e) {
+            System.out.println("Error in indexing knowledge base: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,336 @@
+import java.util.Arrays;
+
+/**
+ * Compact decision tree stored in parallel primitive arrays
+ * Each node is an int index; child links are indices into the same arrays
+ * and node text is an id in the tree's own SymbolTable
+ * Avoids one object per node for very large knowledge bases
+ */
+public class ArrayDecisionTree {
+    /** Index used for a missing child */
+    public static final int NONE = -1;
+
+    /** Left (yes) child index of each node */
+    private int[] left;
+
+    /** Right (no) child index of each node */
+    private int[] right;
+
+    /** Symbol id of each node's data */
+    private int[] dataId;
+
+    /** Table holding the text of every node */
+    private final SymbolTable symbols = new SymbolTable();
+
+    /** Number of nodes in use */
+    private int size;
+
+    /**
+     * Creates an empty tree with room for the given number of nodes
+     * @param capacity initial node capacity
+     */
+    public ArrayDecisionTree(int capacity) {
+        capacity = Math.max(capacity, 1);
+        left = new int[capacity];
+        right = new int[capacity];
+        dataId = new int[capacity];
+    }
+
+    /**
+     * Adds a new node with no children
+     * The first node added is the root
+     * @param data question or animal name for the node
+     * @return index of the new node
+     */
+    public int addNode(String data) {
+        if (size == left.length) {
+            int newCapacity = left.length * 2;
+            left = Arrays.copyOf(left, newCapacity);
+            right = Arrays.copyOf(right, newCapacity);
+            dataId = Arrays.copyOf(dataId, newCapacity);
+        }
+        left[size] = NONE;
+        right[size] = NONE;
+        dataId[size] = symbols.intern(data);
+        return size++;
+    }
+
+    /**
+     * Links a node as the left child of another
+     * @param parent index of parent node
+     * @param child index of child node, or NONE
+     */
+    public void setLeft(int parent, int child) {
+        checkNode(parent);
+        left[parent] = child;
+    }
+
+    /**
+     * Links a node as the right child of another
+     * @param parent index of parent node
+     * @param child index of child node, or NONE
+     */
+    public void setRight(int parent, int child) {
+        checkNode(parent);
+        right[parent] = child;
+    }
+
+    /**
+     * Checks that an index refers to an existing node
+     * @param node index to check
+     * @throws IndexOutOfBoundsException if there is no such node
+     */
+    private void checkNode(int node) {
+        if (node < 0 || node >= size) {
+            throw new IndexOutOfBoundsException("No node at index " + node);
+        }
+    }
+
+    /**
+     * Gets index of the root node
+     * @return root index, or NONE if tree is empty
+     */
+    public int root() {
+        return (size == 0) ? NONE : 0;
+    }
+
+    /**
+     * Gets data stored at a node
+     * @param node index of node
+     * @return question or animal name
+     */
+    public String getData(int node) {
+        checkNode(node);
+        return symbols.text(dataId[node]);
+    }
+
+    /**
+     * Gets left child of a node
+     * @param node index of node
+     * @return index of left child, or NONE
+     */
+    public int getLeft(int node) {
+        checkNode(node);
+        return left[node];
+    }
+
+    /**
+     * Gets right child of a node
+     * @param node index of node
+     * @return index of right child, or NONE
+     */
+    public int getRight(int node) {
+        checkNode(node);
+        return right[node];
+    }
+
+    /**
+     * Determines whether a node is a leaf
+     * @param node index of node
+     * @return true if node has no children
+     */
+    public boolean isLeaf(int node) {
+        checkNode(node);
+        return (left[node] == NONE) && (right[node] == NONE);
+    }
+
+    /**
+     * Navigates from the root following a path of Y/N directions
+     * @param path string of 'Y' (yes/left) and 'N' (no/right) characters
+     * @return index of node at end of path
+     * @throws IllegalArgumentException for invalid paths
+     */
+    public int followPath(String path) {
+        int current = root();
+        if (current == NONE) {
+            throw new IllegalArgumentException("Path leads to a null node.");
+        }
+
+        for (int i = 0; i < path.length(); i++) {
+            char direction = path.charAt(i);
+
+            if (direction == 'Y') {
+                current = left[current];
+            } else if (direction == 'N') {
+                current = right[current];
+            } else {
+                throw new IllegalArgumentException("Path must only include 'Y' or 'N' characters.");
+            }
+
+            if (current == NONE) {
+                throw new IllegalArgumentException("Path leads to a null node.");
+            }
+        }
+
+        return current;
+    }
+
+    /**
+     * Navigates from the root following a packed Y/N path
+     * @param path path from the root
+     * @return index of node at end of path
+     * @throws IllegalArgumentException if the path leads to a null node
+     */
+    public int followPath(TreePath path) {
+        int current = root();
+        for (int i = 0; current != NONE && i < path.length(); i++) {
+            current = path.isYes(i) ? left[current] : right[current];
+        }
+        if (current == NONE) {
+            throw new IllegalArgumentException("Path leads to a null node.");
+        }
+        return current;
+    }
+
+    /**
+     * Counts the number of nodes in the whole tree
+     * @return node count
+     */
+    public int count() {
+        return size;
+    }
+
+    /**
+     * Counts the number of nodes below and including a node
+     * @param node index of subtree root
+     * @return node count of subtree
+     */
+    public int count(int node) {
+        checkNode(node);
+        int[] stack = new int[16];
+        int top = 0;
+        int count = 0;
+        stack[top++] = node;
+
+        while (top > 0) {
+            int current = stack[--top];
+            count++;
+            if (top + 2 > stack.length) {
+                stack = Arrays.copyOf(stack, stack.length * 2);
+            }
+            if (left[current] != NONE) stack[top++] = left[current];
+            if (right[current] != NONE) stack[top++] = right[current];
+        }
+        return count;
+    }
+
+    /**
+     * Computes the height of the whole tree
+     * @return height, where a single node has height 1
+     */
+    public int height() {
+        return (size == 0) ? 0 : height(root());
+    }
+
+    /**
+     * Computes the height of the subtree below a node
+     * @param node index of subtree root
+     * @return height, where a single node has height 1
+     */
+    public int height(int node) {
+        checkNode(node);
+        int[] stack = new int[16];
+        int[] depth = new int[16];
+        int top = 0;
+        int height = 0;
+        stack[top] = node;
+        depth[top++] = 1;
+
+        while (top > 0) {
+            top--;
+            int current = stack[top];
+            int currentDepth = depth[top];
+            height = Math.max(height, currentDepth);
+            if (top + 2 > stack.length) {
+                stack = Arrays.copyOf(stack, stack.length * 2);
+                depth = Arrays.copyOf(depth, depth.length * 2);
+            }
+            if (left[current] != NONE) {
+                stack[top] = left[current];
+                depth[top++] = currentDepth + 1;
+            }
+            if (right[current] != NONE) {
+                stack[top] = right[current];
+                depth[top++] = currentDepth + 1;
+            }
+        }
+        return height;
+    }
+
+    /**
+     * Converts a linked decision tree into array form
+     * Nodes are numbered in preorder, so the root is index 0
+     * @param tree root of tree to convert
+     * @return compact copy of the tree
+     */
+    public static ArrayDecisionTree fromTree(DecisionTree tree) {
+        ArrayDecisionTree result = new ArrayDecisionTree(16);
+        if (tree == null) {
+            return result;
+        }
+
+        //stack of source nodes paired with the index of their parent and side
+        DecisionTree[] nodes = new DecisionTree[16];
+        int[] parents = new int[16];
+        boolean[] isLeft = new boolean[16];
+        int top = 0;
+        nodes[top] = tree;
+        parents[top++] = NONE;
+
+        while (top > 0) {
+            top--;
+            DecisionTree current = nodes[top];
+            int parent = parents[top];
+            boolean leftSide = isLeft[top];
+            nodes[top] = null;
+
+            int index = result.addNode(current.getData());
+            if (parent != NONE) {
+                if (leftSide) {
+                    result.left[parent] = index;
+                } else {
+                    result.right[parent] = index;
+                }
+            }
+
+            if (top + 2 > nodes.length) {
+                nodes = Arrays.copyOf(nodes, nodes.length * 2);
+                parents = Arrays.copyOf(parents, parents.length * 2);
+                isLeft = Arrays.copyOf(isLeft, isLeft.length * 2);
+            }
+
+            //push right first so left is numbered first
+            if (current.getRight() != null) {
+                nodes[top] = current.getRight();
+                parents[top] = index;
+                isLeft[top++] = false;
+            }
+            if (current.getLeft() != null) {
+                nodes[top] = current.getLeft();
+                parents[top] = index;
+                isLeft[top++] = true;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Converts this tree back into linked DecisionTree nodes
+     * @return root of linked tree, or null if this tree is empty
+     */
+    public DecisionTree toTree() {
+        if (size == 0) {
+            return null;
+        }
+
+        DecisionTree[] linked = new DecisionTree[size];
+        for (int i = 0; i < size; i++) {
+            linked[i] = new DecisionTree(symbols.text(dataId[i]));
+        }
+        for (int i = 0; i < size; i++) {
+            if (left[i] != NONE) linked[i].setLeft(linked[left[i]]);
+            if (right[i] != NONE) linked[i].setRight(linked[right[i]]);
+        }
+        return linked[root()];
+    }
+}
@@ -0,0 +1,524 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Compact binary file format for decision trees
+ * Layout: magic, version, node count, deduplicated string table,
+ * preorder structure bitstream (two bits per node), per-node string ids,
+ * and a CRC32 checksum of everything before it
+ * Counts, lengths and ids are written as unsigned varints
+ * Version 2 stores a DecisionDag: the string table is followed by each
+ * distinct node in postorder as a string id and left and right references
+ * (0 for none, otherwise 1 + the index of an earlier node); the last node
+ * is the root
+ */
+public class BinaryKnowledgeBase {
+    /** Bytes at the start of every binary knowledge base file */
+    private static final byte[] MAGIC = {'A', 'G', 'K', 'B'};
+
+    /** Current format version */
+    public static final int VERSION = 1;
+
+    /** Format version of files holding a DAG of shared subtrees */
+    public static final int DAG_VERSION = 2;
+
+    /** Size of the stream buffers used for reading and writing */
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /** Structure bit marking a node with a left child */
+    private static final int HAS_LEFT = 1;
+
+    /** Structure bit marking a node with a right child */
+    private static final int HAS_RIGHT = 2;
+
+    /**
+     * Determines whether a file starts with the binary format's magic bytes
+     * @param filename file to check
+     * @return true if file is in binary format
+     * @throws IOException if file can't be read
+     */
+    public static boolean isBinaryFile(String filename) throws IOException {
+        try (InputStream in = new FileInputStream(filename)) {
+            byte[] header = new byte[MAGIC.length];
+            int read = in.readNBytes(header, 0, header.length);
+            return read == MAGIC.length && Arrays.equals(header, MAGIC);
+        }
+    }
+
+    /**
+     * Determines whether a binary file holds a DAG of shared subtrees
+     * @param filename file to check
+     * @return true if file is in binary format version 2
+     * @throws IOException if file can't be read
+     */
+    public static boolean isDagFile(String filename) throws IOException {
+        try (InputStream in = new FileInputStream(filename)) {
+            byte[] header = new byte[MAGIC.length + 1];
+            int read = in.readNBytes(header, 0, header.length);
+            return read == header.length && Arrays.equals(Arrays.copyOf(header, MAGIC.length), MAGIC)
+                && header[MAGIC.length] == DAG_VERSION;
+        }
+    }
+
+    /**
+     * Writes a decision tree to a file in binary format
+     * The file is replaced atomically once fully written
+     * @param tree root of tree to write
+     * @param filename file to write to
+     * @return counts and timing for the write
+     * @throws IOException if file writing fails
+     */
+    public static TreeFileWriter.WriteStats write(DecisionTree tree, String filename) throws IOException {
+        long start = System.nanoTime();
+
+        //first pass: number strings and record structure in preorder
+        SymbolTable strings = new SymbolTable(); //ids local to this file
+        int[] nodeIds = new int[16];
+        byte[] structure = new byte[4];
+        int nodeCount = 0;
+
+        ArrayDeque<DecisionTree> stack = new ArrayDeque<>();
+        stack.push(tree);
+        while (!stack.isEmpty()) {
+            DecisionTree current = stack.pop();
+
+            int id = strings.intern(current.getData());
+
+            if (nodeCount == nodeIds.length) {
+                nodeIds = Arrays.copyOf(nodeIds, nodeIds.length * 2);
+            }
+            if (nodeCount / 4 == structure.length) {
+                structure = Arrays.copyOf(structure, structure.length * 2);
+            }
+            int flags = (current.getLeft() != null ? HAS_LEFT : 0) | (current.getRight() != null ? HAS_RIGHT : 0);
+            structure[nodeCount / 4] |= (byte)(flags << ((nodeCount % 4) * 2));
+            nodeIds[nodeCount++] = id;
+
+            //push right first so left is visited first
+            if (current.getRight() != null) stack.push(current.getRight());
+            if (current.getLeft() != null) stack.push(current.getLeft());
+        }
+
+        //second pass: write sections to a temporary file
+        Path target = Paths.get(filename);
+        Path temp = TreeFileWriter.temporaryFileFor(target);
+        FileOutputStream file = new FileOutputStream(temp.toFile());
+        try (CheckedOutputStream checked = new CheckedOutputStream(
+                new BufferedOutputStream(file, BUFFER_SIZE), new CRC32())) {
+            DataOutputStream out = new DataOutputStream(checked);
+            out.write(MAGIC);
+            out.writeByte(VERSION);
+            writeVarint(out, nodeCount);
+
+            writeVarint(out, strings.size());
+            for (int i = 0; i < strings.size(); i++) {
+                byte[] bytes = strings.utf8(i);
+                writeVarint(out, bytes.length);
+                out.write(bytes);
+            }
+
+            out.write(structure, 0, (nodeCount + 3) / 4);
+            for (int i = 0; i < nodeCount; i++) {
+                writeVarint(out, nodeIds[i]);
+            }
+
+            out.flush();
+            out.writeInt((int)checked.getChecksum().getValue());
+            out.flush();
+            file.getChannel().force(true);
+        } catch (IOException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+
+        long bytes = Files.size(temp);
+        TreeFileWriter.moveIntoPlace(temp, target);
+        TreeFileWriter.WriteStats stats = new TreeFileWriter.WriteStats(nodeCount, bytes, System.nanoTime() - start);
+        GameMetrics.shared().saved(stats);
+        return stats;
+    }
+
+    /**
+     * Writes a DAG to a file in binary format version 2, storing each shared node once
+     * The file is replaced atomically once fully written
+     * @param dag DAG to write
+     * @param filename file to write to
+     * @return counts and timing for the write, counting distinct nodes
+     * @throws IOException if file writing fails
+     */
+    public static TreeFileWriter.WriteStats writeDag(DecisionDag dag, String filename) throws IOException {
+        long start = System.nanoTime();
+
+        //first pass: number distinct nodes in postorder so children come before parents
+        SymbolTable strings = new SymbolTable(); //ids local to this file
+        Map<DecisionTree, Integer> ids = new IdentityHashMap<>();
+        int[] nodeIds = new int[16];
+        int[] lefts = new int[16];
+        int[] rights = new int[16];
+        int nodeCount = 0;
+
+        ArrayDeque<DecisionTree> stack = new ArrayDeque<>();
+        if (dag.getRoot() != null) {
+            stack.push(dag.getRoot());
+        }
+        while (!stack.isEmpty()) {
+            DecisionTree current = stack.peek();
+            if (ids.containsKey(current)) {
+                stack.pop();
+                continue;
+            }
+            DecisionTree left = current.getLeft();
+            DecisionTree right = current.getRight();
+            boolean ready = true;
+            if (right != null && !ids.containsKey(right)) {
+                stack.push(right);
+                ready = false;
+            }
+            if (left != null && !ids.containsKey(left)) {
+                stack.push(left);
+                ready = false;
+            }
+            if (!ready) {
+                continue;
+            }
+            stack.pop();
+
+            if (nodeCount == nodeIds.length) {
+                nodeIds = Arrays.copyOf(nodeIds, nodeCount * 2);
+                lefts = Arrays.copyOf(lefts, nodeCount * 2);
+                rights = Arrays.copyOf(rights, nodeCount * 2);
+            }
+            nodeIds[nodeCount] = strings.intern(current.getData());
+            lefts[nodeCount] = (left == null) ? 0 : ids.get(left) + 1;
+            rights[nodeCount] = (right == null) ? 0 : ids.get(right) + 1;
+            ids.put(current, nodeCount++);
+        }
+
+        //second pass: write sections to a temporary file
+        Path target = Paths.get(filename);
+        Path temp = TreeFileWriter.temporaryFileFor(target);
+        FileOutputStream file = new FileOutputStream(temp.toFile());
+        try (CheckedOutputStream checked = new CheckedOutputStream(
+                new BufferedOutputStream(file, BUFFER_SIZE), new CRC32())) {
+            DataOutputStream out = new DataOutputStream(checked);
+            out.write(MAGIC);
+            out.writeByte(DAG_VERSION);
+            writeVarint(out, nodeCount);
+
+            writeVarint(out, strings.size());
+            for (int i = 0; i < strings.size(); i++) {
+                byte[] bytes = strings.utf8(i);
+                writeVarint(out, bytes.length);
+                out.write(bytes);
+            }
+
+            for (int i = 0; i < nodeCount; i++) {
+                writeVarint(out, nodeIds[i]);
+                writeVarint(out, lefts[i]);
+                writeVarint(out, rights[i]);
+            }
+
+            out.flush();
+            out.writeInt((int)checked.getChecksum().getValue());
+            out.flush();
+            file.getChannel().force(true);
+        } catch (IOException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+
+        long bytes = Files.size(temp);
+        TreeFileWriter.moveIntoPlace(temp, target);
+        TreeFileWriter.WriteStats stats = new TreeFileWriter.WriteStats(nodeCount, bytes, System.nanoTime() - start);
+        GameMetrics.shared().saved(stats);
+        return stats;
+    }
+
+    /**
+     * Reads a decision tree from a binary format file
+     * A version 2 file is expanded into an ordinary tree, since callers may
+     * change its nodes in place; use readDag to keep subtrees shared
+     * @param filename file to read from
+     * @return root node of reconstructed tree
+     * @throws IOException if file reading fails, format is invalid or checksum doesn't match
+     */
+    public static DecisionTree read(String filename) throws IOException {
+        DecisionTree root = readNodes(filename);
+        return (root != null && isDagFile(filename)) ? ParallelTreeOps.deepCopy(root) : root;
+    }
+
+    /**
+     * Reads a binary file of either version as a DAG of shared subtrees
+     * @param filename file to read from
+     * @return DAG holding the file's tree
+     * @throws IOException if file reading fails, format is invalid or checksum doesn't match
+     */
+    public static DecisionDag readDag(String filename) throws IOException {
+        return new DecisionDag(readNodes(filename));
+    }
+
+    /**
+     * Reads the nodes of a binary file, sharing nodes exactly as a version 2 file does
+     */
+    private static DecisionTree readNodes(String filename) throws IOException {
+        long start = System.nanoTime();
+        try (InputStream raw = new BufferedInputStream(new FileInputStream(filename), BUFFER_SIZE)) {
+            CountingInputStream counted = new CountingInputStream(raw, new File(filename).length());
+            CheckedInputStream checked = new CheckedInputStream(counted, new CRC32());
+            DataInputStream in = new DataInputStream(checked);
+
+            byte[] header = new byte[MAGIC.length];
+            in.readFully(header);
+            if (!Arrays.equals(header, MAGIC)) {
+                throw new IOException("Not a binary knowledge base: " + filename);
+            }
+            int version = in.readUnsignedByte();
+            if (version != VERSION && version != DAG_VERSION) {
+                throw new IOException("Unsupported binary knowledge base version: " + version);
+            }
+            //every node and string takes at least a byte, so no count can exceed what is left
+            int nodeCount = readLength(in, counted, "Node count");
+
+            int stringCount = readLength(in, counted, "String count");
+            String[] strings = new String[stringCount];
+            for (int i = 0; i < stringCount; i++) {
+                byte[] bytes = new byte[readLength(in, counted, "String length")];
+                in.readFully(bytes);
+                strings[i] = TextPool.shared().canonical(new String(bytes, StandardCharsets.UTF_8));
+            }
+
+            if (version == DAG_VERSION) {
+                DecisionTree root = readDagNodes(in, nodeCount, strings);
+                checkChecksum(checked, raw, filename);
+                GameMetrics.shared().loaded(new TreeFileWriter.WriteStats(nodeCount, new File(filename).length(),
+                    System.nanoTime() - start));
+                return root;
+            }
+
+            byte[] structure = new byte[(nodeCount + 3) / 4];
+            in.readFully(structure);
+
+            //rebuild in preorder with a stack of nodes still waiting for children
+            DecisionTree root = null;
+            ArrayDeque<DecisionTree> stack = new ArrayDeque<>();
+            int[] pending = new int[16];
+
+            for (int i = 0; i < nodeCount; i++) {
+                int id = readVarint(in);
+                if (id >= stringCount) {
+                    throw new IOException("String id out of range: " + id);
+                }
+                DecisionTree node = new DecisionTree(strings[id]);
+                int flags = (structure[i / 4] >> ((i % 4) * 2)) & (HAS_LEFT | HAS_RIGHT);
+
+                if (root == null) {
+                    root = node;
+                } else if (stack.isEmpty()) {
+                    throw new IOException("Structure has more nodes than links");
+                } else {
+                    int top = stack.size() - 1;
+                    if ((pending[top] & HAS_LEFT) != 0) {
+                        stack.peek().setLeft(node);
+                        pending[top] &= ~HAS_LEFT;
+                    } else {
+                        stack.peek().setRight(node);
+                        pending[top] &= ~HAS_RIGHT;
+                    }
+                    if (pending[top] == 0) {
+                        stack.pop();
+                    }
+                }
+
+                if (flags != 0) {
+                    if (stack.size() == pending.length) {
+                        pending = Arrays.copyOf(pending, pending.length * 2);
+                    }
+                    pending[stack.size()] = flags;
+                    stack.push(node);
+                }
+            }
+            if (!stack.isEmpty()) {
+                throw new IOException("Structure is missing child nodes");
+            }
+
+            checkChecksum(checked, raw, filename);
+            GameMetrics.shared().loaded(new TreeFileWriter.WriteStats(nodeCount, new File(filename).length(),
+                System.nanoTime() - start));
+            return root;
+        }
+    }
+
+    /**
+     * Reads the node section of a version 2 file
+     * @return last node, which is the root, or null if there are no nodes
+     */
+    private static DecisionTree readDagNodes(DataInput in, int nodeCount, String[] strings) throws IOException {
+        DecisionTree[] nodes = new DecisionTree[nodeCount];
+        for (int i = 0; i < nodeCount; i++) {
+            int id = readVarint(in);
+            if (id >= strings.length) {
+                throw new IOException("String id out of range: " + id);
+            }
+            int left = readVarint(in);
+            int right = readVarint(in);
+            if (left > i || right > i) {
+                throw new IOException("Node refers to a later node: " + i);
+            }
+            nodes[i] = new DecisionTree(strings[id], (left == 0) ? null : nodes[left - 1],
+                (right == 0) ? null : nodes[right - 1]);
+        }
+        return (nodeCount == 0) ? null : nodes[nodeCount - 1];
+    }
+
+    /**
+     * Stream that counts the bytes read through it, so sizes read from a
+     * file can be checked against what is left of it before allocating
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        private final long length;
+        private long count;
+
+        CountingInputStream(InputStream in, long length) {
+            super(in);
+            this.length = length;
+        }
+
+        /** Gets the bytes left before the trailing checksum */
+        long remaining() {
+            return length - count - Integer.BYTES;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int read = super.read(buffer, offset, length);
+            if (read > 0) {
+                count += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
+        }
+    }
+
+    /**
+     * Reads a count or length and checks it fits in the rest of the file
+     * @param what name of the value for the error message
+     * @return value read
+     * @throws IOException if reading fails or the value is larger than the bytes left
+     */
+    private static int readLength(DataInput in, CountingInputStream counted, String what) throws IOException {
+        int value = readVarint(in);
+        if (value > counted.remaining()) {
+            throw new IOException(what + " is larger than the rest of the file: " + value);
+        }
+        return value;
+    }
+
+    /**
+     * Compares the checksum stored after the data with the one computed while reading it
+     * @throws IOException if they differ
+     */
+    private static void checkChecksum(CheckedInputStream checked, InputStream raw, String filename) throws IOException {
+        int expected = (int)checked.getChecksum().getValue();
+        int actual = new DataInputStream(raw).readInt();
+        if (expected != actual) {
+            throw new IOException("Checksum mismatch in binary knowledge base: " + filename);
+        }
+    }
+
+    /**
+     * Writes an unsigned varint, seven bits per byte
+     * @param out stream to write to
+     * @param value non-negative value to write
+     * @throws IOException if writing fails
+     */
+    private static void writeVarint(DataOutput out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    /**
+     * Reads an unsigned varint written by writeVarint
+     * @param in stream to read from
+     * @return decoded value, never negative
+     * @throws IOException if reading fails or varint is longer than 5 bytes or doesn't fit an int
+     */
+    private static int readVarint(DataInput in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.readUnsignedByte();
+            if (shift == 28 && b > 0x07) {
+                break; //the fifth byte may only hold the top bits of a non-negative int
+            }
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    /**
+     * Converts a knowledge base between text, binary and indexed format
+     * Usage: java BinaryKnowledgeBase toBinary|toDag|toText|toIndexed input output
+     * @param args command line arguments
+     */
+    public static void main(String[] args) {
+        if (args.length != 3 || !(args[0].equals("toBinary") || args[0].equals("toDag")
+                || args[0].equals("toText") || args[0].equals("toIndexed"))) {
+            System.out.println("Usage: java BinaryKnowledgeBase toBinary|toDag|toText|toIndexed input output");
+            return;
+        }
+
+        try {
+            DecisionTree tree;
+            if (IndexedTreeFile.isIndexedFile(args[1])) {
+                tree = LazyDecisionTree.open(args[1]);
+            } else if (isBinaryFile(args[1])) {
+                tree = read(args[1]);
+            } else {
+                tree = DecisionTree.readFile(args[1]);
+            }
+
+            if (args[0].equals("toBinary")) {
+                write(tree, args[2]);
+            } else if (args[0].equals("toDag")) {
+                writeDag(new DecisionDag(tree), args[2]);
+            } else if (args[0].equals("toIndexed")) {
+                IndexedTreeFile.write(tree, args[2]);
+            } else {
+                tree.writeToFile(args[2]);
+            }
+            System.out.println("Converted " + args[1] + " to " + args[2]);
+        } catch (IOException e) {
+            System.out.println("Error in converting knowledge base: " + e.getMessage());
+        }
+    }
+}
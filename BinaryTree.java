@@ -1,3 +1,8 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
 /**
  *  Implements binary trees.
  *
@@ -8,11 +13,11 @@ public class BinaryTree<E> {
     /** The value at this node */
     private E data;
 
-    /** Left child of this node */
-    private BinaryTree<E> left;
+    /** Left child of this node; volatile so readers on other threads see fully built subtrees */
+    private volatile BinaryTree<E> left;
 
-    /** Right child of this node */
-    private BinaryTree<E> right;
+    /** Right child of this node; volatile for the same reason as left */
+    private volatile BinaryTree<E> right;
 
     /** This constructor creates a leaf node */
     public BinaryTree(E data) {
@@ -30,8 +35,25 @@ public class BinaryTree<E> {
     /** This constructor creates a deep copy of the entire tree structure */ 
     public BinaryTree(BinaryTree<E> tree) {
         this.data = tree.data;
-        this.left = (tree.left == null)? null:(new BinaryTree<E>(tree.left));
-        this.right = (tree.right == null)? null:(new BinaryTree<E>(tree.right));
+        //copy through explicit stacks so degenerate trees can't overflow the call stack
+        ArrayDeque<BinaryTree<E>> sources = new ArrayDeque<>();
+        ArrayDeque<BinaryTree<E>> copies = new ArrayDeque<>();
+        sources.push(tree);
+        copies.push(this);
+        while (!sources.isEmpty()) {
+            BinaryTree<E> source = sources.pop();
+            BinaryTree<E> copy = copies.pop();
+            if (source.left != null) {
+                copy.left = new BinaryTree<E>(source.left.data);
+                sources.push(source.left);
+                copies.push(copy.left);
+            }
+            if (source.right != null) {
+                copy.right = new BinaryTree<E>(source.right.data);
+                sources.push(source.right);
+                copies.push(copy.right);
+            }
+        }
     }
 
     /** Accessor for node data */
@@ -81,16 +103,48 @@ public class BinaryTree<E> {
 
     /** Counts the number of nodes */
     public int count() {
-        int lcount = (left == null) ? 0 : left.count();
-        int rcount = (right == null) ? 0 : right.count();
-        return lcount+rcount+1;
+        int count = 0;
+        ArrayDeque<BinaryTree<E>> stack = new ArrayDeque<>();
+        stack.push(this);
+        while (!stack.isEmpty()) {
+            BinaryTree<E> node = stack.pop();
+            count++;
+            if (node.getLeft() != null) stack.push(node.getLeft());
+            if (node.getRight() != null) stack.push(node.getRight());
+        }
+        return count;
     }
 
     /** Computes the height of the tree */
     public int height() {
-        int lheight = (left == null) ? 0 : left.height();
-        int rheight = (right == null) ? 0 : right.height();
-        return (lheight > rheight) ? lheight+1 : rheight+1;
+        //depth-first, so only the current path and its pending siblings are held
+        int height = 0;
+        ArrayDeque<BinaryTree<E>> stack = new ArrayDeque<>();
+        int[] depths = new int[16]; //depth of each stack entry, by position from the bottom
+        stack.push(this);
+        depths[0] = 1;
+        while (!stack.isEmpty()) {
+            BinaryTree<E> node = stack.pop();
+            int depth = depths[stack.size()];
+            height = Math.max(height, depth);
+            if (stack.size() + 2 > depths.length) {
+                depths = Arrays.copyOf(depths, depths.length * 2);
+            }
+            if (node.getLeft() != null) {
+                depths[stack.size()] = depth + 1;
+                stack.push(node.getLeft());
+            }
+            if (node.getRight() != null) {
+                depths[stack.size()] = depth + 1;
+                stack.push(node.getRight());
+            }
+        }
+        return height;
+    }
+
+    /** Determines whether count and height take constant time */
+    public boolean hasCachedStats() {
+        return false;
     }
 
     /** Creates a string representation */
@@ -99,26 +153,81 @@ public class BinaryTree<E> {
     }
 
     public static <T> String preorderString(BinaryTree<T> t) {
-        if (t==null) {
-            return "";
-        } else {
-            return "("+t.data+" "+preorderString(t.left)+" "+preorderString(t.right)+")";
-        }
+        StringBuilder out = new StringBuilder();
+        appendTraversal(t, out, PREORDER);
+        return out.toString();
     }
 
     public static <T> String inorderString(BinaryTree<T> t) {
-        if (t==null) {
-            return "";
-        } else {
-            return "("+inorderString(t.left)+" "+t.data+" "+inorderString(t.right)+")";
-        }
+        StringBuilder out = new StringBuilder();
+        appendTraversal(t, out, INORDER);
+        return out.toString();
     }
 
     public static <T> String postorderString(BinaryTree<T> t) {
-        if (t==null) {
-            return "";
-        } else {
-            return "("+postorderString(t.left)+" "+postorderString(t.right)+" "+t.data+")";
+        StringBuilder out = new StringBuilder();
+        appendTraversal(t, out, POSTORDER);
+        return out.toString();
+    }
+
+    /** Streams the preorder string of a tree to an Appendable */
+    public static <T> void preorder(BinaryTree<T> t, Appendable out) throws IOException {
+        traverse(t, out, PREORDER);
+    }
+
+    /** Streams the inorder string of a tree to an Appendable */
+    public static <T> void inorder(BinaryTree<T> t, Appendable out) throws IOException {
+        traverse(t, out, INORDER);
+    }
+
+    /** Streams the postorder string of a tree to an Appendable */
+    public static <T> void postorder(BinaryTree<T> t, Appendable out) throws IOException {
+        traverse(t, out, POSTORDER);
+    }
+
+    /** Traversal orders understood by traverse */
+    private static final int PREORDER = 0, INORDER = 1, POSTORDER = 2;
+
+    /** Runs a traversal into a StringBuilder, which never throws IOException */
+    private static <T> void appendTraversal(BinaryTree<T> t, StringBuilder out, int order) {
+        try {
+            traverse(t, out, order);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Writes "(data left right)" style strings without recursion
+     * The stack holds pending output: subtrees still to expand and text to emit
+     */
+    private static <T> void traverse(BinaryTree<T> t, Appendable out, int order) throws IOException {
+        if (t == null) {
+            return;
+        }
+        ArrayDeque<Object> pending = new ArrayDeque<>();
+        pending.push(t);
+        while (!pending.isEmpty()) {
+            Object item = pending.pop();
+            if (item instanceof String) {
+                out.append((String)item);
+                continue;
+            }
+
+            BinaryTree<?> node = (BinaryTree<?>)item;
+            String data = String.valueOf(node.getData());
+            //push in reverse of output order
+            pending.push(")");
+            if (order == POSTORDER) pending.push(data);
+            if (order == POSTORDER) pending.push(" ");
+            if (node.getRight() != null) pending.push(node.getRight());
+            pending.push(" ");
+            if (order == INORDER) pending.push(data);
+            if (order == INORDER) pending.push(" ");
+            if (node.getLeft() != null) pending.push(node.getLeft());
+            if (order == PREORDER) pending.push(" ");
+            if (order == PREORDER) pending.push(data);
+            pending.push("(");
         }
     }
 }
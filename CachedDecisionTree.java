@@ -0,0 +1,200 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+/**
+ * Decision tree node that keeps its subtree size and height up to date,
+ * like CachedStatsTree does for plain binary trees
+ * Splits made by the engine or splitLeaf create nodes of this kind through
+ * newNode, so count() and height() stay constant time as the tree learns.
+ * Each node records a single parent, so it can't hold a DecisionDag
+ * Stats are updated under one lock for the whole tree, since games learning
+ * under different parents share ancestors
+ */
+public class CachedDecisionTree extends DecisionTree {
+    /** Guards parent links and stats of every cached node */
+    private static final Object STATS_LOCK = new Object();
+
+    /** Parent of this node, or null for a root */
+    private CachedDecisionTree parent;
+
+    /** Number of nodes in this subtree */
+    private volatile int cachedCount = 1;
+
+    /** Height of this subtree */
+    private volatile int cachedHeight = 1;
+
+    /**
+     * Creates a leaf node
+     * @param data animal name or question for this node
+     */
+    public CachedDecisionTree(String data) {
+        super(data);
+    }
+
+    /**
+     * Copies a tree into nodes that cache their stats, keeping visit counts
+     * @param tree root of tree to copy
+     * @return root of copy
+     */
+    public static CachedDecisionTree copyOf(DecisionTree tree) {
+        //copy in preorder through explicit stacks, then fill stats in reverse so children come first
+        CachedDecisionTree root = copyNode(tree);
+        ArrayList<CachedDecisionTree> order = new ArrayList<>();
+        ArrayDeque<DecisionTree> sources = new ArrayDeque<>();
+        ArrayDeque<CachedDecisionTree> copies = new ArrayDeque<>();
+        sources.push(tree);
+        copies.push(root);
+        synchronized (STATS_LOCK) {
+            while (!sources.isEmpty()) {
+                DecisionTree source = sources.pop();
+                CachedDecisionTree copy = copies.pop();
+                order.add(copy);
+                if (source.getLeft() != null) {
+                    CachedDecisionTree child = copyNode(source.getLeft());
+                    copy.attach(child, true);
+                    sources.push(source.getLeft());
+                    copies.push(child);
+                }
+                if (source.getRight() != null) {
+                    CachedDecisionTree child = copyNode(source.getRight());
+                    copy.attach(child, false);
+                    sources.push(source.getRight());
+                    copies.push(child);
+                }
+            }
+            for (int i = order.size() - 1; i >= 0; i--) {
+                CachedDecisionTree node = order.get(i);
+                node.cachedCount = 1 + cachedCount(node.getLeft()) + cachedCount(node.getRight());
+                node.cachedHeight = 1 + Math.max(cachedHeight(node.getLeft()), cachedHeight(node.getRight()));
+            }
+        }
+        return root;
+    }
+
+    private static CachedDecisionTree copyNode(DecisionTree node) {
+        CachedDecisionTree copy = new CachedDecisionTree(node.getData());
+        copy.setVisits(node.getVisits());
+        return copy;
+    }
+
+    /**
+     * Links a child without updating stats, for copyOf
+     */
+    private void attach(CachedDecisionTree child, boolean isLeft) {
+        if (isLeft) {
+            super.setLeft(child);
+        } else {
+            super.setRight(child);
+        }
+        child.parent = this;
+    }
+
+    /**
+     * Creates a leaf that caches its stats, so splits keep the tree's stats current
+     * @param data animal name or question for the new node
+     * @return new leaf
+     */
+    public DecisionTree newNode(String data) {
+        return new CachedDecisionTree(data);
+    }
+
+    /**
+     * Gets left child as a CachedDecisionTree
+     * @return left child node
+     */
+    public CachedDecisionTree getLeft() {
+        return (CachedDecisionTree)super.getLeft();
+    }
+
+    /**
+     * Gets right child as a CachedDecisionTree
+     * @return right child node
+     */
+    public CachedDecisionTree getRight() {
+        return (CachedDecisionTree)super.getRight();
+    }
+
+    /**
+     * Sets left child and updates stats up to the root
+     * @param left node to set as left child
+     * @throws UnsupportedOperationException if left isn't a CachedDecisionTree
+     */
+    public void setLeft(BinaryTree<String> left) {
+        CachedDecisionTree child = checkChild(left);
+        synchronized (STATS_LOCK) {
+            CachedDecisionTree old = getLeft();
+            super.setLeft(child);
+            childChanged(old, child);
+        }
+    }
+
+    /**
+     * Sets right child and updates stats up to the root
+     * @param right node to set as right child
+     * @throws UnsupportedOperationException if right isn't a CachedDecisionTree
+     */
+    public void setRight(BinaryTree<String> right) {
+        CachedDecisionTree child = checkChild(right);
+        synchronized (STATS_LOCK) {
+            CachedDecisionTree old = getRight();
+            super.setRight(child);
+            childChanged(old, child);
+        }
+    }
+
+    /** Counts the number of nodes in constant time */
+    public int count() {
+        return cachedCount;
+    }
+
+    /** Gets the height of the tree in constant time */
+    public int height() {
+        return cachedHeight;
+    }
+
+    /** Determines whether count and height take constant time */
+    public boolean hasCachedStats() {
+        return true;
+    }
+
+    private static CachedDecisionTree checkChild(BinaryTree<String> child) {
+        if (child == null || child instanceof CachedDecisionTree) {
+            return (CachedDecisionTree)child;
+        }
+        throw new UnsupportedOperationException("Child needs to be a CachedDecisionTree or null");
+    }
+
+    /**
+     * Keeps stats correct after a child is replaced; called holding STATS_LOCK
+     * @param oldChild child that was removed
+     * @param newChild child that was attached
+     */
+    private void childChanged(CachedDecisionTree oldChild, CachedDecisionTree newChild) {
+        if (oldChild != null && oldChild != newChild && oldChild.parent == this) {
+            oldChild.parent = null;
+        }
+        if (newChild != null) {
+            newChild.parent = this;
+        }
+        //recompute up through the ancestors, stopping as soon as a node's stats are unchanged
+        for (CachedDecisionTree node = this; node != null; node = node.parent) {
+            int count = 1 + cachedCount(node.getLeft()) + cachedCount(node.getRight());
+            int height = 1 + Math.max(cachedHeight(node.getLeft()), cachedHeight(node.getRight()));
+            if (count == node.cachedCount && height == node.cachedHeight) {
+                break;
+            }
+            node.cachedCount = count;
+            node.cachedHeight = height;
+        }
+    }
+
+    /** Stats count of a possibly empty subtree */
+    private static int cachedCount(CachedDecisionTree node) {
+        return (node == null) ? 0 : node.cachedCount;
+    }
+
+    /** Stats height of a possibly empty subtree */
+    private static int cachedHeight(CachedDecisionTree node) {
+        return (node == null) ? 0 : node.cachedHeight;
+    }
+}
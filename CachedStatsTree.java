@@ -0,0 +1,186 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+/**
+ * Binary tree node that keeps its subtree size and height up to date
+ * setLeft and setRight update the stats of the node and its ancestors, so
+ * count() and height() take constant time. Each node records a single
+ * parent, so subtrees must not be shared
+ * Only trees built from these nodes pay for the extra fields; plain
+ * BinaryTree nodes carry none of them
+ */
+public class CachedStatsTree<E> extends BinaryTree<E> {
+    /** Parent of this node, or null for a root */
+    private CachedStatsTree<E> parent;
+
+    /** Number of nodes in this subtree */
+    private int cachedCount = 1;
+
+    /** Height of this subtree */
+    private int cachedHeight = 1;
+
+    /**
+     * Creates a leaf node
+     * @param data value at the node
+     */
+    public CachedStatsTree(E data) {
+        super(data);
+    }
+
+    /**
+     * Creates a branch node
+     * @param data value at the node
+     * @param left left child, or null
+     * @param right right child, or null
+     */
+    public CachedStatsTree(E data, CachedStatsTree<E> left, CachedStatsTree<E> right) {
+        super(data);
+        setLeft(left);
+        setRight(right);
+    }
+
+    /**
+     * Copies a tree into nodes that cache their stats
+     * @param tree root of tree to copy
+     * @return root of copy
+     */
+    public static <E> CachedStatsTree<E> copyOf(BinaryTree<E> tree) {
+        //copy in preorder through explicit stacks, then fill stats in reverse so children come first
+        CachedStatsTree<E> root = new CachedStatsTree<E>(tree.getData());
+        ArrayList<CachedStatsTree<E>> order = new ArrayList<>();
+        ArrayDeque<BinaryTree<E>> sources = new ArrayDeque<>();
+        ArrayDeque<CachedStatsTree<E>> copies = new ArrayDeque<>();
+        sources.push(tree);
+        copies.push(root);
+        while (!sources.isEmpty()) {
+            BinaryTree<E> source = sources.pop();
+            CachedStatsTree<E> copy = copies.pop();
+            order.add(copy);
+            if (source.getLeft() != null) {
+                CachedStatsTree<E> child = new CachedStatsTree<E>(source.getLeft().getData());
+                copy.attach(child, true);
+                sources.push(source.getLeft());
+                copies.push(child);
+            }
+            if (source.getRight() != null) {
+                CachedStatsTree<E> child = new CachedStatsTree<E>(source.getRight().getData());
+                copy.attach(child, false);
+                sources.push(source.getRight());
+                copies.push(child);
+            }
+        }
+        for (int i = order.size() - 1; i >= 0; i--) {
+            CachedStatsTree<E> node = order.get(i);
+            node.cachedCount = 1 + cachedCount(node.getLeft()) + cachedCount(node.getRight());
+            node.cachedHeight = 1 + Math.max(cachedHeight(node.getLeft()), cachedHeight(node.getRight()));
+        }
+        return root;
+    }
+
+    /**
+     * Links a child without updating stats, for copyOf
+     */
+    private void attach(CachedStatsTree<E> child, boolean isLeft) {
+        if (isLeft) {
+            super.setLeft(child);
+        } else {
+            super.setRight(child);
+        }
+        child.parent = this;
+    }
+
+    /** Accessor for left child */
+    public CachedStatsTree<E> getLeft() {
+        return (CachedStatsTree<E>)super.getLeft();
+    }
+
+    /** Accessor for right child */
+    public CachedStatsTree<E> getRight() {
+        return (CachedStatsTree<E>)super.getRight();
+    }
+
+    /**
+     * Sets left child and updates stats up to the root
+     * @param left node to set as left child
+     * @throws UnsupportedOperationException if left isn't a CachedStatsTree
+     */
+    public void setLeft(BinaryTree<E> left) {
+        CachedStatsTree<E> old = getLeft();
+        super.setLeft(checkChild(left));
+        childChanged(old, getLeft());
+    }
+
+    /**
+     * Sets right child and updates stats up to the root
+     * @param right node to set as right child
+     * @throws UnsupportedOperationException if right isn't a CachedStatsTree
+     */
+    public void setRight(BinaryTree<E> right) {
+        CachedStatsTree<E> old = getRight();
+        super.setRight(checkChild(right));
+        childChanged(old, getRight());
+    }
+
+    /** Counts the number of nodes in constant time */
+    public int count() {
+        return cachedCount;
+    }
+
+    /** Gets the height of the tree in constant time */
+    public int height() {
+        return cachedHeight;
+    }
+
+    /** Determines whether count and height take constant time */
+    public boolean hasCachedStats() {
+        return true;
+    }
+
+    private static <E> CachedStatsTree<E> checkChild(BinaryTree<E> child) {
+        if (child == null || child instanceof CachedStatsTree) {
+            return (CachedStatsTree<E>)child;
+        }
+        throw new UnsupportedOperationException("Child needs to be a CachedStatsTree or null");
+    }
+
+    /**
+     * Keeps stats correct after a child is replaced
+     * @param oldChild child that was removed
+     * @param newChild child that was attached
+     */
+    private void childChanged(CachedStatsTree<E> oldChild, CachedStatsTree<E> newChild) {
+        if (oldChild != null && oldChild != newChild && oldChild.parent == this) {
+            oldChild.parent = null;
+        }
+        if (newChild != null) {
+            newChild.parent = this;
+        }
+        updateStatsToRoot();
+    }
+
+    /**
+     * Recomputes stats from this node up through its ancestors,
+     * stopping as soon as a node's stats are unchanged
+     */
+    private void updateStatsToRoot() {
+        for (CachedStatsTree<E> node = this; node != null; node = node.parent) {
+            int count = 1 + cachedCount(node.getLeft()) + cachedCount(node.getRight());
+            int height = 1 + Math.max(cachedHeight(node.getLeft()), cachedHeight(node.getRight()));
+            if (count == node.cachedCount && height == node.cachedHeight) {
+                break;
+            }
+            node.cachedCount = count;
+            node.cachedHeight = height;
+        }
+    }
+
+    /** Stats count of a possibly empty subtree */
+    private static int cachedCount(CachedStatsTree<?> node) {
+        return (node == null) ? 0 : node.cachedCount;
+    }
+
+    /** Stats height of a possibly empty subtree */
+    private static int cachedHeight(CachedStatsTree<?> node) {
+        return (node == null) ? 0 : node.cachedHeight;
+    }
+}
@@ -0,0 +1,419 @@
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Read-only decision tree compiled into one flat int program
+ * Every distinct question text gets a dense question id, and a record of
+ * answers is a bitset over those ids: bit q set means "yes" to question q.
+ * Each node is three ints, {question id or -1 for a leaf, yes node, no node},
+ * numbered breadth first so the top of the tree shares cache lines, and
+ * classifying a record is a loop over that array with no objects touched
+ * Nodes shared by a DecisionDag compile to one program node
+ */
+public class CompiledDecisionTree {
+    /** Records classified by one task before a batch is split */
+    private static final int BATCH_THRESHOLD = Integer.getInteger("compiledtree.threshold", 1 << 14);
+
+    /** Ints per node in the program */
+    private static final int STRIDE = 3;
+
+    /** Marks a leaf in the question slot and a missing child in the child slots */
+    private static final int NONE = -1;
+
+    /** {question, yes, no} for every node; node 0 is the root */
+    private final int[] program;
+
+    /** Text of every node */
+    private final String[] data;
+
+    /** Text of every question id */
+    private final String[] questions;
+
+    /** Question id of every question text */
+    private final Map<String, Integer> questionIds;
+
+    /** Longs per answer vector */
+    private final int words;
+
+    /**
+     * Classifications of one batch of answer vectors
+     * Holds the batch so paths can be traced again on demand rather than
+     * built for every record
+     */
+    public class Classification {
+        private final long[] answers;
+        private final int[] nodes;
+
+        private Classification(long[] answers, int[] nodes) {
+            this.answers = answers;
+            this.nodes = nodes;
+        }
+
+        /**
+         * Gets the number of records classified
+         * @return record count
+         */
+        public int size() {
+            return nodes.length;
+        }
+
+        /**
+         * Gets the program node a record stopped at
+         * @param record record number
+         * @return node number
+         */
+        public int getNode(int record) {
+            return nodes[record];
+        }
+
+        /**
+         * Tells whether a record reached a leaf rather than a question whose
+         * answer leads nowhere
+         * @param record record number
+         * @return true if the record was classified as an animal
+         */
+        public boolean isClassified(int record) {
+            return isLeaf(nodes[record]);
+        }
+
+        /**
+         * Gets the animal a record was classified as
+         * @param record record number
+         * @return animal, or null if the record stopped at a question
+         */
+        public String getAnimal(int record) {
+            int node = nodes[record];
+            return isLeaf(node) ? data[node] : null;
+        }
+
+        /**
+         * Gets the path from the root to the node a record stopped at
+         * @param record record number
+         * @return Y/N path
+         */
+        public TreePath getPath(int record) {
+            return path(answers, record * words);
+        }
+    }
+
+    /**
+     * Compiles a tree or DAG
+     * @param tree root of tree
+     * @throws IllegalArgumentException if the tree is empty
+     */
+    public CompiledDecisionTree(DecisionTree tree) {
+        if (tree == null) {
+            throw new IllegalArgumentException("Cannot compile an empty tree");
+        }
+
+        //number nodes breadth first, once per distinct node object
+        Map<DecisionTree, Integer> numbers = new IdentityHashMap<>();
+        DecisionTree[] order = new DecisionTree[64];
+        int size = 0;
+        order[size++] = tree;
+        numbers.put(tree, 0);
+        for (int i = 0; i < size; i++) {
+            for (DecisionTree child : new DecisionTree[] {order[i].getLeft(), order[i].getRight()}) {
+                if (child != null && !numbers.containsKey(child)) {
+                    if (size == order.length) {
+                        order = Arrays.copyOf(order, size * 2);
+                    }
+                    numbers.put(child, size);
+                    order[size++] = child;
+                }
+            }
+        }
+
+        program = new int[size * STRIDE];
+        data = new String[size];
+        questionIds = new HashMap<>();
+        String[] names = new String[16];
+        for (int i = 0; i < size; i++) {
+            DecisionTree node = order[i];
+            data[i] = node.getData();
+            int question = NONE;
+            if (!node.isLeaf()) {
+                Integer id = questionIds.get(node.getData());
+                if (id == null) {
+                    id = questionIds.size();
+                    questionIds.put(node.getData(), id);
+                    if (id == names.length) {
+                        names = Arrays.copyOf(names, id * 2);
+                    }
+                    names[id] = node.getData();
+                }
+                question = id;
+            }
+            program[i * STRIDE] = question;
+            program[i * STRIDE + 1] = (node.getLeft() == null) ? NONE : numbers.get(node.getLeft());
+            program[i * STRIDE + 2] = (node.getRight() == null) ? NONE : numbers.get(node.getRight());
+        }
+        questions = Arrays.copyOf(names, questionIds.size());
+        words = Math.max(1, (questions.length + 63) >>> 6);
+    }
+
+    /**
+     * Gets the number of nodes in the program
+     * @return node count
+     */
+    public int size() {
+        return data.length;
+    }
+
+    /**
+     * Gets the number of distinct questions, which is the number of bits in an answer vector
+     * @return question count
+     */
+    public int questionCount() {
+        return questions.length;
+    }
+
+    /**
+     * Gets the number of longs in one answer vector
+     * @return words per record
+     */
+    public int wordsPerRecord() {
+        return words;
+    }
+
+    /**
+     * Looks up the id of a question
+     * @param question question text
+     * @return question id, or -1 if no node asks it
+     */
+    public int questionId(String question) {
+        Integer id = questionIds.get(question);
+        return (id == null) ? NONE : id;
+    }
+
+    /**
+     * Gets the text of a question id
+     * @param id question id
+     * @return question text
+     */
+    public String question(int id) {
+        return questions[id];
+    }
+
+    /**
+     * Tells whether a program node is a leaf
+     * @param node node number
+     * @return true if the node is an animal
+     */
+    public boolean isLeaf(int node) {
+        return program[node * STRIDE] == NONE;
+    }
+
+    /**
+     * Gets the text of a program node
+     * @param node node number
+     * @return question or animal
+     */
+    public String getData(int node) {
+        return data[node];
+    }
+
+    /**
+     * Makes an all-"no" batch of answer vectors
+     * @param records number of records
+     * @return records * wordsPerRecord() longs
+     */
+    public long[] newBatch(int records) {
+        return new long[Math.multiplyExact(records, words)];
+    }
+
+    /**
+     * Records one answer in a batch
+     * @param batch answer vectors
+     * @param record record number
+     * @param question question id
+     * @param yes the answer
+     */
+    public void setAnswer(long[] batch, int record, int question, boolean yes) {
+        int word = record * words + (question >>> 6);
+        if (yes) {
+            batch[word] |= 1L << question;
+        } else {
+            batch[word] &= ~(1L << question);
+        }
+    }
+
+    /**
+     * Classifies one answer vector
+     * @param answers answer vectors
+     * @param offset index of the vector's first long
+     * @return node the answers lead to; a question node if an answer leads nowhere
+     */
+    public int classify(long[] answers, int offset) {
+        int[] program = this.program;
+        int node = 0;
+        while (true) {
+            int base = node * STRIDE;
+            int question = program[base];
+            if (question == NONE) {
+                return node;
+            }
+            //yes is slot 1 and no slot 2, so the answer bit picks the slot without a branch
+            int bit = (int)(answers[offset + (question >>> 6)] >>> question) & 1;
+            int next = program[base + 2 - bit];
+            if (next == NONE) {
+                return node;
+            }
+            node = next;
+        }
+    }
+
+    /**
+     * Classifies a batch of answer vectors
+     * @param answers wordsPerRecord() longs per record
+     * @param parallel whether to split the batch over the common pool
+     * @return animal and path of every record
+     * @throws IllegalArgumentException if the batch isn't a whole number of records
+     */
+    public Classification classifyAll(long[] answers, boolean parallel) {
+        if (answers.length % words != 0) {
+            throw new IllegalArgumentException("Batch of " + answers.length + " longs is not a multiple of "
+                + words + " longs per record");
+        }
+        int[] nodes = new int[answers.length / words];
+        if (parallel && nodes.length > BATCH_THRESHOLD) {
+            ForkJoinPool.commonPool().invoke(new ClassifyTask(answers, nodes, 0, nodes.length));
+        } else {
+            classifyRange(answers, nodes, 0, nodes.length);
+        }
+        return new Classification(answers, nodes);
+    }
+
+    private void classifyRange(long[] answers, int[] nodes, int from, int to) {
+        for (int i = from; i < to; i++) {
+            nodes[i] = classify(answers, i * words);
+        }
+    }
+
+    /** Splits a range of records in half until it is small enough to classify */
+    @SuppressWarnings("serial") //forked, never serialized
+    private class ClassifyTask extends RecursiveAction {
+        private final long[] answers;
+        private final int[] nodes;
+        private final int from;
+        private final int to;
+
+        ClassifyTask(long[] answers, int[] nodes, int from, int to) {
+            this.answers = answers;
+            this.nodes = nodes;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= BATCH_THRESHOLD) {
+                classifyRange(answers, nodes, from, to);
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new ClassifyTask(answers, nodes, from, middle), new ClassifyTask(answers, nodes, middle, to));
+        }
+    }
+
+    /**
+     * Traces the path one answer vector takes
+     * Shared nodes have no single path of their own, so it is followed again
+     * @param answers answer vectors
+     * @param offset index of the vector's first long
+     * @return Y/N path to the node classify returns
+     */
+    public TreePath path(long[] answers, int offset) {
+        TreePath path = TreePath.ROOT;
+        int node = 0;
+        while (true) {
+            int base = node * STRIDE;
+            int question = program[base];
+            if (question == NONE) {
+                return path;
+            }
+            boolean yes = ((answers[offset + (question >>> 6)] >>> question) & 1) != 0;
+            int next = program[base + (yes ? 1 : 2)];
+            if (next == NONE) {
+                return path;
+            }
+            path = path.child(yes);
+            node = next;
+        }
+    }
+
+    /**
+     * Classifies random answer vectors sequentially and in parallel, checks
+     * them against walking the tree, and reports records per second
+     * Usage: java CompiledDecisionTree [filename] [records]
+     * @param args command line arguments
+     */
+    public static void main(String[] args) {
+        if (args.length > 2) {
+            System.out.println("Usage: java CompiledDecisionTree [filename] [records]");
+            return;
+        }
+
+        try {
+            DecisionTree tree = (args.length >= 1)
+                ? (BinaryKnowledgeBase.isBinaryFile(args[0]) ? BinaryKnowledgeBase.read(args[0]) : DecisionTree.readFile(args[0]))
+                : SyntheticTrees.generate(SyntheticTrees.Shape.RANDOM, 1023, 1);
+            int records = (args.length == 2) ? Integer.parseInt(args[1]) : 1_000_000;
+
+            long start = System.nanoTime();
+            CompiledDecisionTree compiled = new CompiledDecisionTree(tree);
+            System.out.printf("Compiled %d nodes with %d questions in %.1f ms%n", compiled.size(),
+                compiled.questionCount(), (System.nanoTime() - start) / 1e6);
+
+            Random random = new Random(1);
+            long[] batch = compiled.newBatch(records);
+            for (int i = 0; i < batch.length; i++) {
+                batch[i] = random.nextLong();
+            }
+
+            for (boolean parallel : new boolean[] {false, true}) {
+                //first pass warms up the JIT
+                compiled.classifyAll(batch, parallel);
+                start = System.nanoTime();
+                Classification result = compiled.classifyAll(batch, parallel);
+                long nanos = System.nanoTime() - start;
+                System.out.printf("%s: %d records in %.1f ms (%.1f million records/s)%n",
+                    parallel ? "parallel" : "sequential", result.size(), nanos / 1e6, result.size() * 1e3 / nanos);
+            }
+
+            //walk the tree itself for a sample of records
+            Classification result = compiled.classifyAll(batch, false);
+            int mismatches = 0;
+            for (int record = 0; record < records; record += Math.max(1, records / 1000)) {
+                DecisionTree node = tree;
+                TreePath path = TreePath.ROOT;
+                while (!node.isLeaf()) {
+                    int question = compiled.questionId(node.getData());
+                    boolean yes = ((batch[record * compiled.wordsPerRecord() + (question >>> 6)] >>> question) & 1) != 0;
+                    DecisionTree next = yes ? node.getLeft() : node.getRight();
+                    if (next == null) {
+                        break;
+                    }
+                    path = path.child(yes);
+                    node = next;
+                }
+                if (!node.getData().equals(compiled.getData(result.getNode(record)))
+                        || !path.equals(result.getPath(record))) {
+                    mismatches++;
+                }
+            }
+            System.out.println(mismatches == 0 ? "Sample matches tree walk" : mismatches + " records differ from tree walk");
+        } catch (IOException e) {
+            System.out.println("Error in loading knowledge base: " + e.getMessage());
+        } catch (NumberFormatException e) {
+            System.out.println("Error in record count: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,362 @@
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Decision tree stored as a DAG in which identical subtrees are one node
+ * Every node is hash-consed: a node with the same text and the same children
+ * as an existing one is that existing node, so a question block repeated
+ * under many branches is held once. Because nodes are shared they are never
+ * changed; a split instead rebuilds the path from the root to the split leaf
+ * and swaps in the new root, so only the nodes on that path are copied
+ * Visit counts belong to shared nodes rather than to positions in the tree;
+ * path copies start with the counts of the nodes they replace
+ * Copies replaced by later splits are dropped from the table when it has
+ * doubled since it was last pruned, so it stays within twice the live nodes
+ */
+public class DecisionDag {
+
+    /** Smallest hash table; always a power of two */
+    private static final int MIN_CAPACITY = 16;
+
+    /**
+     * Open-addressing hash table of every shared node, keyed by its text and
+     * the identities of its children, which the node itself holds
+     */
+    private DecisionTree[] table = new DecisionTree[MIN_CAPACITY];
+
+    /** Hash of the node in each slot, so probes and resizes don't recompute it */
+    private int[] hashes = new int[MIN_CAPACITY];
+
+    /** Number of nodes in the table */
+    private int size;
+
+    /** Size above which the table is pruned to the nodes reachable from the root */
+    private int pruneSize = MIN_CAPACITY;
+
+    /** Current root */
+    private volatile DecisionTree root;
+
+    /**
+     * Creates a DAG holding the same tree as an ordinary or already shared tree
+     * @param tree root of tree, or null for an empty DAG
+     */
+    public DecisionDag(DecisionTree tree) {
+        this.root = (tree == null) ? null : intern(tree);
+        this.pruneSize = Math.max(MIN_CAPACITY, size * 2);
+    }
+
+    /**
+     * Accessor for current root, which changes on every split
+     * @return root node
+     */
+    public DecisionTree getRoot() {
+        return root;
+    }
+
+    /**
+     * Gets the shared node with given text and children, making it if needed
+     * @param data question or animal
+     * @param left shared left child, or null
+     * @param right shared right child, or null
+     * @return shared node
+     */
+    public synchronized DecisionTree node(String data, DecisionTree left, DecisionTree right) {
+        DecisionTree node = find(data, left, right);
+        return (node != null) ? node : add(new DecisionTree(data, left, right));
+    }
+
+    /**
+     * Gets the shared node with given text and children, making it with a visit count if needed
+     * An existing node keeps its own count
+     */
+    private DecisionTree node(String data, DecisionTree left, DecisionTree right, long visits) {
+        DecisionTree node = find(data, left, right);
+        if (node == null) {
+            node = add(new DecisionTree(data, left, right));
+            node.setVisits(visits);
+        }
+        return node;
+    }
+
+    /**
+     * Finds the shared node with given text and children
+     * @return node, or null if there is none
+     */
+    private DecisionTree find(String data, DecisionTree left, DecisionTree right) {
+        int hash = hash(data, left, right);
+        int mask = table.length - 1;
+        for (int slot = hash & mask; table[slot] != null; slot = (slot + 1) & mask) {
+            DecisionTree node = table[slot];
+            if (hashes[slot] == hash && node.getLeft() == left && node.getRight() == right
+                    && node.getData().equals(data)) {
+                return node;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Adds a node that isn't in the table yet
+     * @return node
+     */
+    private DecisionTree add(DecisionTree node) {
+        if ((size + 1) * 2 > table.length) {
+            resize(table.length * 2);
+        }
+        insert(node, hash(node.getData(), node.getLeft(), node.getRight()));
+        size++;
+        return node;
+    }
+
+    private void insert(DecisionTree node, int hash) {
+        int mask = table.length - 1;
+        int slot = hash & mask;
+        while (table[slot] != null) {
+            slot = (slot + 1) & mask;
+        }
+        table[slot] = node;
+        hashes[slot] = hash;
+    }
+
+    private void resize(int capacity) {
+        DecisionTree[] oldTable = table;
+        int[] oldHashes = hashes;
+        table = new DecisionTree[capacity];
+        hashes = new int[capacity];
+        for (int i = 0; i < oldTable.length; i++) {
+            if (oldTable[i] != null) {
+                insert(oldTable[i], oldHashes[i]);
+            }
+        }
+    }
+
+    /**
+     * Rebuilds the table from the nodes reachable from the root, dropping the
+     * path copies that splits replaced
+     * Runs after a split once the table has doubled since the last prune, so
+     * its cost is spread over the nodes added in between
+     */
+    private void prune() {
+        int capacity = MIN_CAPACITY;
+        while (capacity < size) {
+            capacity *= 2;
+        }
+        table = new DecisionTree[capacity];
+        hashes = new int[capacity];
+        size = 0;
+
+        //nodes are unique by text and children, so a node is already kept if find returns it
+        ArrayDeque<DecisionTree> stack = new ArrayDeque<>();
+        if (root != null) {
+            stack.push(root);
+        }
+        while (!stack.isEmpty()) {
+            DecisionTree node = stack.pop();
+            int hash = hash(node.getData(), node.getLeft(), node.getRight());
+            if (find(node.getData(), node.getLeft(), node.getRight()) == node) {
+                continue;
+            }
+            if ((size + 1) * 2 > table.length) {
+                resize(table.length * 2);
+            }
+            insert(node, hash);
+            size++;
+            if (node.getLeft() != null) stack.push(node.getLeft());
+            if (node.getRight() != null) stack.push(node.getRight());
+        }
+        pruneSize = Math.max(MIN_CAPACITY, size * 2);
+    }
+
+    private static int hash(String data, DecisionTree left, DecisionTree right) {
+        int hash = (data.hashCode() * 31 + System.identityHashCode(left)) * 31 + System.identityHashCode(right);
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * Finds or makes the shared node for every subtree of a tree, bottom up
+     * Visit counts of positions that become one node are added together
+     * @param tree root of tree; shared subtrees in it are only visited once
+     * @return shared root
+     */
+    public synchronized DecisionTree intern(DecisionTree tree) {
+        Map<DecisionTree, DecisionTree> shared = new IdentityHashMap<>();
+        ArrayDeque<DecisionTree> stack = new ArrayDeque<>();
+        stack.push(tree);
+        while (!stack.isEmpty()) {
+            DecisionTree current = stack.peek();
+            if (shared.containsKey(current)) {
+                stack.pop();
+                continue;
+            }
+
+            //children first, so they are shared before their parent is looked up
+            DecisionTree left = current.getLeft();
+            DecisionTree right = current.getRight();
+            boolean ready = true;
+            if (right != null && !shared.containsKey(right)) {
+                stack.push(right);
+                ready = false;
+            }
+            if (left != null && !shared.containsKey(left)) {
+                stack.push(left);
+                ready = false;
+            }
+            if (ready) {
+                stack.pop();
+                DecisionTree node = node(TextPool.shared().canonical(current.getData()),
+                    shared.get(left), shared.get(right));
+                if (node != current) {
+                    node.setVisits(node.getVisits() + current.getVisits());
+                }
+                shared.put(current, node);
+            }
+        }
+        return shared.get(tree);
+    }
+
+    /**
+     * Replaces the leaf at a path with a question separating it from a new animal
+     * Copies only the nodes on the path; the old animal's leaf is reused as is
+     * @param path Y/N path from the root to the leaf
+     * @param question question distinguishing the animals
+     * @param animal new animal
+     * @param animalIsYes whether the new animal is on the question's yes side
+     * @return new question node at the path
+     * @throws IllegalArgumentException if the path leaves the tree
+     * @throws UnsupportedOperationException if the path doesn't end at a leaf
+     */
+    public synchronized DecisionTree split(TreePath path, String question, String animal, boolean animalIsYes) {
+        DecisionTree[] ancestors = new DecisionTree[path.length() + 1];
+        ancestors[0] = root;
+        for (int i = 0; i < path.length(); i++) {
+            DecisionTree node = ancestors[i];
+            ancestors[i + 1] = (node == null) ? null : (path.isYes(i) ? node.getLeft() : node.getRight());
+        }
+        DecisionTree leaf = ancestors[path.length()];
+        if (leaf == null) {
+            throw new IllegalArgumentException("Path not found in tree: " + path);
+        }
+        if (!leaf.isLeaf()) {
+            throw new UnsupportedOperationException("Only a leaf node can be split");
+        }
+
+        TextPool texts = TextPool.shared();
+        DecisionTree newAnimalNode = node(texts.canonical(animal), null, null);
+        question = texts.canonical(question);
+        DecisionTree questionNode = animalIsYes
+            ? node(question, newAnimalNode, leaf, leaf.getVisits())
+            : node(question, leaf, newAnimalNode, leaf.getVisits());
+
+        //rebuild the ancestors bottom up around the new node, keeping their visit counts
+        DecisionTree replacement = questionNode;
+        for (int i = path.length() - 1; i >= 0; i--) {
+            DecisionTree parent = ancestors[i];
+            replacement = path.isYes(i)
+                ? node(parent.getData(), replacement, parent.getRight(), parent.getVisits())
+                : node(parent.getData(), parent.getLeft(), replacement, parent.getVisits());
+        }
+        root = replacement;
+        if (size >= pruneSize) {
+            prune();
+        }
+        return questionNode;
+    }
+
+    /**
+     * Gets the number of nodes in the hash-cons table, including ones replaced
+     * by splits since the table was last pruned
+     * @return node count
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Counts the distinct node objects reachable from a root
+     * @param root root of tree or DAG
+     * @return number of distinct nodes
+     */
+    public static int distinctNodes(DecisionTree root) {
+        Map<DecisionTree, Boolean> seen = new IdentityHashMap<>();
+        ArrayDeque<DecisionTree> stack = new ArrayDeque<>();
+        if (root != null) {
+            stack.push(root);
+        }
+        while (!stack.isEmpty()) {
+            DecisionTree node = stack.pop();
+            if (seen.put(node, Boolean.TRUE) != null) {
+                continue;
+            }
+            if (node.getLeft() != null) stack.push(node.getLeft());
+            if (node.getRight() != null) stack.push(node.getRight());
+        }
+        return seen.size();
+    }
+
+    /**
+     * Counts the nodes of the tree a DAG stands for, visiting each shared node once
+     * @param root root of tree or DAG
+     * @return number of positions in the expanded tree
+     */
+    public static long positions(DecisionTree root) {
+        Map<DecisionTree, Long> counts = new IdentityHashMap<>();
+        ArrayDeque<DecisionTree> stack = new ArrayDeque<>();
+        if (root != null) {
+            stack.push(root);
+        }
+        while (!stack.isEmpty()) {
+            DecisionTree node = stack.peek();
+            if (counts.containsKey(node)) {
+                stack.pop(); //shared node reached from two parents
+                continue;
+            }
+            DecisionTree left = node.getLeft();
+            DecisionTree right = node.getRight();
+            boolean ready = true;
+            if (right != null && !counts.containsKey(right)) {
+                stack.push(right);
+                ready = false;
+            }
+            if (left != null && !counts.containsKey(left)) {
+                stack.push(left);
+                ready = false;
+            }
+            if (ready) {
+                stack.pop();
+                long count = 1 + (left == null ? 0 : counts.get(left)) + (right == null ? 0 : counts.get(right));
+                counts.put(node, count);
+            }
+        }
+        return (root == null) ? 0 : counts.get(root);
+    }
+
+    /**
+     * Reports how much sharing identical subtrees saves on a knowledge base,
+     * and optionally saves it in the binary DAG format
+     * Usage: java DecisionDag input [output]
+     * @param args command line arguments
+     */
+    public static void main(String[] args) {
+        if (args.length < 1 || args.length > 2) {
+            System.out.println("Usage: java DecisionDag input [output]");
+            return;
+        }
+
+        try {
+            DecisionDag dag = BinaryKnowledgeBase.isBinaryFile(args[0])
+                ? BinaryKnowledgeBase.readDag(args[0]) : new DecisionDag(DecisionTree.readFile(args[0]));
+            long positions = positions(dag.getRoot());
+            int distinct = distinctNodes(dag.getRoot());
+            System.out.printf("%d tree nodes held in %d shared nodes (%.1f%%)%n", positions, distinct,
+                (positions == 0) ? 0 : 100.0 * distinct / positions);
+            if (args.length == 2) {
+                BinaryKnowledgeBase.writeDag(dag, args[1]);
+                System.out.println("Shared knowledge saved to: " + args[1]);
+            }
+        } catch (IOException e) {
+            System.out.println("Error in sharing knowledge base: " + e.getMessage());
+        }
+    }
+}
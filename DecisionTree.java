@@ -1,8 +1,13 @@
 import java.io.*;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.IdentityHashMap;
 import java.util.Map;
-import java.util.Queue;
+import java.util.Set;
 
 /**
  * A binary decision tree for animal guessing game
@@ -10,6 +15,22 @@ import java.util.Queue;
  * Allows for tree traversal, navigation via node paths, and file I/O
  */
 public class DecisionTree extends BinaryTree<String> {
+
+    /** Size of the read buffer used when loading a tree from file */
+    private static final int READ_BUFFER_SIZE = 1 << 16;
+
+    /** Number of games that reached this node */
+    private long visits;
+
+    /** Atomic access to visits, so concurrent games don't lose counts and nodes need no extra object */
+    private static final VarHandle VISITS;
+    static {
+        try {
+            VISITS = MethodHandles.lookup().findVarHandle(DecisionTree.class, "visits", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
     
     /**
      * Creates a leaf node with given data
@@ -83,6 +104,65 @@ public class DecisionTree extends BinaryTree<String> {
         }
     }
 
+    /**
+     * Counts one more game reaching this node
+     */
+    public void recordVisit() {
+        VISITS.getAndAdd(this, 1L);
+    }
+
+    /**
+     * Gets number of games that reached this node
+     * @return visit count
+     */
+    public long getVisits() {
+        return (long)VISITS.getOpaque(this);
+    }
+
+    /**
+     * Sets number of games that reached this node, e.g. when loading saved counts
+     * @param visits visit count
+     */
+    public void setVisits(long visits) {
+        VISITS.setOpaque(this, visits);
+    }
+
+    /**
+     * Creates a leaf of the kind splits of this tree are built from
+     * @param data animal name or question for the new node
+     * @return new leaf
+     */
+    public DecisionTree newNode(String data) {
+        return new DecisionTree(data);
+    }
+
+    /**
+     * Turns this leaf into a question that separates a new animal from the old one
+     * The old data moves to a new leaf on the opposite side of the new animal
+     * @param question question that distinguishes the two animals
+     * @param newAnimal animal to add
+     * @param newAnimalIsYes whether the answer to the question is yes for the new animal
+     * @throws UnsupportedOperationException if this node isn't a leaf
+     */
+    public void splitLeaf(String question, String newAnimal, boolean newAnimalIsYes) {
+        if (!isLeaf()) {
+            throw new UnsupportedOperationException("Only a leaf node can be split");
+        }
+
+        TextPool texts = TextPool.shared();
+        DecisionTree newAnimalNode = newNode(texts.canonical(newAnimal));
+        DecisionTree oldAnimalNode = newNode(getData());
+
+        setData(texts.canonical(question));
+        if (newAnimalIsYes) {
+            setLeft(newAnimalNode);
+            setRight(oldAnimalNode);
+        } else {
+            setLeft(oldAnimalNode);
+            setRight(newAnimalNode);
+        }
+    }
+
     /**
      * Navigates through tree following path consisting of Y/N directions
      * @param path string of 'Y' (yes/left) and 'N' (no/right) characters
@@ -90,18 +170,20 @@ public class DecisionTree extends BinaryTree<String> {
      * @throws IllegalArgumentException for invalid paths
      */
     public DecisionTree followPath(String path) {
+        return followPath(TreePath.parse(path));
+    }
+
+    /**
+     * Navigates through tree following a packed Y/N path
+     * @param path path from this node
+     * @return node at end of path
+     * @throws IllegalArgumentException if the path leads to a null node
+     */
+    public DecisionTree followPath(TreePath path) {
         DecisionTree current = this;
 
         for (int i = 0; i < path.length(); i++) {
-            char direction = path.charAt(i);
-
-            if (direction == 'Y') {
-                current = current.getLeft();
-            } else if (direction == 'N') {
-                current = current.getRight();
-            } else {
-                throw new IllegalArgumentException("Path must only include 'Y' or 'N' characters.");
-            }
+            current = path.isYes(i) ? current.getLeft() : current.getRight();
 
             if (current == null) { //if new node you are at is null, throw exception
                 throw new IllegalArgumentException("Path leads to a null node.");
@@ -114,107 +196,295 @@ public class DecisionTree extends BinaryTree<String> {
     /**
      * Writes decision tree to a file in breadth-first order
      * Each line has a path and node data separated by a space
+     * The file is replaced atomically once fully written
      * @param filename file to write to
      * @throws IOException if file writing fails
      */
     public void writeToFile(String filename) throws IOException{
-        PrintWriter out = new PrintWriter(new FileWriter(filename));
+        TreeFileWriter.write(this, filename);
+    }
+
+    /**
+     * Reads a decision tree from a file and reconstructs tree structure
+     * Lines in breadth-first order, as written by writeToFile, find each parent
+     * at the front of the current frontier without a path map; any other order
+     * with parents before children falls back to looking parents up by path
+     * @param filename file to read from
+     * @return root node of reconstructed tree
+     * @throws IOException if file reading fails or format is invalid
+     */
+    public static DecisionTree readFile(String filename) throws IOException{
+        return readFile(filename, null);
+    }
+
+    /**
+     * Reads a decision tree from a file and indexes its animals while reading
+     * A node is indexed once it leaves the frontier without having gained children
+     * @param filename file to read from
+     * @param index index to add every leaf to, or null
+     * @return root node of reconstructed tree
+     * @throws IOException if file reading fails or format is invalid
+     */
+    public static DecisionTree readFile(String filename, AnimalIndex index) throws IOException{
+        long start = System.nanoTime();
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(filename), StandardCharsets.UTF_8), READ_BUFFER_SIZE)) {
+            Linker linker = new Linker(index);
+            SymbolTable texts = new SymbolTable(); //pools each distinct text once, however often it repeats
+            String line;
 
-        //two parallel queues - one for nodes and one for their paths
-        Queue<DecisionTree> nodeQueue = new LinkedList<>();
-        Queue<String> pathQueue = new LinkedList<>();
+            while((line = reader.readLine()) != null) {
+                if (line.isEmpty()) continue;
 
-        //beginning with root and its empty path
-        nodeQueue.add(this);
-        pathQueue.add("");
+                //path is everything before the first space; root line starts with a space
+                int pathLength = line.indexOf(' ');
 
-        while(!nodeQueue.isEmpty()) {
-            DecisionTree currentNode = nodeQueue.poll(); //returns and removes first element of queue
-            String currentPath = pathQueue.poll();
+                if (pathLength == -1) {
+                    throw new IOException("Invalid file format: " + line);
+                }
 
-            out.println(currentPath + " " + currentNode.getData());
+                //share one String per distinct text across the whole tree
+                DecisionTree newNode = new DecisionTree(texts.canonical(line.substring(pathLength + 1).trim()));
 
-            //if adding left child, add "Y" to path
-            if (currentNode.getLeft() != null) {
-                nodeQueue.add(currentNode.getLeft());
-                pathQueue.add(currentPath + "Y");
-            }
-            
-            //if adding right child, add "N" to path
-            if (currentNode.getRight() != null) {
-                nodeQueue.add(currentNode.getRight());
-                pathQueue.add(currentPath + "N");
+                if (pathLength == 0) {
+                    linker.link(newNode, null, ' ');
+                } else {
+                    linker.link(newNode, parseParentPath(line, pathLength), line.charAt(pathLength - 1));
+                }
             }
 
+            DecisionTree root = linker.finish();
+            GameMetrics.shared().loaded(new TreeFileWriter.WriteStats(linker.nodeCount(),
+                new File(filename).length(), System.nanoTime() - start));
+            return root;
         }
-        out.close();
     }
 
     /**
-     * Reads a decision tree from a file and reconstructs tree structure
-     * @param filename file to read from
-     * @return root node of reconstructed tree
-     * @throws IOException if file reading fails or format is invalid
+     * Parses all but the last step of a line's path
+     * @param text line or path text starting at index 0
+     * @param pathLength length of the whole path
+     * @return path of the parent node
+     * @throws IOException if the parent path has characters other than Y and N
      */
-    public static DecisionTree readFile(String filename) throws IOException{
-        BufferedReader reader = new BufferedReader(new FileReader(filename));
-        Map<String, DecisionTree> nodeMap = new HashMap<>();
-        
-        String line;
+    static TreePath parseParentPath(CharSequence text, int pathLength) throws IOException {
+        try {
+            return TreePath.parse(text, 0, pathLength - 1);
+        } catch (IllegalArgumentException e) {
+            //no node can have this path, so its parent can't be found
+            throw new IOException("Parent node not found for path:" + text.subSequence(0, pathLength - 1));
+        }
+    }
 
-        while((line = reader.readLine()) != null) {
-            if (line.isEmpty()) continue;
+    /**
+     * Links nodes read in breadth-first order to their parents
+     * Keeps the frontier of nodes still waiting for children, so each parent
+     * is found at the front of the frontier without a path map; shared by the
+     * sequential and parallel loaders so both report the same errors
+     * The first line whose parent isn't at the front of the frontier switches
+     * to a map of every node by path, so hand-edited files that only list
+     * parents before children still load
+     */
+    static class Linker {
+        private final ArrayDeque<DecisionTree> frontier = new ArrayDeque<>();
+        private final ArrayDeque<TreePath> frontierPaths = new ArrayDeque<>();
+        private final AnimalIndex index;
+        private DecisionTree root;
+        private long nodes;
+
+        /** Every node by path once the file turned out not to be breadth-first, otherwise null */
+        private Map<TreePath, DecisionTree> nodesByPath;
+
+        /** Nodes indexed as leaves before the switch to nodesByPath, which may have gained children since */
+        private Map<DecisionTree, TreePath> indexed;
+
+        /**
+         * @param index index to add every leaf to, or null
+         */
+        Linker(AnimalIndex index) {
+            this.index = index;
+        }
 
-            String path;
-            String nodeData;
+        /**
+         * Attaches the next node in file order
+         * @param node node read from the line
+         * @param parentPath path of its parent, or null for the root line
+         * @param lastStep last character of the node's path
+         * @throws IOException if the parent is missing or lastStep isn't Y or N
+         */
+        void link(DecisionTree node, TreePath parentPath, char lastStep) throws IOException {
+            if (lastStep != ' ' && lastStep != 'Y' && lastStep != 'N') {
+                throw new IOException("Last character of child's path is invalid: " + parentPath + lastStep);
+            }
+            if (nodesByPath != null) {
+                linkByPath(node, parentPath, lastStep);
+                return;
+            }
+            TreePath path = TreePath.ROOT;
 
-            if (line.startsWith(" ")) {
-                path = ""; //root has empty path
-                nodeData = line.substring(1).trim(); //remove any leading space from string
+            if (parentPath == null) {
+                root = node;
             } else {
-                int firstSpace = line.indexOf(' ');
+                //drop frontier nodes that come before the parent in breadth-first order
+                int parentLength = parentPath.length();
+                while (!frontier.isEmpty()) {
+                    TreePath headPath = frontierPaths.peekFirst();
+                    if (headPath.length() == parentLength && headPath.equals(parentPath)) {
+                        break;
+                    } else if (headPath.length() <= parentLength) {
+                        indexLeaf(frontier.pollFirst(), frontierPaths.pollFirst());
+                    } else {
+                        break;
+                    }
+                }
 
-                if (firstSpace == -1) {
-                    reader.close();
-                    throw new IOException("Invalid file format: " + line);
+                if (!parentPath.equals(frontierPaths.peekFirst())) {
+                    switchToPaths();
+                    linkByPath(node, parentPath, lastStep);
+                    return;
                 }
 
-                path = line.substring(0, firstSpace);
-                nodeData = line.substring(firstSpace + 1).trim();
+                DecisionTree parentNode = frontier.peekFirst();
 
+                if (lastStep == 'Y') {
+                    parentNode.setLeft(node);
+                } else {
+                    parentNode.setRight(node);
+                }
+                path = parentPath.child(lastStep == 'Y');
             }
-    
-
-            DecisionTree newNode = new DecisionTree(nodeData);
-            nodeMap.put(path, newNode);
 
-            //if new node isn't the root (doesn't have parent), find parent, and 
-            //determine if node is left or right child and insert it
-            if (!path.isEmpty()) {
-                String parentPath = path.substring(0, path.length()-1);
-                char lastChar = path.charAt(path.length()-1);
+            frontier.addLast(node);
+            frontierPaths.addLast(path);
+            nodes++;
+        }
 
-                DecisionTree parentNode = nodeMap.get(parentPath);
+        /**
+         * Maps every node linked so far by path, remembering which were already indexed
+         */
+        private void switchToPaths() {
+            nodesByPath = new HashMap<>();
+            indexed = new IdentityHashMap<>();
+            Set<DecisionTree> waiting = Collections.newSetFromMap(new IdentityHashMap<>());
+            waiting.addAll(frontier);
+            frontier.clear();
+            frontierPaths.clear();
+
+            ArrayDeque<DecisionTree> stack = new ArrayDeque<>();
+            ArrayDeque<TreePath> paths = new ArrayDeque<>();
+            if (root != null) {
+                stack.push(root);
+                paths.push(TreePath.ROOT);
+            }
+            while (!stack.isEmpty()) {
+                DecisionTree node = stack.pop();
+                TreePath path = paths.pop();
+                nodesByPath.put(path, node);
+                if (index != null && node.isLeaf() && !waiting.contains(node)) {
+                    indexed.put(node, path);
+                }
+                if (node.getRight() != null) {
+                    stack.push(node.getRight());
+                    paths.push(path.child(false));
+                }
+                if (node.getLeft() != null) {
+                    stack.push(node.getLeft());
+                    paths.push(path.child(true));
+                }
+            }
+        }
 
+        /**
+         * Links a node to a parent looked up by path; a repeated path replaces the earlier node
+         */
+        private void linkByPath(DecisionTree node, TreePath parentPath, char lastStep) throws IOException {
+            if (parentPath == null) {
+                root = node;
+                nodesByPath.put(TreePath.ROOT, node);
+            } else {
+                DecisionTree parentNode = nodesByPath.get(parentPath);
                 if (parentNode == null) {
-                    reader.close();
                     throw new IOException("Parent node not found for path:" + parentPath);
                 }
-
-                if (lastChar == 'Y') {
-                    parentNode.setLeft(newNode);
-                } else if (lastChar == 'N') {
-                    parentNode.setRight(newNode);
+                if (lastStep == 'Y') {
+                    parentNode.setLeft(node);
                 } else {
-                    reader.close();
-                    throw new IOException("Last character of child's path is invalid: " + path);
+                    parentNode.setRight(node);
+                }
+                nodesByPath.put(parentPath.child(lastStep == 'Y'), node);
+            }
+            nodes++;
+        }
+
+        /**
+         * Gets the number of nodes linked so far
+         * @return node count
+         */
+        long nodeCount() {
+            return nodes;
+        }
+
+        /**
+         * Indexes the nodes left in the frontier
+         * @return root node of the linked tree
+         */
+        DecisionTree finish() {
+            while (!frontier.isEmpty()) {
+                indexLeaf(frontier.pollFirst(), frontierPaths.pollFirst());
+            }
+            if (nodesByPath != null) {
+                nodesByPath = null;
+                reindex();
+            }
+            return root;
+        }
+
+        /**
+         * Brings the index up to date with the leaves of the finished tree,
+         * after nodes were linked by path
+         */
+        private void reindex() {
+            if (index == null || root == null) {
+                return;
+            }
+            ArrayDeque<DecisionTree> stack = new ArrayDeque<>();
+            ArrayDeque<TreePath> paths = new ArrayDeque<>();
+            stack.push(root);
+            paths.push(TreePath.ROOT);
+            while (!stack.isEmpty()) {
+                DecisionTree node = stack.pop();
+                TreePath path = paths.pop();
+                if (node.isLeaf()) {
+                    //a leaf indexed at this same path is already right
+                    if (!path.equals(indexed.remove(node))) {
+                        index.add(node, path);
+                    }
                 }
+                if (node.getRight() != null) {
+                    stack.push(node.getRight());
+                    paths.push(path.child(false));
+                }
+                if (node.getLeft() != null) {
+                    stack.push(node.getLeft());
+                    paths.push(path.child(true));
+                }
+            }
+            //what is left gained children or was replaced by a later line
+            for (DecisionTree stale : indexed.keySet()) {
+                index.remove(stale);
             }
+            indexed = null;
         }
 
-        reader.close();
-        return nodeMap.get(""); //return root
-    } 
+        /**
+         * Adds a node that has left the frontier to the index if it is a leaf
+         */
+        private void indexLeaf(DecisionTree node, TreePath path) {
+            if (index != null && node.isLeaf()) {
+                index.add(node, path);
+            }
+        }
+    }
 
     /**
      * Main method that tests DecisionTree operations and file I/O
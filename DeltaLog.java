@@ -0,0 +1,529 @@
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Sequence-numbered log of learned splits that replicas follow
+ * Registered as a learning listener on the primary's engine, it gives every
+ * split the next sequence number and appends it to a directory of segment
+ * files named after their first sequence number, so a replica can start
+ * reading at any sequence number without scanning the whole history.
+ * Each delta is its sequence number followed by a record in the learning
+ * journal's framing. The same bytes are streamed to replicas connected over
+ * a socket, so the cost of keeping a replica current depends on the number
+ * of splits and not on the size of the tree
+ * The engine hands listeners splits in the order they were published, so
+ * sequence numbers follow that order: a split always comes after the split
+ * that created its leaf
+ */
+public class DeltaLog implements GameEngine.LearningListener, Closeable {
+    /** Default port to stream deltas on */
+    public static final int DEFAULT_PORT = 4211;
+
+    /** Deltas per segment file before a new one is started */
+    private static final int SEGMENT_DELTAS = Integer.getInteger("animalguess.deltaLog.segmentDeltas", 4096);
+
+    private static final String SEGMENT_PREFIX = "deltas-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    /** One learned split and its place in the primary's order of splits */
+    public static class Delta {
+        private final long sequence;
+        private final TreePath path;
+        private final String question;
+        private final String animal;
+        private final boolean animalIsYes;
+        /** Size of the journal record, without the sequence number */
+        private final int length;
+
+        Delta(long sequence, TreePath path, String question, String animal, boolean animalIsYes, int length) {
+            this.sequence = sequence;
+            this.path = path;
+            this.question = question;
+            this.animal = animal;
+            this.animalIsYes = animalIsYes;
+            this.length = length;
+        }
+
+        /**
+         * Accessor for sequence number, starting at 1
+         * @return sequence number
+         */
+        public long getSequence() {
+            return sequence;
+        }
+
+        /**
+         * Accessor for path to the leaf that was split
+         * @return Y/N path
+         */
+        public TreePath getPath() {
+            return path;
+        }
+
+        /**
+         * Accessor for question that now occupies the split node
+         * @return question
+         */
+        public String getQuestion() {
+            return question;
+        }
+
+        /**
+         * Accessor for animal added below the question
+         * @return animal
+         */
+        public String getAnimal() {
+            return animal;
+        }
+
+        /**
+         * Accessor for side of the question the animal is on
+         * @return true if the animal is on the yes side
+         */
+        public boolean isAnimalYes() {
+            return animalIsYes;
+        }
+    }
+
+    /** Receives deltas in sequence order */
+    public interface DeltaHandler {
+        /**
+         * Handles one delta
+         * @param delta next delta
+         * @throws IOException if the delta can't be applied
+         */
+        void apply(Delta delta) throws IOException;
+    }
+
+    /** Directory holding the segment files */
+    private final Path directory;
+
+    /** Policy for forcing deltas to disk */
+    private final LearningJournal.FsyncPolicy fsyncPolicy;
+
+    /** Sequence number of the last delta written, 0 if none */
+    private long lastSequence;
+
+    /** Open append stream on the newest segment, created on first append */
+    private FileOutputStream out;
+
+    /** Deltas in the newest segment */
+    private int segmentDeltas;
+
+    /** Runs one thread per connected replica */
+    private final ExecutorService followers = Executors.newCachedThreadPool();
+
+    /** Listening socket, set once serving */
+    private ServerSocket serverSocket;
+
+    private boolean closed;
+
+    /**
+     * Opens the log in a directory, continuing after its last intact delta
+     * A torn delta at the end of the newest segment is truncated away
+     * @param directory directory of segment files, created if missing
+     * @param fsyncPolicy when to force deltas to disk
+     * @throws IOException if the directory can't be read
+     */
+    public DeltaLog(String directory, LearningJournal.FsyncPolicy fsyncPolicy) throws IOException {
+        this.directory = Paths.get(directory);
+        this.fsyncPolicy = fsyncPolicy;
+        Files.createDirectories(this.directory);
+
+        List<Path> segments = segments(this.directory);
+        if (!segments.isEmpty()) {
+            Path newest = segments.get(segments.size() - 1);
+            long first = firstSequence(newest);
+            long fileLength = Files.size(newest);
+            long goodLength = 0;
+            int count = 0;
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(newest)))) {
+                Delta delta;
+                while ((delta = readDelta(in, fileLength - goodLength)) != null && delta.sequence == first + count) {
+                    goodLength += recordLength(delta);
+                    count++;
+                }
+            }
+            if (goodLength < fileLength) {
+                try (FileChannel channel = FileChannel.open(newest, StandardOpenOption.WRITE)) {
+                    channel.truncate(goodLength);
+                }
+            }
+            lastSequence = first + count - 1;
+            segmentDeltas = count;
+        }
+    }
+
+    /**
+     * Gets the sequence number of the newest delta
+     * @return last sequence number, or 0 if nothing has been learned
+     */
+    public synchronized long lastSequence() {
+        return lastSequence;
+    }
+
+    /**
+     * Appends a learned split as the next delta; flush forces it and wakes connected replicas
+     * @throws IOException if writing fails or the log is closed
+     */
+    @Override
+    public synchronized void learned(TreePath path, String question, String animal, boolean animalIsYes)
+            throws IOException {
+        if (closed) {
+            throw new IOException("Delta log is closed");
+        }
+        if (out == null || segmentDeltas >= SEGMENT_DELTAS) {
+            if (out != null) {
+                flush(); //the rest of the batch goes to the new segment
+                out.close();
+            }
+            out = new FileOutputStream(directory.resolve(segmentName(lastSequence + 1)).toFile(), true);
+            segmentDeltas = 0;
+        }
+        out.write(encode(lastSequence + 1, path, question, animal, animalIsYes)); //one write call per delta
+        lastSequence++;
+        segmentDeltas++;
+    }
+
+    /**
+     * Forces the deltas appended so far to disk if the policy is ALWAYS, then wakes connected replicas
+     * @throws IOException if forcing fails
+     */
+    @Override
+    public synchronized void flush() throws IOException {
+        if (out != null && fsyncPolicy == LearningJournal.FsyncPolicy.ALWAYS) {
+            out.getChannel().force(false);
+        }
+        notifyAll();
+    }
+
+    /**
+     * Reads a log directory forward from a sequence number
+     * The reader keeps its segment open and remembers its place, so each
+     * call only reads the deltas written since the last one. It is safe to
+     * use while the primary is appending; a delta still being written ends
+     * a read and is picked up by the next call
+     */
+    public static class Reader implements Closeable {
+        private final Path directory;
+
+        /** Sequence number of the next delta to hand out */
+        private long next;
+
+        /** Open segment, or null until one holding next is found */
+        private FileChannel channel;
+
+        /** Byte offset of the next unread delta in the open segment */
+        private long position;
+
+        /** Sequence number the delta at position must have */
+        private long expected;
+
+        /**
+         * Creates a reader starting at a sequence number
+         * @param directory directory of segment files
+         * @param from first sequence number wanted
+         */
+        public Reader(Path directory, long from) {
+            this.directory = directory;
+            this.next = from;
+        }
+
+        /**
+         * Gets the sequence number of the next delta the reader will hand out
+         * @return next sequence number
+         */
+        public long getNextSequence() {
+            return next;
+        }
+
+        /**
+         * Hands every complete delta written since the last call to a handler
+         * A delta whose handler fails is handed out again by the next call
+         * @param handler handler given each delta in order
+         * @return number of deltas handled
+         * @throws IOException if reading fails, the log no longer holds the
+         *     next delta, a segment is corrupt or the handler fails
+         */
+        public long read(DeltaHandler handler) throws IOException {
+            if (channel == null && !open()) {
+                return 0;
+            }
+            long handled = 0;
+            while (true) {
+                Delta delta = readAt(position);
+                if (delta == null) {
+                    //a newer segment starting at expected means this one is finished
+                    Path following = directory.resolve(segmentName(expected));
+                    if (!Files.exists(following)) {
+                        return handled; //nothing new, or the newest delta is still being written
+                    }
+                    if (position < channel.size()) {
+                        throw new IOException("Corrupt delta log segment before: " + following.getFileName());
+                    }
+                    channel.close();
+                    channel = FileChannel.open(following, StandardOpenOption.READ);
+                    position = 0;
+                    continue;
+                }
+                if (delta.sequence != expected) {
+                    throw new IOException("Delta " + delta.sequence + " found where " + expected + " was expected");
+                }
+                if (delta.sequence >= next) {
+                    handler.apply(delta);
+                    next = delta.sequence + 1;
+                    handled++;
+                }
+                position += recordLength(delta);
+                expected++;
+            }
+        }
+
+        /**
+         * Opens the last segment beginning at or before next
+         * @return false if the log has no segments yet
+         */
+        private boolean open() throws IOException {
+            List<Path> segments = segments(directory);
+            if (segments.isEmpty()) {
+                return false;
+            }
+            if (next < firstSequence(segments.get(0))) {
+                throw new IOException("Delta log no longer holds sequence " + next);
+            }
+            int start = 0;
+            while (start + 1 < segments.size() && firstSequence(segments.get(start + 1)) <= next) {
+                start++;
+            }
+            channel = FileChannel.open(segments.get(start), StandardOpenOption.READ);
+            position = 0;
+            expected = firstSequence(segments.get(start));
+            return true;
+        }
+
+        /**
+         * Reads the delta at a byte offset of the open segment
+         * @return delta, or null if no complete, intact delta starts there
+         */
+        private Delta readAt(long offset) throws IOException {
+            ByteBuffer header = ByteBuffer.allocate(12);
+            if (readFully(header, offset) < 12) {
+                return null;
+            }
+            int length = header.getInt(8);
+            if (length < 0 || offset + 16 + length > channel.size()) {
+                return null;
+            }
+            ByteBuffer bytes = ByteBuffer.allocate(16 + length);
+            if (readFully(bytes, offset) < bytes.capacity()) {
+                return null;
+            }
+            return readDelta(new DataInputStream(new ByteArrayInputStream(bytes.array())), bytes.capacity());
+        }
+
+        /**
+         * Fills a buffer from a file position, stopping early only at end of file
+         * @return number of bytes read
+         */
+        private int readFully(ByteBuffer buffer, long offset) throws IOException {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, offset + buffer.position()) == -1) {
+                    break;
+                }
+            }
+            return buffer.position();
+        }
+
+        /**
+         * Closes the open segment
+         * @throws IOException if closing fails
+         */
+        @Override
+        public void close() throws IOException {
+            if (channel != null) {
+                channel.close();
+                channel = null;
+            }
+        }
+    }
+
+    /**
+     * Reads the deltas in a log directory from a sequence number on
+     * Safe to call while the primary is appending; a delta still being
+     * written ends the read. Keep a Reader instead to read repeatedly
+     * @param directory directory of segment files
+     * @param from first sequence number wanted
+     * @param handler handler given each delta in order
+     * @return number of deltas handled
+     * @throws IOException if reading fails, the log no longer holds delta from,
+     *     a segment is corrupt or the handler fails
+     */
+    public static long read(Path directory, long from, DeltaHandler handler) throws IOException {
+        try (Reader reader = new Reader(directory, from)) {
+            return reader.read(handler);
+        }
+    }
+
+    /**
+     * Streams deltas to replicas connecting on the loopback interface, on background threads
+     * A replica sends the sequence number it wants next and then receives
+     * every delta from there on, including ones learned while it stays connected
+     * @param port port to listen on, or 0 for any free port
+     * @return port listened on
+     * @throws IOException if the socket can't be opened
+     */
+    public synchronized int serve(int port) throws IOException {
+        serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        ServerSocket socket = serverSocket;
+        followers.execute(() -> {
+            try {
+                while (!socket.isClosed()) {
+                    Socket follower = socket.accept();
+                    followers.execute(() -> feed(follower));
+                }
+            } catch (IOException e) {
+                //socket closed by close()
+            }
+        });
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Sends deltas to one replica until it disconnects or the log is closed
+     * The follower's reader stays where it stopped, so each wake-up only
+     * reads the deltas learned since the last one
+     * @param socket connection to replica
+     */
+    private void feed(Socket socket) {
+        try (socket;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+             DataOutputStream replicaOut = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+             Reader reader = new Reader(directory, in.readLong())) {
+            while (true) {
+                synchronized (this) {
+                    while (!closed && lastSequence < reader.getNextSequence()) {
+                        wait();
+                    }
+                    if (closed) {
+                        return;
+                    }
+                }
+                long sent = reader.read(delta -> replicaOut.write(
+                    encode(delta.sequence, delta.path, delta.question, delta.animal, delta.animalIsYes)));
+                replicaOut.flush();
+                if (sent == 0) {
+                    throw new IOException("Delta " + reader.getNextSequence() + " not found in log");
+                }
+            }
+        } catch (IOException e) {
+            //replica disconnected
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Stops serving replicas and closes the newest segment, forcing it to disk unless the policy is NEVER
+     * @throws IOException if closing fails
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        closed = true;
+        notifyAll();
+        if (serverSocket != null) {
+            serverSocket.close();
+        }
+        followers.shutdownNow();
+        if (out != null) {
+            if (fsyncPolicy != LearningJournal.FsyncPolicy.NEVER) {
+                out.getChannel().force(false);
+            }
+            out.close();
+            out = null;
+        }
+    }
+
+    /**
+     * Frames a delta as its sequence number and a journal record
+     */
+    private static byte[] encode(long sequence, TreePath path, String question, String animal, boolean animalIsYes)
+            throws IOException {
+        byte[] record = LearningJournal.encode(path.toString(), question, animal, animalIsYes);
+        return ByteBuffer.allocate(8 + record.length).putLong(sequence).put(record).array();
+    }
+
+    /**
+     * Reads one delta written by encode
+     * @param in stream positioned at a delta
+     * @param remaining bytes left in the stream
+     * @return delta, or null if the stream ends in a torn or corrupt delta
+     * @throws IOException if reading fails
+     */
+    static Delta readDelta(DataInputStream in, long remaining) throws IOException {
+        long sequence;
+        try {
+            if (remaining < 8) {
+                return null;
+            }
+            sequence = in.readLong();
+        } catch (EOFException e) {
+            return null;
+        }
+        LearningJournal.Record record = LearningJournal.decode(in, remaining - 8);
+        if (record == null) {
+            return null;
+        }
+        TreePath path;
+        try {
+            path = TreePath.parse(record.path);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        return new Delta(sequence, path, record.question, record.animal, record.animalIsYes, record.length);
+    }
+
+    private static long recordLength(Delta delta) {
+        return 8 + delta.length;
+    }
+
+    private static String segmentName(long firstSequence) {
+        return String.format("%s%020d%s", SEGMENT_PREFIX, firstSequence, SEGMENT_SUFFIX);
+    }
+
+    private static long firstSequence(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    /**
+     * Lists the segment files of a log directory, oldest first
+     */
+    private static List<Path> segments(Path directory) throws IOException {
+        List<Path> segments = new ArrayList<>();
+        if (!Files.isDirectory(directory)) {
+            return segments;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory,
+                SEGMENT_PREFIX + "[0-9]*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                segments.add(file);
+            }
+        }
+        Collections.sort(segments); //zero-padded names sort in sequence order
+        return segments;
+    }
+}
@@ -0,0 +1,505 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Headless animal guessing logic, driven by answers given as data
+ * Front ends (console, socket server, scripted replay) create a Game per
+ * round, show its prompt however they like and pass the player's answers
+ * back in. Any number of games can run at once against the same tree:
+ * traversal reads children without locking, and learning replaces a leaf in
+ * its parent under that parent's lock, so splits of different leaves run in
+ * parallel and a split that loses a race is detected instead of lost
+ * Each split takes a sequence number as it is published, and the index and
+ * listeners are given splits in that order after the parent's lock is
+ * released, in batches flushed together, so a journal sync never holds up
+ * publication and a split always comes after the split that created its leaf
+ * An engine playing a DecisionDag never changes shared nodes: each split
+ * copies the path from the root under the root lock and swaps in the new root
+ */
+public class GameEngine {
+
+    /** Stage a game is at */
+    public enum State {
+        /** Waiting for a yes/no answer to a question */
+        QUESTION,
+        /** Waiting for a yes/no answer to "Is your animal a ...?" */
+        GUESS,
+        /** Guess was wrong; waiting for the player to teach a new animal */
+        LEARN,
+        /** Round is over */
+        DONE
+    }
+
+    /**
+     * Called after each learned split, once per split and one split at a
+     * time, in the order splits were published; the call may come from
+     * another game's thread, but the game that learned the split waits for it
+     */
+    public interface LearningListener {
+        /**
+         * Handles one learned split
+         * @param path Y/N path from the root to the leaf that was split
+         * @param question question that now occupies that node
+         * @param animal animal added below the question
+         * @param animalIsYes whether the animal is on the yes side
+         * @throws IOException if recording the split fails
+         */
+        void learned(TreePath path, String question, String animal, boolean animalIsYes) throws IOException;
+
+        /**
+         * Forces the splits handed over so far to disk, if the listener keeps them there
+         * Called once after each batch of splits, so splits published while
+         * a sync is under way share the next sync
+         * @throws IOException if forcing fails
+         */
+        default void flush() throws IOException {
+        }
+    }
+
+    /** A published split on its way to the index and listeners */
+    private static class Split {
+        final long sequence;
+        final TreePath path;
+        final String question;
+        final DecisionTree yes; //children as published, before later splits replace them
+        final DecisionTree no;
+        final String animal;
+        final boolean animalIsYes;
+        boolean delivered;
+        Exception failure; //thrown by a listener, rethrown to the game that learned the split
+
+        Split(long sequence, TreePath path, DecisionTree questionNode, String animal, boolean animalIsYes) {
+            this.sequence = sequence;
+            this.path = path;
+            this.question = questionNode.getData();
+            this.yes = questionNode.getLeft();
+            this.no = questionNode.getRight();
+            this.animal = animal;
+            this.animalIsYes = animalIsYes;
+        }
+    }
+
+    /** Root of the shared tree */
+    private volatile DecisionTree root;
+
+    /** Lock guarding replacement of the root when it is a leaf, and every split of a DAG */
+    private final Object rootLock = new Object();
+
+    /** Sequence number of the last split published */
+    private final AtomicLong publishedSplits = new AtomicLong();
+
+    /** Lock guarding the splits waiting for delivery; never held while listeners run */
+    private final Object deliveryLock = new Object();
+
+    /** Set while one game delivers a batch, so batches reach listeners one at a time */
+    private boolean delivering;
+
+    /** Published splits waiting for the splits before them to be delivered */
+    private final PriorityQueue<Split> undelivered = new PriorityQueue<>(Comparator.comparingLong(split -> split.sequence));
+
+    /** Sequence number of the last split delivered */
+    private long deliveredSplits;
+
+    /** Index of animals kept up to date on each split, or null */
+    private final AnimalIndex index;
+
+    /** DAG of shared subtrees that splits copy paths in, or null for an ordinary tree */
+    private final DecisionDag dag;
+
+    /** Counters for rounds and learning */
+    private final GameMetrics metrics = GameMetrics.shared();
+
+    /** Texts of learned questions and animals, pooled once per distinct text */
+    private final SymbolTable learnedTexts = new SymbolTable();
+
+    /** Listeners told about each learned split */
+    private final List<LearningListener> listeners = new CopyOnWriteArrayList<>();
+
+    /**
+     * Creates an engine playing with the given tree
+     * @param root root of tree
+     */
+    public GameEngine(DecisionTree root) {
+        this(root, null);
+    }
+
+    /**
+     * Creates an engine playing with the given tree and keeping its animal index current
+     * @param root root of tree
+     * @param index index of the tree's animals, or null
+     */
+    public GameEngine(DecisionTree root, AnimalIndex index) {
+        this.root = root;
+        this.index = index;
+        this.dag = null;
+    }
+
+    /**
+     * Creates an engine playing with a DAG of shared subtrees
+     * @param dag DAG to play with; learning copies paths in it
+     * @param index index of the tree's animals, or null
+     */
+    public GameEngine(DecisionDag dag, AnimalIndex index) {
+        this.root = dag.getRoot();
+        this.index = index;
+        this.dag = dag;
+    }
+
+    /**
+     * Accessor for current root, which changes if a leaf root is split
+     * @return root node
+     */
+    public DecisionTree getRoot() {
+        return root;
+    }
+
+    /**
+     * Accessor for the animal index
+     * @return index of animals, or null if the engine has none
+     */
+    public AnimalIndex getAnimalIndex() {
+        return index;
+    }
+
+    /**
+     * Registers a listener for learned splits
+     * @param listener listener to add
+     */
+    public void addLearningListener(LearningListener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Starts a new round at the root
+     * @return new game
+     */
+    public Game newGame() {
+        metrics.gameStarted();
+        return new Game();
+    }
+
+    /**
+     * Applies a split learned by another engine, as if a game here had learned it
+     * Listeners are told about it like any other split. A split already in
+     * the tree is skipped: a path is split at most once, so a question with
+     * the same text at the path means the split was applied before, even if
+     * its leaves have been split since
+     * @param path Y/N path from the root to the leaf that was split
+     * @param question question that now occupies that node
+     * @param animal animal added below the question
+     * @param animalIsYes whether the animal is on the yes side
+     * @return true if the tree was changed, false if it already had the split
+     * @throws IllegalArgumentException if the path leaves the tree or ends at a different question
+     * @throws IOException if a listener fails; the split is kept
+     */
+    public boolean applySplit(TreePath path, String question, String animal, boolean animalIsYes) throws IOException {
+        while (true) {
+            DecisionTree parent = null;
+            DecisionTree node = root;
+            for (int i = 0; i < path.length() && node != null; i++) {
+                parent = node;
+                node = path.isYes(i) ? node.getLeft() : node.getRight();
+            }
+            if (node == null) {
+                throw new IllegalArgumentException("Path not found in tree: " + path);
+            }
+            if (!node.isLeaf()) {
+                if (node.getData().equals(question)) {
+                    return false;
+                }
+                throw new IllegalArgumentException("Split doesn't match tree at path: " + path);
+            }
+            boolean leafIsYes = path.isRoot() || path.isYes(path.length() - 1);
+            if (learn(parent, node, leafIsYes, path, question, animal, animalIsYes) == null) {
+                return true;
+            }
+            //a game here split the same leaf first; look again
+        }
+    }
+
+    /**
+     * Replaces a leaf with a question separating it from a new animal
+     * @param parent parent of the leaf, or null if the leaf is the root
+     * @param leaf leaf the player reached
+     * @param leafIsYes whether the leaf is the parent's left child
+     * @param path Y/N path from the root to the leaf
+     * @param question question distinguishing the animals
+     * @param animal new animal
+     * @param animalIsYes whether the new animal is on the question's yes side
+     * @return null if learned, otherwise the node now in the leaf's place
+     * @throws IOException if a listener fails; the split itself is kept
+     */
+    private DecisionTree learn(DecisionTree parent, DecisionTree leaf, boolean leafIsYes, TreePath path,
+                               String question, String animal, boolean animalIsYes) throws IOException {
+        if (dag != null) {
+            return learnShared(leaf, path, question, animal, animalIsYes);
+        }
+
+        //build the replacement completely before it becomes visible to readers
+        DecisionTree newAnimalNode = leaf.newNode(learnedTexts.canonical(animal));
+        DecisionTree oldAnimalNode = leaf.newNode(leaf.getData());
+        DecisionTree questionNode = leaf.newNode(learnedTexts.canonical(question)); //same kind as the tree, e.g. with cached stats
+        questionNode.setLeft(animalIsYes ? newAnimalNode : oldAnimalNode);
+        questionNode.setRight(animalIsYes ? oldAnimalNode : newAnimalNode);
+        questionNode.setVisits(leaf.getVisits());
+
+        Split split;
+        Object lock = (parent == null) ? rootLock : parent;
+        synchronized (lock) {
+            DecisionTree current = (parent == null) ? root : (leafIsYes ? parent.getLeft() : parent.getRight());
+            if (current != leaf) {
+                return current; //another game split this leaf first
+            }
+            //numbered before it is visible, so a split of one of its leaves always gets a later number
+            split = new Split(publishedSplits.incrementAndGet(), path, questionNode, animal, animalIsYes);
+            if (parent == null) {
+                root = questionNode;
+            } else if (leafIsYes) {
+                parent.setLeft(questionNode);
+            } else {
+                parent.setRight(questionNode);
+            }
+        }
+        deliver(split);
+        return null;
+    }
+
+    /**
+     * Splits a leaf of the DAG by copying the path to it and swapping in the new root
+     * @return null if learned, otherwise the node now at the leaf's path
+     */
+    private DecisionTree learnShared(DecisionTree leaf, TreePath path,
+                                     String question, String animal, boolean animalIsYes) throws IOException {
+        Split split;
+        synchronized (rootLock) {
+            DecisionTree current = root.followPath(path);
+            if (current != leaf) {
+                return current; //another game split this leaf first
+            }
+            long sequence = publishedSplits.incrementAndGet();
+            split = new Split(sequence, path, dag.split(path, question, animal, animalIsYes), animal, animalIsYes);
+            root = dag.getRoot();
+        }
+        deliver(split);
+        return null;
+    }
+
+    /**
+     * Hands a published split to the index and listeners once every earlier split has been
+     * The game that finds the next split in sequence waiting delivers it
+     * with every later split that is ready, then flushes listeners once for
+     * the batch; games whose splits were in the batch just wait for it
+     * @param split split just published by this thread
+     * @throws IOException if a listener fails on this split
+     */
+    private void deliver(Split split) throws IOException {
+        boolean interrupted = false;
+        synchronized (deliveryLock) {
+            undelivered.add(split);
+        }
+        while (true) {
+            List<Split> batch = new ArrayList<>();
+            synchronized (deliveryLock) {
+                //the thread holding a missing number publishes it without blocking, so it is about to arrive
+                while (!split.delivered && (delivering || undelivered.peek().sequence != deliveredSplits + 1)) {
+                    try {
+                        deliveryLock.wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                if (split.delivered) {
+                    break;
+                }
+                while (!undelivered.isEmpty() && undelivered.peek().sequence == deliveredSplits + batch.size() + 1) {
+                    batch.add(undelivered.poll());
+                }
+                delivering = true;
+            }
+
+            deliverBatch(batch);
+
+            synchronized (deliveryLock) {
+                for (Split delivered : batch) {
+                    delivered.delivered = true;
+                }
+                deliveredSplits += batch.size();
+                delivering = false;
+                deliveryLock.notifyAll();
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (split.failure instanceof IOException) {
+            throw (IOException)split.failure;
+        } else if (split.failure != null) {
+            throw (RuntimeException)split.failure;
+        }
+    }
+
+    /**
+     * Applies a batch of splits to the index and listeners in order, recording failures on the splits
+     */
+    private void deliverBatch(List<Split> batch) {
+        for (Split split : batch) {
+            try {
+                if (index != null) {
+                    index.splitAt(split.path, split.yes, split.no);
+                }
+                metrics.learned(split.path.length());
+                for (LearningListener listener : listeners) {
+                    listener.learned(split.path, split.question, split.animal, split.animalIsYes);
+                }
+            } catch (IOException | RuntimeException e) {
+                split.failure = e;
+            }
+        }
+        for (LearningListener listener : listeners) {
+            try {
+                listener.flush();
+            } catch (IOException | RuntimeException e) {
+                for (Split split : batch) {
+                    if (split.failure == null) {
+                        split.failure = e;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * One round of questions, a guess and possibly learning
+     */
+    public class Game {
+        private DecisionTree node;
+        private DecisionTree parent;
+        private boolean nodeIsYes;
+        private TreePath path = TreePath.ROOT;
+        private State state;
+        private boolean guessedRight;
+        private String animal;
+        private int visits;
+        private boolean guessReached;
+
+        Game() {
+            arrive(root);
+        }
+
+        /**
+         * Moves to a node, recording the visit and updating the state
+         */
+        private void arrive(DecisionTree next) {
+            node = next;
+            if (node == null) {
+                state = State.DONE; //question with a missing answer branch
+                metrics.nodesVisited(visits);
+                return;
+            }
+            node.recordVisit();
+            visits++;
+            state = node.isLeaf() ? State.GUESS : State.QUESTION;
+            if (state == State.GUESS && !guessReached) {
+                guessReached = true;
+                metrics.guessReached(path.length());
+            }
+        }
+
+        /**
+         * Accessor for the stage of the round
+         * @return current state
+         */
+        public State getState() {
+            return state;
+        }
+
+        /**
+         * Gets the question being asked, or the animal being guessed
+         * The guessed animal stays available after the guess is answered
+         * @return text of current node, or null if an answer led to a missing branch
+         */
+        public String getPrompt() {
+            return (node == null) ? null : node.getData();
+        }
+
+        /**
+         * Gets the Y/N answers given to questions so far
+         * @return path from the root to the current node
+         */
+        public TreePath getPath() {
+            return path;
+        }
+
+        /**
+         * Checks whether the round ended with a correct guess
+         * @return true if the player confirmed the guess
+         */
+        public boolean isGuessedRight() {
+            return guessedRight;
+        }
+
+        /**
+         * Gets the animal the player taught, once learn has been called
+         * @return taught animal, or null
+         */
+        public String getAnimal() {
+            return animal;
+        }
+
+        /**
+         * Answers the current question or guess
+         * @param yes the player's answer
+         * @throws IllegalStateException if no question or guess is pending
+         */
+        public void answer(boolean yes) {
+            if (state == State.GUESS) {
+                guessedRight = yes;
+                state = yes ? State.DONE : State.LEARN;
+                if (yes) {
+                    metrics.guessedRight();
+                    metrics.nodesVisited(visits);
+                }
+            } else if (state == State.QUESTION) {
+                parent = node;
+                nodeIsYes = yes;
+                path = path.child(yes);
+                arrive(yes ? node.getLeft() : node.getRight());
+            } else {
+                throw new IllegalStateException("No question to answer in state " + state);
+            }
+        }
+
+        /**
+         * Teaches the animal the player was thinking of after a wrong guess
+         * If another game split the same leaf first, the round continues
+         * with the question that game added and the state is QUESTION again
+         * @param animal the player's animal
+         * @param question question distinguishing it from the wrong guess
+         * @param animalIsYes whether the answer to the question is yes for the animal
+         * @return true if the tree learned the animal
+         * @throws IllegalStateException if the round isn't waiting to learn
+         * @throws IOException if a learning listener fails; the split is kept
+         */
+        public boolean learn(String animal, String question, boolean animalIsYes) throws IOException {
+            if (state != State.LEARN) {
+                throw new IllegalStateException("Nothing to learn in state " + state);
+            }
+            this.animal = animal;
+            DecisionTree replacement = GameEngine.this.learn(parent, node, nodeIsYes, path,
+                question, animal, animalIsYes);
+            if (replacement == null) {
+                state = State.DONE;
+                metrics.nodesVisited(visits);
+                return true;
+            }
+            //lost the race: the leaf became a question, so keep asking from there
+            arrive(replacement);
+            return false;
+        }
+    }
+}
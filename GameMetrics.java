@@ -0,0 +1,303 @@
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.time.Instant;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counters for games, learning and knowledge file I/O
+ * Game counters are LongAdders updated once or twice per round, so they
+ * cost next to nothing on the play path and can stay on in production.
+ * The shared instance can be published over JMX and dumped as text
+ * periodically to standard error or a file
+ */
+public class GameMetrics implements GameMetricsMBean {
+    /** Instance shared by the engine and the file readers and writers */
+    private static final GameMetrics SHARED = new GameMetrics();
+
+    /** JMX name the shared instance is registered under */
+    public static final String OBJECT_NAME = "AnimalGuess:type=GameMetrics";
+
+    /** Rounds with this many questions or more share the last histogram bucket */
+    private static final int HISTOGRAM_BUCKETS = 64;
+
+    private final LongAdder gamesStarted = new LongAdder();
+    private final LongAdder correctGuesses = new LongAdder();
+    private final LongAdder learnedAnimals = new LongAdder();
+    private final LongAdder nodeVisits = new LongAdder();
+    private final LongAdder questions = new LongAdder();
+    private final LongAdder[] questionsPerGame = new LongAdder[HISTOGRAM_BUCKETS + 1];
+
+    private final LongAdder treeSize = new LongAdder();
+    private volatile int treeHeight = -1;
+    private volatile boolean treeKnown;
+
+    private final LongAdder loads = new LongAdder();
+    private final LongAdder saves = new LongAdder();
+
+    /** Counts and timing of the last load; WriteStats holds any nodes/bytes/time triple */
+    private volatile TreeFileWriter.WriteStats lastLoad = new TreeFileWriter.WriteStats(0, 0, 0);
+    private volatile TreeFileWriter.WriteStats lastSave = new TreeFileWriter.WriteStats(0, 0, 0);
+
+    /**
+     * Creates a set of metrics with every counter at zero
+     */
+    public GameMetrics() {
+        for (int i = 0; i < questionsPerGame.length; i++) {
+            questionsPerGame[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Gets the metrics shared by the whole program
+     * @return shared metrics
+     */
+    public static GameMetrics shared() {
+        return SHARED;
+    }
+
+    /** Records the start of a round */
+    public void gameStarted() {
+        gamesStarted.increment();
+    }
+
+    /**
+     * Records the first guess of a round
+     * @param questionsAsked questions answered before the guess
+     */
+    public void guessReached(int questionsAsked) {
+        questions.add(questionsAsked);
+        questionsPerGame[Math.min(questionsAsked, HISTOGRAM_BUCKETS)].increment();
+    }
+
+    /** Records a correct guess */
+    public void guessedRight() {
+        correctGuesses.increment();
+    }
+
+    /**
+     * Records nodes visited by a finished round
+     * @param visits number of nodes visited
+     */
+    public void nodesVisited(int visits) {
+        nodeVisits.add(visits);
+    }
+
+    /**
+     * Records a learned split, which adds two nodes one level below the split leaf
+     * @param depth number of steps from the root to the split leaf
+     */
+    public void learned(int depth) {
+        learnedAnimals.increment();
+        if (treeKnown) {
+            treeSize.add(2);
+            synchronized (this) {
+                treeHeight = Math.max(treeHeight, depth + 2);
+            }
+        }
+    }
+
+    /**
+     * Sets the size of the game tree, after which learning keeps it current
+     * @param nodes node count
+     * @param height number of levels
+     */
+    public synchronized void setTree(long nodes, int height) {
+        treeSize.reset();
+        treeSize.add(nodes);
+        treeHeight = height;
+        treeKnown = true;
+    }
+
+    /**
+     * Records a completed knowledge file load
+     * @param stats nodes read, file size and elapsed time
+     */
+    public void loaded(TreeFileWriter.WriteStats stats) {
+        loads.increment();
+        lastLoad = stats;
+    }
+
+    /**
+     * Records a completed knowledge file save
+     * @param stats nodes and bytes written and elapsed time
+     */
+    public void saved(TreeFileWriter.WriteStats stats) {
+        saves.increment();
+        lastSave = stats;
+    }
+
+    public long getGamesStarted() {
+        return gamesStarted.sum();
+    }
+
+    public long getCorrectGuesses() {
+        return correctGuesses.sum();
+    }
+
+    public long getLearnedAnimals() {
+        return learnedAnimals.sum();
+    }
+
+    public double getCorrectGuessRatio() {
+        long correct = correctGuesses.sum();
+        long total = correct + learnedAnimals.sum();
+        return (total == 0) ? 0 : (double)correct / total;
+    }
+
+    public long getNodeVisits() {
+        return nodeVisits.sum();
+    }
+
+    public double getMeanQuestionsPerGame() {
+        long games = 0;
+        for (LongAdder bucket : questionsPerGame) {
+            games += bucket.sum();
+        }
+        return (games == 0) ? 0 : (double)questions.sum() / games;
+    }
+
+    public int getQuestionsPerGameP50() {
+        return percentile(0.50);
+    }
+
+    public int getQuestionsPerGameP90() {
+        return percentile(0.90);
+    }
+
+    public int getQuestionsPerGameP99() {
+        return percentile(0.99);
+    }
+
+    /**
+     * Finds the smallest question count covering a fraction of rounds
+     */
+    private int percentile(double fraction) {
+        long[] histogram = getQuestionsPerGameHistogram();
+        long games = 0;
+        for (long count : histogram) {
+            games += count;
+        }
+        long covered = 0;
+        for (int i = 0; i < histogram.length; i++) {
+            covered += histogram[i];
+            if (covered > 0 && covered >= fraction * games) {
+                return i;
+            }
+        }
+        return 0;
+    }
+
+    public long[] getQuestionsPerGameHistogram() {
+        long[] histogram = new long[questionsPerGame.length];
+        for (int i = 0; i < histogram.length; i++) {
+            histogram[i] = questionsPerGame[i].sum();
+        }
+        return histogram;
+    }
+
+    public long getTreeSize() {
+        return treeKnown ? treeSize.sum() : -1;
+    }
+
+    public int getTreeHeight() {
+        return treeHeight;
+    }
+
+    public long getLoads() {
+        return loads.sum();
+    }
+
+    public double getLastLoadMillis() {
+        return lastLoad.getNanos() / 1e6;
+    }
+
+    public double getLastLoadNodesPerSecond() {
+        return lastLoad.nodesPerSecond();
+    }
+
+    public double getLastLoadBytesPerSecond() {
+        return lastLoad.bytesPerSecond();
+    }
+
+    public long getSaves() {
+        return saves.sum();
+    }
+
+    public double getLastSaveMillis() {
+        return lastSave.getNanos() / 1e6;
+    }
+
+    public double getLastSaveNodesPerSecond() {
+        return lastSave.nodesPerSecond();
+    }
+
+    public double getLastSaveBytesPerSecond() {
+        return lastSave.bytesPerSecond();
+    }
+
+    /**
+     * Creates a one-line text summary of every metric
+     */
+    public String toString() {
+        return String.format("games=%d correct=%d learned=%d correctRatio=%.3f nodeVisits=%d"
+                + " questions(mean=%.2f p50=%d p90=%d p99=%d) tree(size=%d height=%d)"
+                + " loads=%d lastLoad=[%s] saves=%d lastSave=[%s]",
+            getGamesStarted(), getCorrectGuesses(), getLearnedAnimals(), getCorrectGuessRatio(), getNodeVisits(),
+            getMeanQuestionsPerGame(), getQuestionsPerGameP50(), getQuestionsPerGameP90(), getQuestionsPerGameP99(),
+            getTreeSize(), getTreeHeight(), getLoads(), lastLoad, getSaves(), lastSave);
+    }
+
+    /**
+     * Publishes the shared metrics over JMX, and starts the periodic dump if
+     * -Danimalguess.metrics.dumpSeconds is set; the dump goes to standard error,
+     * or is appended to the file named by -Danimalguess.metrics.dumpFile
+     */
+    public static void publish() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(SHARED, name);
+            }
+        } catch (JMException e) {
+            System.out.println("Error in registering metrics with JMX: " + e.getMessage());
+        }
+
+        long seconds = Long.getLong("animalguess.metrics.dumpSeconds", 0);
+        if (seconds <= 0) {
+            return;
+        }
+        String dumpFile = System.getProperty("animalguess.metrics.dumpFile");
+        ScheduledExecutorService dumper = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "metrics-dump");
+            thread.setDaemon(true);
+            return thread;
+        });
+        dumper.scheduleAtFixedRate(() -> dump(dumpFile), seconds, seconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Writes one timestamped line of the shared metrics
+     * @param dumpFile file to append to, or null for standard error
+     */
+    private static void dump(String dumpFile) {
+        String line = Instant.now() + " " + SHARED;
+        if (dumpFile == null) {
+            System.err.println(line);
+            return;
+        }
+        try (PrintWriter out = new PrintWriter(new FileWriter(dumpFile, true))) {
+            out.println(line);
+        } catch (IOException e) {
+            System.err.println("Error in writing metrics dump: " + e.getMessage());
+        }
+    }
+}
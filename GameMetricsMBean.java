@@ -0,0 +1,65 @@
+/**
+ * Management interface of GameMetrics, as published over JMX
+ * Counters only ever grow; monitoring tools derive rates from successive reads
+ */
+public interface GameMetricsMBean {
+    /** @return number of rounds started */
+    long getGamesStarted();
+
+    /** @return number of rounds that ended with a correct guess */
+    long getCorrectGuesses();
+
+    /** @return number of animals learned after a wrong guess */
+    long getLearnedAnimals();
+
+    /** @return correct guesses divided by correct guesses plus learned animals */
+    double getCorrectGuessRatio();
+
+    /** @return number of nodes visited by all rounds */
+    long getNodeVisits();
+
+    /** @return average number of questions asked before the first guess */
+    double getMeanQuestionsPerGame();
+
+    /** @return median number of questions asked before the first guess */
+    int getQuestionsPerGameP50();
+
+    /** @return 90th percentile of questions asked before the first guess */
+    int getQuestionsPerGameP90();
+
+    /** @return 99th percentile of questions asked before the first guess */
+    int getQuestionsPerGameP99();
+
+    /** @return rounds by number of questions asked; the last bucket holds every longer round */
+    long[] getQuestionsPerGameHistogram();
+
+    /** @return nodes in the game tree, or -1 if unknown */
+    long getTreeSize();
+
+    /** @return levels in the game tree, or -1 if unknown */
+    int getTreeHeight();
+
+    /** @return number of knowledge files loaded */
+    long getLoads();
+
+    /** @return duration of the last load in milliseconds */
+    double getLastLoadMillis();
+
+    /** @return nodes read per second by the last load */
+    double getLastLoadNodesPerSecond();
+
+    /** @return bytes read per second by the last load */
+    double getLastLoadBytesPerSecond();
+
+    /** @return number of knowledge files saved */
+    long getSaves();
+
+    /** @return duration of the last save in milliseconds */
+    double getLastSaveMillis();
+
+    /** @return nodes written per second by the last save */
+    double getLastSaveNodesPerSecond();
+
+    /** @return bytes written per second by the last save */
+    double getLastSaveBytesPerSecond();
+}
@@ -0,0 +1,293 @@
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serves many animal guessing sessions at once over a local socket
+ * All sessions share one GameEngine and play in parallel; a split whose
+ * leaf was already replaced by another session is detected, and the player
+ * is walked down the newly learned questions instead
+ */
+public class GameServer {
+    /** Default port to listen on */
+    public static final int DEFAULT_PORT = 4210;
+
+    /** Game logic shared by all sessions */
+    private final GameEngine engine;
+
+    /** Runs one thread per session */
+    private final ExecutorService sessions = Executors.newCachedThreadPool();
+
+    /** Listening socket, set once started */
+    private ServerSocket serverSocket;
+
+    /** Connections of sessions still running, closed by stop() to end their reads */
+    private final Set<Socket> openSockets = ConcurrentHashMap.newKeySet();
+
+    /** Set once stop() has begun, so no new session starts */
+    private volatile boolean stopping;
+
+    /**
+     * Creates a server sharing the given tree
+     * @param root root of tree to play with
+     * @param index index of the tree's animals
+     * @param journal journal to append learned splits to
+     */
+    public GameServer(DecisionTree root, AnimalIndex index, LearningJournal journal) {
+        this.engine = new GameEngine(root, index);
+        engine.addLearningListener(journal);
+    }
+
+    /**
+     * Creates a server whose sessions all play with one engine
+     * @param engine engine to share, with its listeners already registered
+     */
+    public GameServer(GameEngine engine) {
+        this.engine = engine;
+    }
+
+    /**
+     * Registers a listener for splits learned by any session
+     * @param listener listener to add
+     */
+    public void addLearningListener(GameEngine.LearningListener listener) {
+        engine.addLearningListener(listener);
+    }
+
+    /**
+     * Accessor for current root of the shared tree
+     * @return root node
+     */
+    public DecisionTree getRoot() {
+        return engine.getRoot();
+    }
+
+    /**
+     * Accepts connections on the loopback interface until stopped
+     * @param port port to listen on
+     * @throws IOException if the socket can't be opened
+     */
+    public void serve(int port) throws IOException {
+        serverSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        System.out.println("Animal guessing server listening on port " + serverSocket.getLocalPort());
+        try {
+            while (!serverSocket.isClosed()) {
+                Socket socket = serverSocket.accept();
+                openSockets.add(socket);
+                if (stopping) {
+                    socket.close(); //stop() may have closed the others before this was added
+                    openSockets.remove(socket);
+                    break;
+                }
+                try {
+                    sessions.execute(() -> runSession(socket));
+                } catch (RejectedExecutionException e) {
+                    socket.close();
+                    openSockets.remove(socket);
+                }
+            }
+        } catch (SocketException e) {
+            //socket closed by stop()
+        }
+    }
+
+    /**
+     * Stops accepting connections, disconnects every player and waits for their sessions to end
+     * Sessions blocked reading from a player don't notice interrupts, so
+     * their sockets are closed to end the reads; once this returns true no
+     * session can learn anything more
+     * @return true if every session ended in time
+     * @throws IOException if closing the listening socket fails
+     */
+    public boolean stop() throws IOException {
+        stopping = true;
+        if (serverSocket != null) {
+            serverSocket.close();
+        }
+        sessions.shutdownNow();
+        for (Socket socket : openSockets) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                //already broken; its session ends either way
+            }
+        }
+        try {
+            return sessions.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Plays games with one connected player until they stop or disconnect
+     * @param socket connection to player
+     */
+    private void runSession(Socket socket) {
+        try (socket;
+             BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+             PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true)) {
+            Session session = new Session(in, out);
+            do {
+                session.playOneGame();
+            } while (session.getYesOrNoAnswer("Play again?"));
+            out.println("Thank you for playing!");
+        } catch (IOException e) {
+            //player disconnected, or stop() closed the socket
+        } finally {
+            openSockets.remove(socket);
+        }
+    }
+
+    /**
+     * Game state and prompts for one connected player
+     */
+    private class Session {
+        private final BufferedReader in;
+        private final PrintWriter out;
+
+        Session(BufferedReader in, PrintWriter out) {
+            this.in = in;
+            this.out = out;
+        }
+
+        /**
+         * Reads one line from the player
+         * @throws EOFException if the player disconnected
+         */
+        private String readUserInput() throws IOException {
+            String line = in.readLine();
+            if (line == null) {
+                throw new EOFException("Player disconnected");
+            }
+            return line.trim();
+        }
+
+        /**
+         * Asks player for yes/no answer until input is valid
+         */
+        private boolean getYesOrNoAnswer(String prompt) throws IOException {
+            while (true) {
+                out.println(prompt);
+                String answer = readUserInput().toLowerCase();
+
+                if (answer.equals("yes") || answer.equals("y")) {
+                    return true;
+                } else if (answer.equals("no") || answer.equals("n")) {
+                    return false;
+                } else {
+                    out.println("Please answer 'yes' or 'no'.");
+                }
+            }
+        }
+
+        /**
+         * Plays one round against the shared tree
+         * If the learned split loses a race with another session, continues
+         * down the question that session added
+         */
+        void playOneGame() throws IOException {
+            out.println("Think of an animal.");
+            out.println("I'll try to guess it.");
+            GameEngine.Game game = engine.newGame();
+            String question = null;
+
+            while (true) {
+                while (game.getState() == GameEngine.State.QUESTION) {
+                    game.answer(getYesOrNoAnswer(game.getPrompt() + " "));
+                }
+                if (game.getState() != GameEngine.State.GUESS) {
+                    return;
+                }
+
+                String guess = game.getPrompt();
+                String animal = game.getAnimal();
+                if (animal != null && animal.equalsIgnoreCase(guess)) {
+                    out.println("Another player just taught me about the " + guess + " too. Thanks!");
+                    return;
+                }
+                if (animal == null) {
+                    if (getYesOrNoAnswer("Is your animal a " + guess + "? ")) {
+                        game.answer(true);
+                        out.println("Yay I guessed it!");
+                        return;
+                    }
+                    out.println("Oh no, I guessed wrong.");
+                    out.println("Please help me to learn.");
+                    out.println("What was your animal?");
+                    animal = readUserInput();
+                    AnimalIndex index = engine.getAnimalIndex(); //null for formats read as play reaches them
+                    if (index != null && index.pathOf(animal) != null) { //don't add a second leaf for the same animal
+                        out.println("I already know about the " + animal + "! One of your answers must have led me away from it.");
+                        return;
+                    }
+                }
+                game.answer(false);
+                if (question == null) {
+                    out.println("Type a yes or no question that would distinguish between a " + animal + " and a " + guess + ": ");
+                    question = readUserInput();
+                }
+                boolean animalIsYes = getYesOrNoAnswer("Would you answer yes to this question for the " + animal + "?");
+
+                if (game.learn(animal, question, animalIsYes)) {
+                    out.println("Thank you! I will remember this information next time.");
+                    return;
+                }
+
+                //lost the race: the leaf became a question, so keep asking from there
+                out.println("Someone else just taught me something here. A few more questions:");
+                question = null;
+            }
+        }
+    }
+
+    /**
+     * Runs the server until interrupted, then saves the tree
+     * Usage: java GameServer [port] [filename]
+     * @param args command line arguments
+     */
+    public static void main(String[] args) throws IOException {
+        int port = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_PORT;
+        String filename = (args.length > 1) ? args[1] : "AnimalTree.txt";
+
+        KnowledgeFile knowledge = new KnowledgeFile(filename, true); //sessions may still learn while it saves
+        GameMetrics.publish();
+        GameServer server = new GameServer(knowledge.getEngine());
+
+        //optional change capture for read-only replicas
+        String deltaDirectory = System.getProperty("animalguess.deltaLog");
+        DeltaLog deltaLog = (deltaDirectory == null) ? null : new DeltaLog(deltaDirectory, LearningJournal.configuredPolicy());
+        if (deltaLog != null) {
+            server.addLearningListener(deltaLog);
+            String deltaPort = System.getProperty("animalguess.deltaLog.port");
+            if (deltaPort != null) {
+                System.out.println("Serving learned splits to replicas on port " + deltaLog.serve(Integer.parseInt(deltaPort)));
+            }
+        }
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                boolean stopped = server.stop();
+                if (deltaLog != null) {
+                    deltaLog.close();
+                }
+                //a session still running may have learned after the snapshot was taken, so its journal is kept
+                knowledge.save(stopped);
+                knowledge.close();
+            } catch (IOException e) {
+                System.out.println("Error in saving knowledge to file: " + e.getMessage());
+            }
+        }));
+        server.serve(port);
+    }
+}
@@ -0,0 +1,224 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * Memory-mapped file of decision tree nodes that can be read one node at a time
+ * Layout: magic, version, padding, offset of root record, then one record per
+ * node in postorder: left child offset, right child offset (-1 if absent),
+ * data length and UTF-8 data
+ * The file is mapped in 1 GiB segments and no record crosses a segment boundary
+ */
+public class IndexedTreeFile {
+    /** Bytes at the start of every indexed tree file */
+    private static final byte[] MAGIC = {'A', 'G', 'I', 'X'};
+
+    /** Current format version */
+    public static final int VERSION = 1;
+
+    /** Size of the fixed header */
+    private static final int HEADER_SIZE = 16;
+
+    /** Position of the root offset in the header */
+    private static final int ROOT_OFFSET_POSITION = 8;
+
+    /** Size of a record before its data bytes */
+    private static final int RECORD_HEADER_SIZE = 20;
+
+    /** Size of each mapped segment */
+    private static final long SEGMENT_SIZE = 1L << 30;
+
+    /** Offset used for a missing child */
+    public static final long NONE = -1;
+
+    /** Read-only mappings covering the whole file */
+    private final MappedByteBuffer[] segments;
+
+    /** Offset of the root record */
+    private final long rootOffset;
+
+    private IndexedTreeFile(MappedByteBuffer[] segments, long rootOffset) {
+        this.segments = segments;
+        this.rootOffset = rootOffset;
+    }
+
+    /**
+     * Determines whether a file starts with the indexed format's magic bytes
+     * @param filename file to check
+     * @return true if file is an indexed tree file
+     * @throws IOException if file can't be read
+     */
+    public static boolean isIndexedFile(String filename) throws IOException {
+        try (InputStream in = new FileInputStream(filename)) {
+            byte[] header = new byte[MAGIC.length];
+            int read = in.readNBytes(header, 0, header.length);
+            return read == MAGIC.length && Arrays.equals(header, MAGIC);
+        }
+    }
+
+    /**
+     * Maps an indexed tree file without reading any nodes
+     * @param filename file to map
+     * @return mapped file
+     * @throws IOException if file can't be mapped or header is invalid
+     */
+    public static IndexedTreeFile open(String filename) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_SIZE) {
+                throw new IOException("Not an indexed tree file: " + filename);
+            }
+            int segmentCount = (int)((size + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+            MappedByteBuffer[] segments = new MappedByteBuffer[segmentCount];
+            for (int i = 0; i < segmentCount; i++) {
+                long start = i * SEGMENT_SIZE;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(SEGMENT_SIZE, size - start));
+            }
+
+            byte[] header = new byte[MAGIC.length];
+            segments[0].get(0, header);
+            if (!Arrays.equals(header, MAGIC)) {
+                throw new IOException("Not an indexed tree file: " + filename);
+            }
+            int version = segments[0].get(MAGIC.length) & 0xFF;
+            if (version != VERSION) {
+                throw new IOException("Unsupported indexed tree file version: " + version);
+            }
+            return new IndexedTreeFile(segments, segments[0].getLong(ROOT_OFFSET_POSITION));
+        }
+    }
+
+    /** Accessor for offset of root record */
+    public long getRootOffset() {
+        return rootOffset;
+    }
+
+    /** Reads offset of a record's left child, or NONE */
+    public long readLeft(long offset) {
+        return segment(offset).getLong(position(offset));
+    }
+
+    /** Reads offset of a record's right child, or NONE */
+    public long readRight(long offset) {
+        return segment(offset).getLong(position(offset) + 8);
+    }
+
+    /** Reads a record's data */
+    public String readData(long offset) {
+        ByteBuffer segment = segment(offset);
+        int position = position(offset);
+        byte[] bytes = new byte[segment.getInt(position + 16)];
+        segment.get(position + RECORD_HEADER_SIZE, bytes);
+        return TextPool.shared().canonical(new String(bytes, StandardCharsets.UTF_8));
+    }
+
+    private ByteBuffer segment(long offset) {
+        return segments[(int)(offset / SEGMENT_SIZE)];
+    }
+
+    private static int position(long offset) {
+        return (int)(offset % SEGMENT_SIZE);
+    }
+
+    /**
+     * Writes a decision tree as an indexed tree file
+     * The file is replaced atomically once fully written
+     * @param tree root of tree to write
+     * @param filename file to write to
+     * @return counts and timing for the write
+     * @throws IOException if file writing fails
+     */
+    public static TreeFileWriter.WriteStats write(DecisionTree tree, String filename) throws IOException {
+        long start = System.nanoTime();
+        Path target = Paths.get(filename);
+        Path temp = TreeFileWriter.temporaryFileFor(target);
+        long nodes = 0;
+        long position = HEADER_SIZE;
+        long rootOffset;
+
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(temp.toFile()), 1 << 16))) {
+            out.write(MAGIC);
+            out.writeByte(VERSION);
+            out.write(new byte[ROOT_OFFSET_POSITION - MAGIC.length - 1]);
+            out.writeLong(NONE); //root offset, patched below
+
+            //postorder so child offsets are known when the parent is written
+            ArrayDeque<DecisionTree> stack = new ArrayDeque<>();
+            ArrayDeque<Boolean> expanded = new ArrayDeque<>();
+            long[] written = new long[16];
+            int writtenTop = 0;
+            stack.push(tree);
+            expanded.push(false);
+
+            while (!stack.isEmpty()) {
+                DecisionTree node = stack.pop();
+                if (!expanded.pop()) {
+                    stack.push(node);
+                    expanded.push(true);
+                    if (node.getRight() != null) {
+                        stack.push(node.getRight());
+                        expanded.push(false);
+                    }
+                    if (node.getLeft() != null) {
+                        stack.push(node.getLeft());
+                        expanded.push(false);
+                    }
+                    continue;
+                }
+
+                long rightOffset = (node.getRight() == null) ? NONE : written[--writtenTop];
+                long leftOffset = (node.getLeft() == null) ? NONE : written[--writtenTop];
+                byte[] data = node.getData().getBytes(StandardCharsets.UTF_8);
+                int recordSize = RECORD_HEADER_SIZE + data.length;
+                if (recordSize > SEGMENT_SIZE) {
+                    throw new IOException("Node data too large for indexed tree file");
+                }
+
+                //pad so the record doesn't cross into the next segment
+                long segmentRemaining = SEGMENT_SIZE - (position % SEGMENT_SIZE);
+                if (recordSize > segmentRemaining) {
+                    for (long i = 0; i < segmentRemaining; i++) {
+                        out.write(0);
+                    }
+                    position += segmentRemaining;
+                }
+
+                out.writeLong(leftOffset);
+                out.writeLong(rightOffset);
+                out.writeInt(data.length);
+                out.write(data);
+
+                if (writtenTop == written.length) {
+                    written = Arrays.copyOf(written, written.length * 2);
+                }
+                written[writtenTop++] = position;
+                position += recordSize;
+                nodes++;
+            }
+            rootOffset = written[--writtenTop];
+        } catch (IOException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+            ByteBuffer root = ByteBuffer.allocate(8).putLong(0, rootOffset);
+            channel.write(root, ROOT_OFFSET_POSITION);
+            channel.force(true);
+        }
+
+        TreeFileWriter.moveIntoPlace(temp, target);
+        TreeFileWriter.WriteStats stats = new TreeFileWriter.WriteStats(nodes, position, System.nanoTime() - start);
+        GameMetrics.shared().saved(stats);
+        return stats;
+    }
+}
@@ -0,0 +1,282 @@
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * Knowledge base loaded from one file or directory and saved back in the format it was found in
+ * Formats are tried in the order sharded directory, indexed, DAG, binary
+ * and text. Splits learned since the last snapshot are replayed from the
+ * journal next to the file, and the journal is folded into a new snapshot
+ * once it grows past animalguess.journal.compactBytes
+ * A file that exists but can't be read is replaced in play by a default
+ * tree, which is never saved over it, and its journal is left alone
+ * With versioned snapshots, an in-memory tree is saved from an immutable
+ * version that learning can't change mid-write, so saving needn't wait
+ * for games to stop
+ * Shared by the console game and the server
+ */
+public class KnowledgeFile {
+    /** File formats the knowledge base can be stored in */
+    public enum Format { TEXT, BINARY, DAG, INDEXED, SHARDED }
+
+    /** Journal size in bytes above which it is folded into a new snapshot */
+    private static final long JOURNAL_COMPACT_BYTES =
+        Long.getLong("animalguess.journal.compactBytes", 1 << 20);
+
+    /** Text file size in bytes from which it is loaded on all cores */
+    private static final long PARALLEL_LOAD_BYTES =
+        Long.getLong("animalguess.parallelLoadBytes", 64 << 20);
+
+    /** Whether in-memory trees keep their size and height current as they learn */
+    private static final boolean CACHED_STATS = Boolean.getBoolean("animalguess.cachedStats");
+
+    private final String filename;
+
+    /** Format the file was loaded in, and is saved back in */
+    private Format format = Format.TEXT;
+
+    /** Directory layout for the SHARDED format, or null */
+    private ShardedKnowledgeBase shards;
+
+    /** Shared subtrees for the DAG format, or null */
+    private DecisionDag dag;
+
+    /** Tree as loaded, before the engine takes it over */
+    private DecisionTree tree;
+
+    /** Index of known animals, or null for a tree that mustn't be walked in full */
+    private AnimalIndex index;
+
+    /** Journal of splits learned since the last snapshot */
+    private final LearningJournal journal;
+
+    /** Set if the file exists but couldn't be loaded, so it must not be saved over */
+    private boolean unreadable;
+
+    /** Game logic playing the loaded tree */
+    private GameEngine engine;
+
+    /** Immutable versions following the engine's tree, or null if saves read the live tree */
+    private VersionedDecisionTree versions;
+
+    /**
+     * Loads a knowledge base, replays its journal and creates an engine playing it
+     * If the file doesn't exist, or can't be read, a default tree is played instead
+     * @param filename file or sharded directory to load and save
+     */
+    public KnowledgeFile(String filename) {
+        this(filename, false);
+    }
+
+    /**
+     * Loads a knowledge base, optionally keeping versioned snapshots to save from
+     * Snapshots are only kept for text and binary files, whose trees are
+     * fully in memory and have no shared subtrees
+     * @param filename file or sharded directory to load and save
+     * @param snapshots whether to save from versions published as the engine learns
+     */
+    public KnowledgeFile(String filename, boolean snapshots) {
+        this.filename = filename;
+        this.journal = new LearningJournal(filename + ".journal", LearningJournal.configuredPolicy());
+        load();
+        if (unreadable) {
+            System.out.println("Learning journal not replayed; " + filename + " won't be saved over.");
+        } else {
+            replayJournal();
+        }
+        if (CACHED_STATS && !avoidsTreeWalks()) {
+            this.tree = CachedDecisionTree.copyOf(tree); //splits then create cached nodes too
+            this.index = null; //rebuilt over the copied leaves
+        }
+        if (index == null && !avoidsTreeWalks()) {
+            this.index = AnimalIndex.build(tree);
+        }
+        if (!avoidsTreeWalks()) {
+            //an indexed tree is never read in full, so its size stays unknown
+            GameMetrics.shared().setTree(ParallelTreeOps.count(tree), ParallelTreeOps.height(tree));
+        }
+
+        this.engine = (dag != null) ? new GameEngine(dag, index) : new GameEngine(tree, index);
+        if (!unreadable) {
+            engine.addLearningListener(journal);
+        }
+        if (shards != null) {
+            engine.addLearningListener(shards); //marks the shards to rewrite on save
+        }
+        if (snapshots && !avoidsTreeWalks()) {
+            this.versions = new VersionedDecisionTree(tree); //no game has started, so tree is the engine's root
+            engine.addLearningListener(versions);
+        }
+    }
+
+    /**
+     * Accessor for the engine playing the loaded tree
+     * @return game engine
+     */
+    public GameEngine getEngine() {
+        return engine;
+    }
+
+    /**
+     * Accessor for the format the file is saved in
+     * @return format
+     */
+    public Format getFormat() {
+        return format;
+    }
+
+    /**
+     * Checks whether walks over every node must be avoided, because the tree
+     * is read as play reaches its nodes or a DAG would be walked once per position
+     */
+    private boolean avoidsTreeWalks() {
+        return format == Format.INDEXED || format == Format.SHARDED || format == Format.DAG;
+    }
+
+    /**
+     * Loads decision tree from file or creates default tree if file doesn't exist or can't be read
+     */
+    private void load() {
+        try { //load file
+            System.out.println("Loading decision tree from: " + filename);
+            if (ShardedKnowledgeBase.isShardedDirectory(filename)) {
+                this.format = Format.SHARDED;
+                this.shards = ShardedKnowledgeBase.open(filename);
+                this.tree = shards.load(); //shards are read as play reaches them
+            } else if (IndexedTreeFile.isIndexedFile(filename)) {
+                this.format = Format.INDEXED;
+                this.tree = LazyDecisionTree.open(filename); //nodes are read as play reaches them
+            } else if (BinaryKnowledgeBase.isDagFile(filename)) {
+                this.format = Format.DAG;
+                this.dag = BinaryKnowledgeBase.readDag(filename); //identical subtrees stay shared
+                this.tree = dag.getRoot();
+            } else if (BinaryKnowledgeBase.isBinaryFile(filename)) {
+                this.format = Format.BINARY;
+                this.tree = BinaryKnowledgeBase.read(filename);
+            } else {
+                AnimalIndex loadedIndex = new AnimalIndex();
+                this.tree = (new File(filename).length() >= PARALLEL_LOAD_BYTES)
+                    ? ParallelTreeLoader.load(filename, loadedIndex)
+                    : DecisionTree.readFile(filename, loadedIndex); //indexes animals while reading
+                this.index = loadedIndex;
+            }
+            if (format != Format.SHARDED && format != Format.DAG && new File(filename + ".visits").exists()) {
+                TreeOptimizer.loadVisits(tree, filename + ".visits");
+            }
+            System.out.println("Tree loaded successfully.");
+            System.out.println();
+        } catch (IOException e) { //file doesn't exist or issue in reading
+            this.unreadable = Files.exists(Paths.get(filename));
+            if (unreadable) {
+                System.out.println("Error in loading " + filename + ": " + e.getMessage());
+            }
+            System.out.println("Couldn't load tree from file. Using default tree.");
+            this.format = Format.TEXT; //a new file is created as text
+            this.tree = new DecisionTree("Mouse");
+            this.index = null;
+            this.shards = null;
+            this.dag = null;
+            System.out.println();
+        }
+    }
+
+    /**
+     * Applies splits journaled since the last snapshot, and compacts the
+     * journal if it has grown past the size threshold
+     */
+    private void replayJournal() {
+        try {
+            int applied;
+            if (dag != null) {
+                applied = journal.replay(dag, null); //copies paths instead of changing shared nodes
+                this.tree = dag.getRoot();
+            } else {
+                applied = journal.replay(tree, shards);
+            }
+            if (applied > 0) {
+                System.out.println("Replayed " + applied + " learned animals from journal.");
+                this.index = null; //rebuilt to include the replayed splits
+            }
+            if (journal.size() > JOURNAL_COMPACT_BYTES) {
+                save(true, tree, tree);
+            }
+        } catch (IOException e) {
+            System.out.println("Error in replaying learning journal: " + e.getMessage());
+        } catch (UncheckedIOException e) { //a shard read while following a journaled path
+            System.out.println("Error in replaying learning journal: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Folds the journal into a new snapshot if it has grown past the size threshold
+     * Only call this while no game can learn, since the snapshot replaces the journal
+     * @throws IOException if the journal size can't be read
+     */
+    public void compactJournal() throws IOException {
+        if (!unreadable && journal.size() > JOURNAL_COMPACT_BYTES) {
+            save(true);
+        }
+    }
+
+    /**
+     * Saves the engine's tree in the format it was loaded in
+     * @param resetJournal whether the snapshot holds every journaled split, so the journal can be emptied
+     * @return true if the knowledge base was saved
+     */
+    public boolean save(boolean resetJournal) {
+        DecisionTree live = engine.getRoot(); //root changes when a leaf root is split
+        if (versions != null) {
+            //path copies leave the version untouched by games learning meanwhile; visits still come from play
+            return save(resetJournal, versions.current().getRoot().toTree(), live);
+        }
+        return save(resetJournal, live, live);
+    }
+
+    /**
+     * Writes a tree in the loaded format, then the visit counts of another
+     * @param resetJournal whether the snapshot holds every journaled split
+     * @param root tree to write
+     * @param visited tree whose visit counts are saved, by path
+     */
+    private boolean save(boolean resetJournal, DecisionTree root, DecisionTree visited) {
+        if (unreadable) {
+            System.out.println("Not saving over " + filename + ", which couldn't be loaded.");
+            return false;
+        }
+        try {
+            TreeFileWriter.WriteStats stats;
+            if (format == Format.SHARDED) {
+                stats = shards.save(root); //only the shards learning changed
+            } else if (format == Format.DAG) {
+                stats = BinaryKnowledgeBase.writeDag(dag, filename);
+            } else if (format == Format.INDEXED) {
+                stats = IndexedTreeFile.write(root, filename);
+            } else if (format == Format.BINARY) {
+                stats = BinaryKnowledgeBase.write(root, filename);
+            } else {
+                stats = TreeFileWriter.write(root, filename);
+            }
+            System.out.println("Game knowledge saved to: " + filename + " (" + stats + ")");
+            if (format != Format.SHARDED && format != Format.DAG) {
+                TreeOptimizer.saveVisits(visited, filename + ".visits"); //per-position counts; shards would all be read
+            }
+            if (resetJournal) {
+                journal.reset(); //snapshot now holds everything the journal did
+            } else {
+                System.out.println("Sessions still running; keeping learning journal for replay.");
+            }
+            return true;
+        } catch (IOException e) {
+            System.out.println("Error in saving knowledge to file: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Closes the journal, forcing it to disk
+     * @throws IOException if closing fails
+     */
+    public void close() throws IOException {
+        journal.close();
+    }
+}
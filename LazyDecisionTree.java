@@ -0,0 +1,220 @@
+import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decision tree node backed by a memory-mapped IndexedTreeFile
+ * Children are read from the file only when a traversal reaches them and are
+ * held through soft references, so rarely visited subtrees can be dropped
+ * under memory pressure and read again later
+ * A node that is changed (for example by splitLeaf) is detached from the
+ * file: it and its ancestors then hold their children strongly so the change
+ * can't be evicted
+ * Children are read under the parent's lock, so concurrent games share one
+ * instance per node, and visit counts are kept per file offset rather than
+ * on the nodes, so they survive a node being dropped and read again
+ */
+public class LazyDecisionTree extends DecisionTree {
+    /** State shared by every node read from one file */
+    private static final class Source {
+        final IndexedTreeFile file;
+
+        /** Visit count of each node reached, by record offset */
+        final ConcurrentHashMap<Long, AtomicLong> visits = new ConcurrentHashMap<>();
+
+        Source(IndexedTreeFile file) {
+            this.file = file;
+        }
+    }
+
+    /** File this node was read from, with its visit counts */
+    private final Source source;
+
+    /** File offset of this node's record */
+    private final long offset;
+
+    /** File offset of left child record, or IndexedTreeFile.NONE */
+    private final long leftOffset;
+
+    /** File offset of right child record, or IndexedTreeFile.NONE */
+    private final long rightOffset;
+
+    /** Parent node, or null at the root */
+    private final LazyDecisionTree parent;
+
+    /** Left child if it is still in memory; replaced only while holding this node's lock */
+    private volatile SoftReference<LazyDecisionTree> leftCache;
+
+    /** Right child if it is still in memory; replaced only while holding this node's lock */
+    private volatile SoftReference<LazyDecisionTree> rightCache;
+
+    /** Whether children are now held in the ordinary DecisionTree fields; set under this node's lock */
+    private volatile boolean detached;
+
+    /**
+     * Reads one node record from the file
+     * @param source mapped file and visit counts
+     * @param offset offset of node record
+     * @param parent parent node, or null at the root
+     */
+    private LazyDecisionTree(Source source, long offset, LazyDecisionTree parent) {
+        super(source.file.readData(offset));
+        this.source = source;
+        this.offset = offset;
+        this.leftOffset = source.file.readLeft(offset);
+        this.rightOffset = source.file.readRight(offset);
+        this.parent = parent;
+    }
+
+    /**
+     * Maps an indexed tree file and reads only its root node
+     * @param filename indexed tree file
+     * @return root node
+     * @throws IOException if file can't be mapped
+     */
+    public static LazyDecisionTree open(String filename) throws IOException {
+        IndexedTreeFile file = IndexedTreeFile.open(filename);
+        return new LazyDecisionTree(new Source(file), file.getRootOffset(), null);
+    }
+
+    /**
+     * Gets left child, reading it from the file if needed
+     * @return left child node
+     */
+    public DecisionTree getLeft() {
+        if (detached) {
+            return super.getLeft();
+        }
+        if (leftOffset == IndexedTreeFile.NONE) {
+            return null;
+        }
+        SoftReference<LazyDecisionTree> cache = leftCache;
+        LazyDecisionTree child = (cache == null) ? null : cache.get();
+        return (child != null) ? child : readChild(true);
+    }
+
+    /**
+     * Gets right child, reading it from the file if needed
+     * @return right child node
+     */
+    public DecisionTree getRight() {
+        if (detached) {
+            return super.getRight();
+        }
+        if (rightOffset == IndexedTreeFile.NONE) {
+            return null;
+        }
+        SoftReference<LazyDecisionTree> cache = rightCache;
+        LazyDecisionTree child = (cache == null) ? null : cache.get();
+        return (child != null) ? child : readChild(false);
+    }
+
+    /**
+     * Reads a child missing from its cache, unless another game read it or
+     * detached this node first, so each node has one instance at a time
+     * @param isLeft whether to read the left child
+     * @return child node
+     */
+    private synchronized DecisionTree readChild(boolean isLeft) {
+        if (detached) {
+            return isLeft ? super.getLeft() : super.getRight();
+        }
+        SoftReference<LazyDecisionTree> cache = isLeft ? leftCache : rightCache;
+        LazyDecisionTree child = (cache == null) ? null : cache.get();
+        if (child == null) {
+            child = new LazyDecisionTree(source, isLeft ? leftOffset : rightOffset, this);
+            if (isLeft) {
+                leftCache = new SoftReference<>(child);
+            } else {
+                rightCache = new SoftReference<>(child);
+            }
+        }
+        return child;
+    }
+
+    /**
+     * Counts one more game reaching this node, in the file's table so the
+     * count outlives this instance
+     */
+    public void recordVisit() {
+        visitCounter().incrementAndGet();
+    }
+
+    /**
+     * Gets number of games that reached this node
+     * @return visit count
+     */
+    public long getVisits() {
+        AtomicLong visits = source.visits.get(offset);
+        return (visits == null) ? 0 : visits.get();
+    }
+
+    /**
+     * Sets number of games that reached this node, e.g. when loading saved counts
+     * @param visits visit count
+     */
+    public void setVisits(long visits) {
+        visitCounter().set(visits);
+    }
+
+    private AtomicLong visitCounter() {
+        return source.visits.computeIfAbsent(offset, key -> new AtomicLong());
+    }
+
+    /** Determines whether this node is a leaf */
+    public boolean isLeaf() {
+        if (detached) {
+            return super.isLeaf();
+        }
+        return (leftOffset == IndexedTreeFile.NONE) && (rightOffset == IndexedTreeFile.NONE);
+    }
+
+    /** Determines whether this node is a branch */
+    public boolean isBranch() {
+        return !isLeaf();
+    }
+
+    /** Manipulator for node data; detaches this node from the file */
+    public void setData(String data) {
+        detach();
+        super.setData(data);
+    }
+
+    /** Sets left child; detaches this node from the file */
+    public void setLeft(BinaryTree<String> left) {
+        detach();
+        super.setLeft(left);
+    }
+
+    /** Sets right child; detaches this node from the file */
+    public void setRight(BinaryTree<String> right) {
+        detach();
+        super.setRight(right);
+    }
+
+    /**
+     * Pins this node and its ancestors in memory by moving their children
+     * from the soft caches into the ordinary child fields
+     */
+    private void detach() {
+        for (LazyDecisionTree node = this; node != null && !node.detached; node = node.parent) {
+            synchronized (node) {
+                if (node.detached) {
+                    break;
+                }
+                //children go into the fields before detached is set, so readers that see it find them
+                node.attach(node.getLeft(), node.getRight());
+                node.detached = true;
+                node.leftCache = null;
+                node.rightCache = null;
+            }
+        }
+    }
+
+    /** Stores children in the DecisionTree fields */
+    private void attach(DecisionTree left, DecisionTree right) {
+        super.setLeft(left);
+        super.setRight(right);
+    }
+}
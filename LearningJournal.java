@@ -0,0 +1,343 @@
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of splits learned since the last full snapshot
+ * Each record holds the path to the split leaf, the new question, the new
+ * animal and which side of the question it belongs on, framed by a length
+ * and a CRC32 so a torn final record from a crash is detected and dropped
+ * Registered as a learning listener, splits are forced to disk once per
+ * batch the engine delivers instead of once per record
+ */
+public class LearningJournal implements GameEngine.LearningListener, Closeable {
+
+    /** When appended records are forced to disk */
+    public enum FsyncPolicy {
+        /** Force after every record */
+        ALWAYS,
+        /** Force only when the journal is closed */
+        ON_CLOSE,
+        /** Leave flushing to the operating system */
+        NEVER
+    }
+
+    /**
+     * Gets the fsync policy named by the animalguess.journal.fsync system property
+     * An unknown name is reported and ALWAYS, the default, is used instead
+     * @return configured policy
+     */
+    public static FsyncPolicy configuredPolicy() {
+        String name = System.getProperty("animalguess.journal.fsync", "ALWAYS");
+        try {
+            return FsyncPolicy.valueOf(name.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.out.println("Error in animalguess.journal.fsync: unknown policy " + name + ", expected one of "
+                + Arrays.toString(FsyncPolicy.values()) + "; using ALWAYS");
+            return FsyncPolicy.ALWAYS;
+        }
+    }
+
+    /** Location of the journal file */
+    private final Path file;
+
+    /** Policy for forcing records to disk */
+    private final FsyncPolicy fsyncPolicy;
+
+    /** Open append stream, created on first append */
+    private FileOutputStream out;
+
+    /**
+     * Creates a journal backed by the given file
+     * @param filename journal file, created on first append
+     * @param fsyncPolicy when to force records to disk
+     */
+    public LearningJournal(String filename, FsyncPolicy fsyncPolicy) {
+        this.file = Paths.get(filename);
+        this.fsyncPolicy = fsyncPolicy;
+    }
+
+    /**
+     * Appends one learned split to the journal
+     * @param path Y/N path from the root to the leaf that was split
+     * @param question question that now occupies that node
+     * @param animal animal added below the question
+     * @param animalIsYes whether the animal is on the yes side
+     * @throws IOException if writing fails
+     */
+    public synchronized void append(String path, String question, String animal, boolean animalIsYes) throws IOException {
+        write(encode(path, question, animal, animalIsYes));
+        flush();
+    }
+
+    /**
+     * Appends one learned split to the journal
+     * @param path packed path from the root to the leaf that was split
+     * @param question question that now occupies that node
+     * @param animal animal added below the question
+     * @param animalIsYes whether the animal is on the yes side
+     * @throws IOException if writing fails
+     */
+    public void append(TreePath path, String question, String animal, boolean animalIsYes) throws IOException {
+        append(path.toString(), question, animal, animalIsYes);
+    }
+
+    /**
+     * Appends a split delivered by a game engine, leaving it to flush to force it to disk
+     * @throws IOException if writing fails
+     */
+    @Override
+    public synchronized void learned(TreePath path, String question, String animal, boolean animalIsYes)
+            throws IOException {
+        write(encode(path.toString(), question, animal, animalIsYes));
+    }
+
+    /**
+     * Forces the records appended so far to disk if the policy is ALWAYS
+     * @throws IOException if forcing fails
+     */
+    @Override
+    public synchronized void flush() throws IOException {
+        if (out != null && fsyncPolicy == FsyncPolicy.ALWAYS) {
+            out.getChannel().force(false);
+        }
+    }
+
+    private void write(byte[] record) throws IOException {
+        if (out == null) {
+            out = new FileOutputStream(file.toFile(), true);
+        }
+        out.write(record); //one write call so a record is never interleaved
+    }
+
+    /**
+     * Applies every intact journal record to a tree loaded from the last snapshot
+     * Records already present in the tree are skipped, and a torn record at
+     * the end of the journal is truncated away
+     * @param root root of tree to update
+     * @return number of splits applied
+     * @throws IOException if reading fails or a record doesn't fit the tree
+     */
+    public int replay(DecisionTree root) throws IOException {
+        return replay(root, null);
+    }
+
+    /**
+     * Applies every intact journal record to a tree, telling a listener about each applied split
+     * @param root root of tree to update
+     * @param listener listener told about each split applied, or null
+     * @return number of splits applied
+     * @throws IOException if reading fails, a record doesn't fit the tree or the listener fails
+     */
+    public int replay(DecisionTree root, GameEngine.LearningListener listener) throws IOException {
+        return replay(root, null, listener);
+    }
+
+    /**
+     * Applies every intact journal record to a DAG of shared subtrees, by path copying
+     * @param dag DAG to update; its root changes with each split applied
+     * @param listener listener told about each split applied, or null
+     * @return number of splits applied
+     * @throws IOException if reading fails, a record doesn't fit the tree or the listener fails
+     */
+    public int replay(DecisionDag dag, GameEngine.LearningListener listener) throws IOException {
+        return replay(null, dag, listener);
+    }
+
+    /**
+     * Applies journal records to a tree, or to a DAG if dag isn't null
+     */
+    private synchronized int replay(DecisionTree root, DecisionDag dag, GameEngine.LearningListener listener)
+            throws IOException {
+        if (!Files.exists(file)) {
+            return 0;
+        }
+
+        int applied = 0;
+        long goodLength = 0;
+        long fileLength = Files.size(file);
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            while (true) {
+                Record record = decode(in, fileLength - goodLength);
+                if (record == null) {
+                    break; //torn tail
+                }
+                if (applySplit(root, dag, record.path, record.question, record.animal, record.animalIsYes)) {
+                    applied++;
+                    if (listener != null) {
+                        listener.learned(TreePath.parse(record.path), record.question, record.animal, record.animalIsYes);
+                    }
+                }
+                goodLength += record.length;
+            }
+        }
+
+        if (goodLength < fileLength) {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                channel.truncate(goodLength);
+            }
+        }
+        return applied;
+    }
+
+    /**
+     * Applies one journaled split unless the tree already contains it
+     * Shared DAG nodes are never changed in place; the DAG copies the path instead
+     * @return true if the tree was changed
+     * @throws IOException if the node at the path doesn't match the record
+     */
+    private static boolean applySplit(DecisionTree root, DecisionDag dag, String path, String question,
+                                      String animal, boolean animalIsYes) throws IOException {
+        DecisionTree node;
+        try {
+            node = (dag == null) ? root.followPath(path) : dag.getRoot().followPath(path);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Journal path not found in tree: " + path);
+        }
+
+        if (node.isLeaf()) {
+            if (dag == null) {
+                node.splitLeaf(question, animal, animalIsYes);
+            } else {
+                dag.split(TreePath.parse(path), question, animal, animalIsYes);
+            }
+            return true;
+        }
+
+        //the new animal may itself have been split since, so only the question is compared
+        if (node.getData().equals(question)) {
+            return false; //split was already saved in the snapshot
+        }
+        throw new IOException("Journal record doesn't match tree at path: " + path);
+    }
+
+    /**
+     * Gets current size of the journal file
+     * @return size in bytes, or 0 if there is no journal
+     * @throws IOException if size can't be read
+     */
+    public synchronized long size() throws IOException {
+        return Files.exists(file) ? Files.size(file) : 0;
+    }
+
+    /**
+     * Empties the journal after its records have been saved in a snapshot
+     * @throws IOException if the journal can't be removed
+     */
+    public synchronized void reset() throws IOException {
+        close();
+        Files.deleteIfExists(file);
+    }
+
+    /**
+     * Closes the journal, forcing it to disk unless the policy is NEVER
+     * @throws IOException if closing fails
+     */
+    public synchronized void close() throws IOException {
+        if (out != null) {
+            if (fsyncPolicy != FsyncPolicy.NEVER) {
+                out.getChannel().force(false);
+            }
+            out.close();
+            out = null;
+        }
+    }
+
+    /** One decoded journal record */
+    static final class Record {
+        final String path;
+        final String question;
+        final String animal;
+        final boolean animalIsYes;
+        /** Framed size in bytes */
+        final int length;
+
+        Record(String path, String question, String animal, boolean animalIsYes, int length) {
+            this.path = path;
+            this.question = question;
+            this.animal = animal;
+            this.animalIsYes = animalIsYes;
+            this.length = length;
+        }
+    }
+
+    /**
+     * Frames one split as a length, its fields and a CRC32 of the fields
+     * @return framed record
+     */
+    static byte[] encode(String path, String question, String animal, boolean animalIsYes) throws IOException {
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream data = new DataOutputStream(payload);
+        writeString(data, path);
+        writeString(data, question);
+        writeString(data, animal);
+        data.writeBoolean(animalIsYes);
+
+        CRC32 crc = new CRC32();
+        crc.update(payload.toByteArray());
+
+        ByteArrayOutputStream record = new ByteArrayOutputStream(payload.size() + 8);
+        DataOutputStream recordOut = new DataOutputStream(record);
+        recordOut.writeInt(payload.size());
+        payload.writeTo(recordOut);
+        recordOut.writeInt((int)crc.getValue());
+        return record.toByteArray();
+    }
+
+    /**
+     * Reads one record written by encode
+     * @param in stream positioned at a record
+     * @param remaining bytes left in the stream, bounding a garbled length
+     * @return record, or null if the stream ends in a torn or corrupt record
+     * @throws IOException if reading fails
+     */
+    static Record decode(DataInputStream in, long remaining) throws IOException {
+        byte[] payload;
+        int storedCrc;
+        try {
+            int length = in.readInt();
+            if (length < 0 || length > remaining - 8) {
+                return null; //garbled length in torn tail
+            }
+            payload = new byte[length];
+            in.readFully(payload);
+            storedCrc = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        if ((int)crc.getValue() != storedCrc) {
+            return null;
+        }
+
+        DataInputStream record = new DataInputStream(new ByteArrayInputStream(payload));
+        return new Record(readString(record), readString(record), readString(record), record.readBoolean(),
+            payload.length + 8);
+    }
+
+    /**
+     * Writes a string as a length followed by its UTF-8 bytes
+     */
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Reads a string written by writeString
+     */
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,363 @@
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Load generator that plays the game engine with many synthetic players at once
+ * Each player thinks of an animal drawn from a uniform or Zipf popularity
+ * distribution and answers every question from a fixed hash of the animal
+ * and the question, so answers are consistent and the tree keeps working as
+ * it grows. After a wrong guess a player teaches its animal with the
+ * configured probability, using a new question the two animals answer
+ * differently. Games are started at a target rate spread over the worker
+ * threads, and latency is measured from each game's scheduled start, so time
+ * spent queued behind slow games, lock waits and GC pauses is counted too
+ * Settings are system properties:
+ *   loadtest.threads (default 8), loadtest.rate in games per second (0 = as fast as possible),
+ *   loadtest.seconds (10), loadtest.animals (100000), loadtest.popularity (ZIPF or UNIFORM),
+ *   loadtest.zipfExponent (1.0), loadtest.learnRate (0.5), loadtest.seed (210)
+ * Usage: java LoadTest [knowledge file to start from]
+ */
+public class LoadTest {
+    /** How players choose the animal they think of */
+    public enum Popularity { UNIFORM, ZIPF }
+
+    private static final int THREADS = Integer.getInteger("loadtest.threads", 8);
+    private static final int RATE = Integer.getInteger("loadtest.rate", 0);
+    private static final int SECONDS = Integer.getInteger("loadtest.seconds", 10);
+    private static final int ANIMALS = Integer.getInteger("loadtest.animals", 100_000);
+    private static final Popularity POPULARITY =
+        Popularity.valueOf(System.getProperty("loadtest.popularity", "ZIPF").toUpperCase());
+    private static final double ZIPF_EXPONENT = Double.parseDouble(System.getProperty("loadtest.zipfExponent", "1.0"));
+    private static final double LEARN_RATE = Double.parseDouble(System.getProperty("loadtest.learnRate", "0.5"));
+    private static final long SEED = Long.getLong("loadtest.seed", 210);
+
+    /**
+     * Histogram of latencies with about 3% precision
+     * Values are bucketed by their highest bit and the five bits below it,
+     * so recording is a few instructions and histograms can be added together
+     */
+    static class LatencyHistogram {
+        private static final int SUB_BITS = 5;
+        private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+        private final long[] counts = new long[64 * SUB_BUCKETS];
+        private long count;
+        private long max;
+
+        /**
+         * Records one latency
+         * @param nanos latency in nanoseconds
+         */
+        void record(long nanos) {
+            nanos = Math.max(0, nanos);
+            counts[bucket(nanos)]++;
+            count++;
+            max = Math.max(max, nanos);
+        }
+
+        /**
+         * Adds another histogram's counts to this one
+         * @param other histogram to add
+         */
+        void add(LatencyHistogram other) {
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] += other.counts[i];
+            }
+            count += other.count;
+            max = Math.max(max, other.max);
+        }
+
+        /**
+         * Finds the latency below which a fraction of recorded values lie
+         * @param fraction fraction between 0 and 1
+         * @return upper bound of the bucket holding that value, in nanoseconds
+         */
+        long percentile(double fraction) {
+            long target = (long)Math.ceil(fraction * count);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= target && seen > 0) {
+                    return Math.min(upperBound(i), max);
+                }
+            }
+            return 0;
+        }
+
+        private static int bucket(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int)value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int)(value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+            return (exponent - SUB_BITS + 1) * SUB_BUCKETS + sub;
+        }
+
+        private static long upperBound(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+            long lower = (long)(SUB_BUCKETS + bucket % SUB_BUCKETS) << (exponent - SUB_BITS);
+            return lower + (1L << (exponent - SUB_BITS)) - 1;
+        }
+
+        /**
+         * Formats count and percentiles in milliseconds
+         */
+        public String toString() {
+            return String.format("%d samples, p50 %.3f ms, p99 %.3f ms, p999 %.3f ms, max %.3f ms", count,
+                percentile(0.50) / 1e6, percentile(0.99) / 1e6, percentile(0.999) / 1e6, max / 1e6);
+        }
+    }
+
+    /** Engine shared by all players */
+    private final GameEngine engine;
+
+    /** Animal names, most popular first */
+    private final String[] animals;
+
+    /** Cumulative popularity of animals[0..i], ending at 1 */
+    private final double[] popularity;
+
+    /** Number of the next question invented by a teaching player */
+    private final AtomicLong nextTrait = new AtomicLong();
+
+    private final LongAdder games = new LongAdder();
+    private final LongAdder correct = new LongAdder();
+    private final LongAdder learned = new LongAdder();
+    private final LongAdder lostRaces = new LongAdder();
+
+    /**
+     * Sets up the players' animals and their popularity
+     * @param root tree to start playing with
+     */
+    LoadTest(DecisionTree root) {
+        this.engine = new GameEngine(root);
+        GameMetrics.shared().setTree(ParallelTreeOps.count(root), ParallelTreeOps.height(root)); //kept current by learning
+        this.animals = new String[ANIMALS];
+        this.popularity = new double[ANIMALS];
+        double total = 0;
+        for (int i = 0; i < ANIMALS; i++) {
+            animals[i] = TextPool.shared().canonical("Animal " + i);
+            total += (POPULARITY == Popularity.ZIPF) ? 1 / Math.pow(i + 1, ZIPF_EXPONENT) : 1;
+            popularity[i] = total;
+        }
+        for (int i = 0; i < ANIMALS; i++) {
+            popularity[i] /= total;
+        }
+    }
+
+    /**
+     * Answers a question the way every player thinking of an animal does
+     * @param animal animal the player thinks of
+     * @param question question asked
+     * @return answer, the same every time for the same pair
+     */
+    static boolean oracle(String animal, String question) {
+        long hash = animal.hashCode() * 0x9E3779B97F4A7C15L + question.hashCode();
+        hash ^= hash >>> 33;
+        hash *= 0xFF51AFD7ED558CCDL;
+        hash ^= hash >>> 33;
+        return (hash & 1) == 0;
+    }
+
+    /**
+     * Picks an animal according to the popularity distribution
+     */
+    private String chooseAnimal(SplittableRandom random) {
+        int index = Arrays.binarySearch(popularity, random.nextDouble());
+        return animals[Math.min((index < 0) ? -index - 1 : index, animals.length - 1)];
+    }
+
+    /**
+     * Invents a question two animals answer differently
+     */
+    private String distinguishingQuestion(String animal, String other) {
+        while (true) {
+            String question = "Does it have trait " + nextTrait.getAndIncrement() + "?";
+            if (oracle(animal, question) != oracle(other, question)) {
+                return question;
+            }
+        }
+    }
+
+    /**
+     * Plays one game to the end, teaching the animal after a wrong guess if the player chooses to
+     * @param gameTimes histogram for whole games
+     * @param learnTimes histogram for learning calls
+     * @param scheduled time the game was due to start
+     */
+    private void playOneGame(SplittableRandom random, LatencyHistogram gameTimes, LatencyHistogram learnTimes,
+                             long scheduled) throws IOException {
+        String animal = chooseAnimal(random);
+        GameEngine.Game game = engine.newGame();
+        games.increment();
+
+        while (game.getState() != GameEngine.State.DONE) {
+            if (game.getState() == GameEngine.State.QUESTION) {
+                game.answer(oracle(animal, game.getPrompt()));
+            } else if (game.getState() == GameEngine.State.GUESS) {
+                boolean right = game.getPrompt().equals(animal);
+                game.answer(right);
+                if (right) {
+                    correct.increment();
+                }
+            } else if (random.nextDouble() < LEARN_RATE) {
+                String question = distinguishingQuestion(animal, game.getPrompt());
+                long start = System.nanoTime();
+                boolean done = game.learn(animal, question, oracle(animal, question));
+                learnTimes.record(System.nanoTime() - start);
+                if (done) {
+                    learned.increment();
+                } else {
+                    lostRaces.increment(); //another player split the leaf first; keep playing
+                }
+            } else {
+                break; //player leaves without teaching
+            }
+        }
+        gameTimes.record(System.nanoTime() - scheduled);
+    }
+
+    /**
+     * Runs the players and prints progress every second and a summary at the end
+     */
+    void run() throws InterruptedException {
+        ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+        if (threadBean.isThreadContentionMonitoringSupported()) {
+            threadBean.setThreadContentionMonitoringEnabled(true);
+        }
+        long gcCountBefore = gcCount();
+        long gcMillisBefore = gcMillis();
+
+        LatencyHistogram[] gameTimes = new LatencyHistogram[THREADS];
+        LatencyHistogram[] learnTimes = new LatencyHistogram[THREADS];
+        Throwable[] failures = new Throwable[THREADS];
+        long[] blockedTimes = new long[THREADS]; //sampled by each player before it exits, as dead threads have no ThreadInfo
+        List<Thread> threads = new ArrayList<>();
+        long start = System.nanoTime();
+        long end = start + SECONDS * 1_000_000_000L;
+        double interval = (RATE > 0) ? THREADS * 1e9 / RATE : 0; //nanoseconds between one thread's games
+
+        for (int t = 0; t < THREADS; t++) {
+            int id = t;
+            gameTimes[t] = new LatencyHistogram();
+            learnTimes[t] = new LatencyHistogram();
+            SplittableRandom random = new SplittableRandom(SEED + t);
+            Thread thread = new Thread(() -> {
+                try {
+                    //stagger threads so the combined schedule is evenly spaced
+                    for (long n = 0; ; n++) {
+                        long scheduled = (interval > 0) ? start + (long)((n + (double)id / THREADS) * interval) : System.nanoTime();
+                        if (scheduled >= end) {
+                            break;
+                        }
+                        long now = System.nanoTime();
+                        if (scheduled > now) {
+                            LockSupport.parkNanos(scheduled - now);
+                        } else if (now >= end) {
+                            break;
+                        }
+                        playOneGame(random, gameTimes[id], learnTimes[id], scheduled);
+                    }
+                } catch (Throwable e) {
+                    failures[id] = e;
+                } finally {
+                    ThreadInfo info = threadBean.getThreadInfo(Thread.currentThread().getId());
+                    if (info != null) {
+                        blockedTimes[id] = Math.max(0, info.getBlockedTime());
+                    }
+                }
+            }, "player-" + t);
+            threads.add(thread);
+            thread.start();
+        }
+
+        long lastGames = 0;
+        long lastLearned = 0;
+        for (int second = 1; second <= SECONDS; second++) {
+            Thread.sleep(Math.max(0, (start + second * 1_000_000_000L - System.nanoTime()) / 1_000_000));
+            long nowGames = games.sum();
+            long nowLearned = learned.sum();
+            System.out.printf("%3d s  %9d games/s  %7d learned/s  tree %d nodes  gc %d ms%n", second,
+                nowGames - lastGames, nowLearned - lastLearned, GameMetrics.shared().getTreeSize(),
+                gcMillis() - gcMillisBefore);
+            lastGames = nowGames;
+            lastLearned = nowLearned;
+        }
+
+        long blockedMillis = 0;
+        for (int t = 0; t < THREADS; t++) {
+            threads.get(t).join();
+            blockedMillis += blockedTimes[t];
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        LatencyHistogram allGames = new LatencyHistogram();
+        LatencyHistogram allLearns = new LatencyHistogram();
+        for (int t = 0; t < THREADS; t++) {
+            if (failures[t] != null) {
+                System.out.println("Error in player " + t + ": " + failures[t]);
+            }
+            allGames.add(gameTimes[t]);
+            allLearns.add(learnTimes[t]);
+        }
+
+        DecisionTree root = engine.getRoot();
+        System.out.println();
+        System.out.printf("%d threads, target %s games/s, %s popularity over %d animals, learn rate %.2f%n", THREADS,
+            (RATE > 0) ? Integer.toString(RATE) : "unlimited", POPULARITY, ANIMALS, LEARN_RATE);
+        System.out.printf("throughput: %.0f games/s, %.0f learned/s (%d games, %d correct, %d learned, %d lost races)%n",
+            games.sum() / seconds, learned.sum() / seconds, games.sum(), correct.sum(), learned.sum(), lostRaces.sum());
+        System.out.println("game latency:  " + allGames);
+        System.out.println("learn latency: " + allLearns);
+        System.out.printf("gc: %d collections, %d ms; threads blocked on locks: %s%n", gcCount() - gcCountBefore,
+            gcMillis() - gcMillisBefore, threadBean.isThreadContentionMonitoringEnabled() ? blockedMillis + " ms" : "not measured");
+        System.out.printf("final tree: %d nodes, height %d%n", ParallelTreeOps.count(root), ParallelTreeOps.height(root));
+    }
+
+    private static long gcCount() {
+        long total = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += Math.max(0, gc.getCollectionCount());
+        }
+        return total;
+    }
+
+    private static long gcMillis() {
+        long total = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += Math.max(0, gc.getCollectionTime());
+        }
+        return total;
+    }
+
+    /**
+     * Runs the load test, starting from a knowledge file or a single animal
+     * @param args command line arguments (optional filename)
+     */
+    public static void main(String[] args) throws InterruptedException {
+        DecisionTree root = new DecisionTree("Animal 0");
+        if (args.length > 0) {
+            try {
+                root = BinaryKnowledgeBase.isBinaryFile(args[0])
+                    ? BinaryKnowledgeBase.read(args[0]) : DecisionTree.readFile(args[0]);
+            } catch (IOException e) {
+                System.out.println("Error in loading knowledge base: " + e.getMessage());
+                return;
+            }
+        }
+        new LoadTest(root).run();
+    }
+}
@@ -0,0 +1,305 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Loads text knowledge files using every core
+ * The file is split into byte ranges; each range starts at the first line
+ * beginning inside it and parses paths and node text concurrently. The parsed
+ * nodes are then linked to their parents range by range, in file order, by the
+ * same linker readFile uses, including its fallback for files that aren't
+ * breadth-first, so errors for missing parents and bad path characters are
+ * exactly the ones readFile reports
+ * Lines end in "\n", "\r\n" or a lone "\r", as they do for BufferedReader.readLine.
+ * Each task shares equal texts within its range and hands them to the
+ * TextPool once at the end, so parsing threads don't meet on the pool lock
+ */
+public class ParallelTreeLoader {
+    /** Smallest byte range parsed by one task */
+    private static final long MIN_CHUNK_BYTES = 1 << 20;
+
+    /** Initial size of each task's read buffer, grown for longer lines */
+    private static final int READ_BUFFER_SIZE = 1 << 16;
+
+    /** Nodes parsed from one byte range, in file order */
+    private static class Chunk {
+        DecisionTree[] nodes = new DecisionTree[256];
+        TreePath[] parentPaths = new TreePath[256];
+        char[] lastSteps = new char[256];
+        int size;
+        String error; //first format error, found after the parsed nodes
+        HashMap<String, String> texts = new HashMap<>(); //one String per distinct text in the range
+
+        /** Gets the String this range uses for a text */
+        String text(String text) {
+            String shared = texts.putIfAbsent(text, text);
+            return (shared == null) ? text : shared;
+        }
+
+        /** Switches every node over to the pooled String for its text */
+        void poolTexts() {
+            if (!TextPool.shared().canonicalAll(texts)) {
+                return; //every text was new to the pool
+            }
+            for (int i = 0; i < size; i++) {
+                String pooled = texts.get(nodes[i].getData());
+                if (pooled != nodes[i].getData()) {
+                    nodes[i].setData(pooled);
+                }
+            }
+        }
+
+        void add(DecisionTree node, TreePath parentPath, char lastStep) {
+            if (size == nodes.length) {
+                nodes = Arrays.copyOf(nodes, size * 2);
+                parentPaths = Arrays.copyOf(parentPaths, size * 2);
+                lastSteps = Arrays.copyOf(lastSteps, size * 2);
+            }
+            nodes[size] = node;
+            parentPaths[size] = parentPath;
+            lastSteps[size++] = lastStep;
+        }
+    }
+
+    /**
+     * Reads a decision tree from a file in parallel
+     * @param filename file to read from
+     * @return root node of reconstructed tree
+     * @throws IOException if file reading fails or format is invalid
+     */
+    public static DecisionTree load(String filename) throws IOException {
+        return load(filename, null);
+    }
+
+    /**
+     * Reads a decision tree from a file in parallel, indexing its animals
+     * @param filename file to read from
+     * @param index index to add every leaf to, or null
+     * @return root node of reconstructed tree
+     * @throws IOException if file reading fails or format is invalid
+     */
+    public static DecisionTree load(String filename, AnimalIndex index) throws IOException {
+        long startTime = System.nanoTime();
+        try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+            long size = channel.size();
+            ForkJoinPool pool = ForkJoinPool.commonPool();
+            long chunkBytes = Math.max(MIN_CHUNK_BYTES, size / (pool.getParallelism() * 4L) + 1);
+
+            List<Future<Chunk>> chunks = new ArrayList<>();
+            for (long start = 0; start < size; start += chunkBytes) {
+                long rangeStart = start;
+                long rangeEnd = Math.min(size, start + chunkBytes);
+                chunks.add(pool.submit(() -> parse(channel, rangeStart, rangeEnd, size)));
+            }
+
+            //link in file order while later ranges are still being parsed
+            DecisionTree.Linker linker = new DecisionTree.Linker(index);
+            try {
+                for (int i = 0; i < chunks.size(); i++) {
+                    Chunk chunk = chunks.get(i).get();
+                    chunks.set(i, null);
+                    for (int j = 0; j < chunk.size; j++) {
+                        linker.link(chunk.nodes[j], chunk.parentPaths[j], chunk.lastSteps[j]);
+                    }
+                    if (chunk.error != null) {
+                        throw new IOException(chunk.error);
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while loading " + filename);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException)e.getCause();
+                }
+                throw new IOException("Error in parsing " + filename, e.getCause());
+            } finally {
+                for (Future<Chunk> chunk : chunks) {
+                    if (chunk != null) {
+                        chunk.cancel(true);
+                    }
+                }
+            }
+            DecisionTree root = linker.finish();
+            GameMetrics.shared().loaded(new TreeFileWriter.WriteStats(linker.nodeCount(), size,
+                System.nanoTime() - startTime));
+            return root;
+        }
+    }
+
+    /**
+     * Parses the lines that begin in one byte range
+     * @param channel open file
+     * @param start first byte of range
+     * @param end byte after range
+     * @param size file size
+     * @return parsed nodes, stopping at the first format error
+     */
+    private static Chunk parse(FileChannel channel, long start, long end, long size) throws IOException {
+        Chunk chunk = new Chunk();
+        parseLines(chunk, channel, start, end, size);
+        chunk.poolTexts();
+        return chunk;
+    }
+
+    /**
+     * Adds the nodes of every line that begins in a byte range to a chunk
+     */
+    private static void parseLines(Chunk chunk, FileChannel channel, long start, long end, long size) throws IOException {
+        byte[] bytes = new byte[READ_BUFFER_SIZE];
+        long bufferPosition = (start == 0) ? 0 : start - 1; //file position of bytes[0]
+        int filled = read(channel, bytes, 0, bufferPosition);
+        int lineStart = 0;
+
+        //a line belongs to the range it starts in, so skip the end of the previous one
+        boolean skip = start > 0;
+
+        while (bufferPosition + lineStart < end) {
+            //make sure the whole line, and the byte after a closing '\r', is in the buffer
+            int lineEnd = lineEnd(bytes, lineStart, filled);
+            while ((lineEnd == -1 || (bytes[lineEnd] == '\r' && lineEnd + 1 == filled)) && bufferPosition + filled < size) {
+                int kept = filled - lineStart;
+                if (lineStart == 0) {
+                    bytes = Arrays.copyOf(bytes, bytes.length * 2);
+                } else {
+                    System.arraycopy(bytes, lineStart, bytes, 0, kept);
+                    bufferPosition += lineStart;
+                    lineStart = 0;
+                }
+                filled = kept + read(channel, bytes, kept, bufferPosition + kept);
+                lineEnd = lineEnd(bytes, Math.max(0, kept - 1), filled);
+            }
+            int next;
+            if (lineEnd == -1) {
+                lineEnd = filled;
+                next = filled;
+                if (lineEnd == lineStart) {
+                    break; //end of file
+                }
+            } else if (bytes[lineEnd] == '\r' && lineEnd + 1 < filled && bytes[lineEnd + 1] == '\n') {
+                next = lineEnd + 2;
+            } else {
+                next = lineEnd + 1;
+            }
+
+            if (skip) {
+                skip = false;
+            } else if (lineEnd > lineStart) {
+                try {
+                    parseLine(chunk, bytes, lineStart, lineEnd);
+                } catch (IOException e) {
+                    chunk.error = e.getMessage();
+                    return;
+                }
+            }
+            lineStart = next;
+        }
+    }
+
+    /**
+     * Parses one non-empty line into a node and the path of its parent
+     * @throws IOException with readFile's message if the line is malformed
+     */
+    private static void parseLine(Chunk chunk, byte[] bytes, int lineStart, int lineEnd)
+            throws IOException {
+        //path is everything before the first space; root line starts with a space
+        int space = indexOf(bytes, lineStart, lineEnd, (byte)' ');
+        if (space == -1) {
+            throw new IOException("Invalid file format: " + new String(bytes, lineStart, lineEnd - lineStart, StandardCharsets.UTF_8));
+        }
+
+        String data = new String(bytes, space + 1, lineEnd - space - 1, StandardCharsets.UTF_8).trim();
+        DecisionTree node = new DecisionTree(chunk.text(data));
+        int pathLength = space - lineStart;
+        if (pathLength == 0) {
+            chunk.add(node, null, ' ');
+            return;
+        }
+
+        TreePath parentPath;
+        char lastStep;
+        try {
+            parentPath = TreePath.parse(bytes, lineStart, space - 1);
+            lastStep = (char)bytes[space - 1];
+        } catch (IllegalArgumentException e) {
+            //non-ASCII path: decode it so errors match readFile character for character
+            String path = new String(bytes, lineStart, pathLength, StandardCharsets.UTF_8);
+            parentPath = DecisionTree.parseParentPath(path, path.length());
+            lastStep = path.charAt(path.length() - 1);
+        }
+        if (lastStep >= 0x80) {
+            String path = new String(bytes, lineStart, pathLength, StandardCharsets.UTF_8);
+            lastStep = path.charAt(path.length() - 1);
+        }
+        chunk.add(node, parentPath, lastStep);
+    }
+
+    /**
+     * Fills a buffer from a file position, stopping early only at end of file
+     * @return number of bytes read
+     */
+    private static int read(FileChannel channel, byte[] bytes, int offset, long position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, bytes.length - offset);
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position() - offset);
+            if (read == -1) {
+                break;
+            }
+        }
+        return buffer.position() - offset;
+    }
+
+    private static int indexOf(byte[] bytes, int from, int to, byte value) {
+        for (int i = from; i < to; i++) {
+            if (bytes[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /** Finds the first '\n' or '\r', the characters readLine ends lines at */
+    private static int lineEnd(byte[] bytes, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (bytes[i] == '\n' || bytes[i] == '\r') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Loads a file with readFile and in parallel, and compares the timings
+     * Usage: java ParallelTreeLoader filename
+     * @param args command line arguments
+     */
+    public static void main(String[] args) {
+        if (args.length != 1) {
+            System.out.println("Usage: java ParallelTreeLoader filename");
+            return;
+        }
+
+        try {
+            long start = System.nanoTime();
+            DecisionTree sequential = DecisionTree.readFile(args[0]);
+            long middle = System.nanoTime();
+            DecisionTree parallel = load(args[0]);
+            long end = System.nanoTime();
+            System.out.printf("readFile: %d nodes in %.1f ms%n", sequential.count(), (middle - start) / 1e6);
+            System.out.printf("parallel: %d nodes in %.1f ms on %d threads%n", parallel.count(), (end - middle) / 1e6,
+                ForkJoinPool.commonPool().getParallelism());
+        } catch (IOException e) {
+            System.out.println("Error in loading knowledge base: " + e.getMessage());
+        }
+    }
+}
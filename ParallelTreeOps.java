@@ -0,0 +1,315 @@
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Predicate;
+
+/**
+ * Fork-join versions of whole-tree operations for large trees
+ * Each task walks its subtree depth-first with its own stack; after every
+ * THRESHOLD nodes it hands the bottom of that stack (the subtree it would
+ * reach last) to a new task, so work spreads over the pool whatever the
+ * shape of the tree, and small trees never fork at all
+ * Results are identical to the sequential versions: forked results are
+ * joined in reverse fork order, which is exactly preorder
+ */
+public class ParallelTreeOps {
+    /** Nodes a task visits between forks */
+    private static final int THRESHOLD = Integer.getInteger("animalguess.parallel.threshold", 1 << 13);
+
+    /** One subtree waiting on a task's stack */
+    private static class Frame<E> {
+        final BinaryTree<E> node;
+        final int depth;
+        final BinaryTree<E> copy; //node's copy in a tree being built, or null
+
+        Frame(BinaryTree<E> node, int depth, BinaryTree<E> copy) {
+            this.node = node;
+            this.depth = depth;
+            this.copy = copy;
+        }
+    }
+
+    /**
+     * Depth-first walk over a subtree that forks off parts of its stack
+     */
+    @SuppressWarnings("serial") //forked tasks are never serialized
+    private abstract static class Walk<E, W extends Walk<E, W>> extends RecursiveAction {
+        private final Frame<E> start;
+
+        Walk(Frame<E> start) {
+            this.start = start;
+        }
+
+        /** Creates a task of the same kind for a subtree */
+        abstract W split(Frame<E> frame);
+
+        /** Handles one node */
+        abstract void visit(BinaryTree<E> node, int depth);
+
+        /** Folds in the result of a finished forked task */
+        abstract void merge(W other);
+
+        /** Makes the copy of a child node, or returns null when not copying */
+        BinaryTree<E> copyChild(BinaryTree<E> child) {
+            return null;
+        }
+
+        @Override
+        protected void compute() {
+            ArrayDeque<W> forks = new ArrayDeque<>();
+            ArrayDeque<Frame<E>> stack = new ArrayDeque<>();
+            stack.push(start);
+
+            while (true) {
+                int sinceFork = 0;
+                while (!stack.isEmpty()) {
+                    if (sinceFork >= THRESHOLD && stack.size() > 1) {
+                        //the bottom frame is the last subtree this task would reach
+                        W fork = split(stack.pollLast());
+                        fork.fork();
+                        forks.addLast(fork);
+                        sinceFork = 0;
+                        continue;
+                    }
+
+                    Frame<E> frame = stack.pop();
+                    sinceFork++;
+                    BinaryTree<E> node = frame.node;
+                    visit(node, frame.depth);
+
+                    BinaryTree<E> left = node.getLeft();
+                    BinaryTree<E> right = node.getRight();
+                    BinaryTree<E> leftCopy = null;
+                    BinaryTree<E> rightCopy = null;
+                    if (frame.copy != null) {
+                        if (left != null) {
+                            leftCopy = copyChild(left);
+                            frame.copy.setLeft(leftCopy);
+                        }
+                        if (right != null) {
+                            rightCopy = copyChild(right);
+                            frame.copy.setRight(rightCopy);
+                        }
+                    }
+                    if (right != null) stack.push(new Frame<>(right, frame.depth + 1, rightCopy));
+                    if (left != null) stack.push(new Frame<>(left, frame.depth + 1, leftCopy));
+                }
+
+                //later forks come earlier in preorder, so finish the newest first
+                W fork = forks.pollLast();
+                if (fork == null) {
+                    return;
+                }
+                if (fork.tryUnfork()) {
+                    //nobody took it: walk it here rather than nesting a join per fork
+                    stack.push(((Walk<E, W>)fork).start);
+                } else {
+                    fork.join();
+                    merge(fork);
+                }
+            }
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private static class CountWalk<E> extends Walk<E, CountWalk<E>> {
+        int count;
+
+        CountWalk(Frame<E> start) {
+            super(start);
+        }
+
+        CountWalk<E> split(Frame<E> frame) {
+            return new CountWalk<>(frame);
+        }
+
+        void visit(BinaryTree<E> node, int depth) {
+            count++;
+        }
+
+        void merge(CountWalk<E> other) {
+            count += other.count;
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private static class HeightWalk<E> extends Walk<E, HeightWalk<E>> {
+        int height;
+
+        HeightWalk(Frame<E> start) {
+            super(start);
+        }
+
+        HeightWalk<E> split(Frame<E> frame) {
+            return new HeightWalk<>(frame);
+        }
+
+        void visit(BinaryTree<E> node, int depth) {
+            height = Math.max(height, depth + 1);
+        }
+
+        void merge(HeightWalk<E> other) {
+            height = Math.max(height, other.height);
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private static class CopyWalk<E> extends Walk<E, CopyWalk<E>> {
+        final boolean decisionNodes;
+
+        CopyWalk(Frame<E> start, boolean decisionNodes) {
+            super(start);
+            this.decisionNodes = decisionNodes;
+        }
+
+        CopyWalk<E> split(Frame<E> frame) {
+            return new CopyWalk<>(frame, decisionNodes);
+        }
+
+        void visit(BinaryTree<E> node, int depth) {
+        }
+
+        void merge(CopyWalk<E> other) {
+        }
+
+        @SuppressWarnings("unchecked")
+        BinaryTree<E> copyChild(BinaryTree<E> child) {
+            return decisionNodes ? (BinaryTree<E>)copyNode((DecisionTree)child) : new BinaryTree<E>(child.getData());
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private static class FindWalk extends Walk<String, FindWalk> {
+        final Predicate<DecisionTree> matches;
+        final List<DecisionTree> found = new ArrayList<>();
+
+        FindWalk(Frame<String> start, Predicate<DecisionTree> matches) {
+            super(start);
+            this.matches = matches;
+        }
+
+        FindWalk split(Frame<String> frame) {
+            return new FindWalk(frame, matches);
+        }
+
+        void visit(BinaryTree<String> node, int depth) {
+            if (matches.test((DecisionTree)node)) {
+                found.add((DecisionTree)node);
+            }
+        }
+
+        void merge(FindWalk other) {
+            found.addAll(other.found);
+        }
+    }
+
+    /**
+     * Counts the nodes in a tree, like BinaryTree.count
+     * @param tree root of tree
+     * @return node count
+     */
+    public static <E> int count(BinaryTree<E> tree) {
+        if (tree.hasCachedStats()) {
+            return tree.count();
+        }
+        CountWalk<E> walk = new CountWalk<>(new Frame<>(tree, 0, null));
+        ForkJoinPool.commonPool().invoke(walk);
+        return walk.count;
+    }
+
+    /**
+     * Computes the height of a tree, like BinaryTree.height
+     * @param tree root of tree
+     * @return number of levels
+     */
+    public static <E> int height(BinaryTree<E> tree) {
+        if (tree.hasCachedStats()) {
+            return tree.height();
+        }
+        HeightWalk<E> walk = new HeightWalk<>(new Frame<>(tree, 0, null));
+        ForkJoinPool.commonPool().invoke(walk);
+        return walk.height;
+    }
+
+    /**
+     * Copies every node of a tree, like the BinaryTree copy constructor
+     * but without recursion, so even very deep trees can be copied
+     * @param tree root of tree
+     * @return root of copy
+     */
+    public static <E> BinaryTree<E> deepCopy(BinaryTree<E> tree) {
+        BinaryTree<E> copy = new BinaryTree<E>(tree.getData());
+        ForkJoinPool.commonPool().invoke(new CopyWalk<>(new Frame<>(tree, 0, copy), false));
+        return copy;
+    }
+
+    /**
+     * Copies every node of a decision tree, keeping visit counts
+     * @param tree root of tree
+     * @return root of copy, sharing no nodes with tree
+     */
+    public static DecisionTree deepCopy(DecisionTree tree) {
+        DecisionTree copy = copyNode(tree);
+        ForkJoinPool.commonPool().invoke(new CopyWalk<String>(new Frame<>(tree, 0, copy), true));
+        return copy;
+    }
+
+    private static DecisionTree copyNode(DecisionTree node) {
+        DecisionTree copy = new DecisionTree(node.getData());
+        copy.setVisits(node.getVisits());
+        return copy;
+    }
+
+    /**
+     * Finds every node matching a test, such as nodes failing a validation check
+     * @param tree root of tree
+     * @param matches test applied to each node, possibly from several threads at once
+     * @return matching nodes in preorder
+     */
+    public static List<DecisionTree> findNodes(DecisionTree tree, Predicate<DecisionTree> matches) {
+        FindWalk walk = new FindWalk(new Frame<>(tree, 0, null), matches);
+        ForkJoinPool.commonPool().invoke(walk);
+        return walk.found;
+    }
+
+    /**
+     * Finds every leaf whose animal matches a test
+     * @param tree root of tree
+     * @param matches test applied to each animal, possibly from several threads at once
+     * @return matching leaves in preorder, i.e. left to right
+     */
+    public static List<DecisionTree> findLeaves(DecisionTree tree, Predicate<String> matches) {
+        return findNodes(tree, node -> node.isLeaf() && matches.test(node.getData()));
+    }
+
+    /**
+     * Audits a knowledge base in parallel and reports questions missing an answer branch
+     * Usage: java ParallelTreeOps filename
+     * @param args command line arguments
+     */
+    public static void main(String[] args) {
+        if (args.length != 1) {
+            System.out.println("Usage: java ParallelTreeOps filename");
+            return;
+        }
+
+        try {
+            DecisionTree tree = BinaryKnowledgeBase.isBinaryFile(args[0])
+                ? BinaryKnowledgeBase.read(args[0]) : DecisionTree.readFile(args[0]);
+            long start = System.nanoTime();
+            int count = count(tree);
+            int height = height(tree);
+            List<DecisionTree> broken = findNodes(tree, node -> (node.getLeft() == null) != (node.getRight() == null));
+            System.out.printf("%d nodes, height %d, audited in %.1f ms on %d threads%n", count, height,
+                (System.nanoTime() - start) / 1e6, ForkJoinPool.commonPool().getParallelism());
+            for (DecisionTree node : broken) {
+                System.out.println("Question missing an answer branch: " + node.getData());
+            }
+        } catch (IOException e) {
+            System.out.println("Error in auditing knowledge base: " + e.getMessage());
+        }
+    }
+}
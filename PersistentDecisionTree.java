@@ -0,0 +1,232 @@
+import java.util.ArrayDeque;
+import java.util.Arrays;
+
+/**
+ * Immutable decision tree node
+ * Learning returns a new root that copies only the nodes on the path to the
+ * split leaf and shares every other subtree with the old version, so any
+ * number of versions can be held at once without locks or full copies
+ */
+public final class PersistentDecisionTree {
+    /** Question or animal name at this node */
+    private final String data;
+
+    /** Yes (left) child, or null */
+    private final PersistentDecisionTree left;
+
+    /** No (right) child, or null */
+    private final PersistentDecisionTree right;
+
+    /**
+     * Creates a leaf node
+     * @param data animal name for this node
+     */
+    public PersistentDecisionTree(String data) {
+        this(data, null, null);
+    }
+
+    /**
+     * Creates a branch node
+     * @param data question for this node
+     * @param left yes child
+     * @param right no child
+     */
+    public PersistentDecisionTree(String data, PersistentDecisionTree left, PersistentDecisionTree right) {
+        this.data = data;
+        this.left = left;
+        this.right = right;
+    }
+
+    /** Accessor for node data */
+    public String getData() {
+        return data;
+    }
+
+    /** Accessor for left child */
+    public PersistentDecisionTree getLeft() {
+        return left;
+    }
+
+    /** Accessor for right child */
+    public PersistentDecisionTree getRight() {
+        return right;
+    }
+
+    /** Determines whether this node is a leaf */
+    public boolean isLeaf() {
+        return (left == null) && (right == null);
+    }
+
+    /**
+     * Navigates through tree following a packed Y/N path
+     * @param path path from this node
+     * @return node at end of path
+     * @throws IllegalArgumentException if the path leads to a null node
+     */
+    public PersistentDecisionTree followPath(TreePath path) {
+        PersistentDecisionTree current = this;
+        for (int i = 0; i < path.length(); i++) {
+            current = path.isYes(i) ? current.left : current.right;
+            if (current == null) {
+                throw new IllegalArgumentException("Path leads to a null node.");
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Creates a new version in which the leaf at a path is split by a question
+     * Only the nodes from the root to that leaf are copied
+     * @param path packed path from this root to the leaf
+     * @param question question that distinguishes the two animals
+     * @param newAnimal animal to add
+     * @param newAnimalIsYes whether the answer to the question is yes for the new animal
+     * @return root of the new version
+     * @throws IllegalArgumentException if the path leads to a null node
+     * @throws UnsupportedOperationException if the path doesn't end at a leaf
+     */
+    public PersistentDecisionTree withSplit(TreePath path, String question, String newAnimal, boolean newAnimalIsYes) {
+        //remember the nodes along the path so they can be rebuilt bottom-up
+        PersistentDecisionTree[] ancestors = new PersistentDecisionTree[path.length()];
+        PersistentDecisionTree current = this;
+        for (int i = 0; i < path.length(); i++) {
+            ancestors[i] = current;
+            current = path.isYes(i) ? current.left : current.right;
+            if (current == null) {
+                throw new IllegalArgumentException("Path leads to a null node.");
+            }
+        }
+        if (!current.isLeaf()) {
+            throw new UnsupportedOperationException("Only a leaf node can be split");
+        }
+
+        PersistentDecisionTree newAnimalNode = new PersistentDecisionTree(newAnimal);
+        PersistentDecisionTree oldAnimalNode = new PersistentDecisionTree(current.data);
+        PersistentDecisionTree replacement = newAnimalIsYes
+            ? new PersistentDecisionTree(question, newAnimalNode, oldAnimalNode)
+            : new PersistentDecisionTree(question, oldAnimalNode, newAnimalNode);
+
+        for (int i = path.length() - 1; i >= 0; i--) {
+            PersistentDecisionTree parent = ancestors[i];
+            replacement = path.isYes(i)
+                ? new PersistentDecisionTree(parent.data, replacement, parent.right)
+                : new PersistentDecisionTree(parent.data, parent.left, replacement);
+        }
+        return replacement;
+    }
+
+    /** Counts the number of nodes */
+    public int count() {
+        int count = 0;
+        ArrayDeque<PersistentDecisionTree> stack = new ArrayDeque<>();
+        stack.push(this);
+        while (!stack.isEmpty()) {
+            PersistentDecisionTree node = stack.pop();
+            count++;
+            if (node.left != null) stack.push(node.left);
+            if (node.right != null) stack.push(node.right);
+        }
+        return count;
+    }
+
+    /** Computes the height of the tree */
+    public int height() {
+        //depth-first, so only the current path and its pending siblings are held
+        int height = 0;
+        ArrayDeque<PersistentDecisionTree> stack = new ArrayDeque<>();
+        int[] depths = new int[16]; //depth of each stack entry, by position from the bottom
+        stack.push(this);
+        depths[0] = 1;
+        while (!stack.isEmpty()) {
+            PersistentDecisionTree node = stack.pop();
+            int depth = depths[stack.size()];
+            height = Math.max(height, depth);
+            if (stack.size() + 2 > depths.length) {
+                depths = Arrays.copyOf(depths, depths.length * 2);
+            }
+            if (node.left != null) {
+                depths[stack.size()] = depth + 1;
+                stack.push(node.left);
+            }
+            if (node.right != null) {
+                depths[stack.size()] = depth + 1;
+                stack.push(node.right);
+            }
+        }
+        return height;
+    }
+
+    /**
+     * Creates an immutable copy of a mutable decision tree
+     * @param tree root of tree to copy
+     * @return root of immutable copy, or null if tree is null
+     */
+    public static PersistentDecisionTree fromTree(DecisionTree tree) {
+        if (tree == null) {
+            return null;
+        }
+
+        //postorder with an explicit stack: children are built before their parent
+        ArrayDeque<DecisionTree> stack = new ArrayDeque<>();
+        ArrayDeque<PersistentDecisionTree> built = new ArrayDeque<>();
+        ArrayDeque<Boolean> expanded = new ArrayDeque<>();
+        stack.push(tree);
+        expanded.push(false);
+        while (!stack.isEmpty()) {
+            DecisionTree node = stack.pop();
+            if (!expanded.pop()) {
+                stack.push(node);
+                expanded.push(true);
+                if (node.getRight() != null) {
+                    stack.push(node.getRight());
+                    expanded.push(false);
+                }
+                if (node.getLeft() != null) {
+                    stack.push(node.getLeft());
+                    expanded.push(false);
+                }
+            } else {
+                PersistentDecisionTree right = (node.getRight() == null) ? null : built.pop();
+                PersistentDecisionTree left = (node.getLeft() == null) ? null : built.pop();
+                built.push(new PersistentDecisionTree(node.getData(), left, right));
+            }
+        }
+        return built.pop();
+    }
+
+    /**
+     * Creates a mutable copy of this version
+     * @return root of new DecisionTree
+     */
+    public DecisionTree toTree() {
+        DecisionTree root = new DecisionTree(data);
+        PersistentDecisionTree[] sources = new PersistentDecisionTree[16];
+        DecisionTree[] copies = new DecisionTree[16];
+        int top = 0;
+        sources[top] = this;
+        copies[top++] = root;
+
+        while (top > 0) {
+            top--;
+            PersistentDecisionTree source = sources[top];
+            DecisionTree copy = copies[top];
+            if (top + 2 > sources.length) {
+                sources = Arrays.copyOf(sources, sources.length * 2);
+                copies = Arrays.copyOf(copies, copies.length * 2);
+            }
+            if (source.left != null) {
+                DecisionTree leftCopy = new DecisionTree(source.left.data);
+                copy.setLeft(leftCopy);
+                sources[top] = source.left;
+                copies[top++] = leftCopy;
+            }
+            if (source.right != null) {
+                DecisionTree rightCopy = new DecisionTree(source.right.data);
+                copy.setRight(rightCopy);
+                sources[top] = source.right;
+                copies[top++] = rightCopy;
+            }
+        }
+        return root;
+    }
+}
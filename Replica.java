@@ -0,0 +1,191 @@
+import java.io.*;
+import java.net.Socket;
+import java.nio.file.Paths;
+
+/**
+ * Read-only copy of a primary's tree kept current from its DeltaLog
+ * Deltas are applied through a GameEngine, so games can be played against
+ * the replica while it catches up. A replica can start from any snapshot
+ * and any sequence number up to the first delta the snapshot is missing:
+ * deltas already in the snapshot are recognised and skipped
+ */
+public class Replica implements DeltaLog.DeltaHandler {
+    /** Milliseconds between catching up from a directory or reconnecting to a primary */
+    private static final long POLL_MILLIS = Long.getLong("animalguess.replica.pollMillis", 1000);
+
+    /** Engine the deltas are applied through */
+    private final GameEngine engine;
+
+    /** Sequence number of the next delta to apply */
+    private volatile long nextSequence;
+
+    /** Reader left open between catchUp calls, or null */
+    private DeltaLog.Reader reader;
+
+    /** Directory the reader reads */
+    private String readerDirectory;
+
+    /**
+     * Creates a replica of a tree loaded from a snapshot
+     * @param engine engine playing with the snapshot
+     * @param nextSequence sequence number of the first delta to apply
+     */
+    public Replica(GameEngine engine, long nextSequence) {
+        this.engine = engine;
+        this.nextSequence = nextSequence;
+    }
+
+    /**
+     * Accessor for the engine, for front ends playing against the replica
+     * @return engine
+     */
+    public GameEngine getEngine() {
+        return engine;
+    }
+
+    /**
+     * Gets the sequence number of the next delta to apply
+     * @return next sequence number
+     */
+    public long getNextSequence() {
+        return nextSequence;
+    }
+
+    /**
+     * Applies the next delta; earlier deltas are ignored
+     * Fetching the same deltas again can't fix either failure below, so
+     * they are reported as unchecked exceptions rather than IOExceptions
+     * @param delta delta to apply
+     * @throws IllegalArgumentException if deltas are missing before this one or it doesn't fit the tree
+     * @throws IOException if a learning listener on the replica's engine fails
+     */
+    @Override
+    public synchronized void apply(DeltaLog.Delta delta) throws IOException {
+        if (delta.getSequence() < nextSequence) {
+            return; //already applied
+        }
+        if (delta.getSequence() > nextSequence) {
+            throw new IllegalArgumentException("Missing deltas from sequence " + nextSequence + " to "
+                + (delta.getSequence() - 1));
+        }
+        try {
+            engine.applySplit(delta.getPath(), delta.getQuestion(), delta.getAnimal(), delta.isAnimalYes());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Delta " + delta.getSequence() + " doesn't fit tree: " + e.getMessage());
+        }
+        nextSequence++;
+    }
+
+    /**
+     * Applies every delta the primary has written to a log directory since the last call
+     * The log is read on from where the previous call stopped
+     * @param directory primary's delta log directory
+     * @return number of deltas applied
+     * @throws IOException if reading the log fails
+     * @throws IllegalArgumentException if a delta can't be applied
+     */
+    public synchronized long catchUp(String directory) throws IOException {
+        if (reader == null || !directory.equals(readerDirectory) || reader.getNextSequence() != nextSequence) {
+            if (reader != null) {
+                reader.close();
+            }
+            reader = new DeltaLog.Reader(Paths.get(directory), nextSequence);
+            readerDirectory = directory;
+        }
+        return reader.read(this);
+    }
+
+    /**
+     * Connects to a primary serving its delta log and applies deltas as they
+     * arrive, until the primary disconnects
+     * @param host primary's host
+     * @param port port the primary serves deltas on
+     * @throws IOException if connecting or reading fails
+     * @throws IllegalArgumentException if a delta can't be applied
+     */
+    public void follow(String host, int port) throws IOException {
+        try (Socket socket = new Socket(host, port);
+             DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+             DataOutputStream out = new DataOutputStream(socket.getOutputStream())) {
+            out.writeLong(nextSequence);
+            out.flush();
+            while (true) {
+                in.mark(1);
+                if (in.read() == -1) {
+                    return; //primary closed the log
+                }
+                in.reset();
+                DeltaLog.Delta delta = DeltaLog.readDelta(in, Long.MAX_VALUE);
+                if (delta == null) {
+                    throw new IOException("Corrupt delta from primary after sequence " + (nextSequence - 1));
+                }
+                apply(delta);
+            }
+        }
+    }
+
+    /**
+     * Keeps a replica of a snapshot current from a delta log directory or a
+     * primary's socket until interrupted
+     * Usage: java Replica snapshot directory|host:port [fromSequence]
+     * @param args command line arguments
+     */
+    public static void main(String[] args) {
+        if (args.length < 2 || args.length > 3) {
+            System.out.println("Usage: java Replica snapshot directory|host:port [fromSequence]");
+            return;
+        }
+
+        Replica replica;
+        try {
+            DecisionTree tree = BinaryKnowledgeBase.isBinaryFile(args[0])
+                ? BinaryKnowledgeBase.read(args[0]) : DecisionTree.readFile(args[0]);
+            long from = (args.length == 3) ? Long.parseLong(args[2]) : 1;
+            replica = new Replica(new GameEngine(tree, AnimalIndex.build(tree)), from);
+        } catch (IOException e) {
+            System.out.println("Error in loading snapshot: " + e.getMessage());
+            return;
+        } catch (NumberFormatException e) {
+            System.out.println("Error in sequence number: " + e.getMessage());
+            return;
+        }
+
+        String source = args[1];
+        int colon = source.lastIndexOf(':');
+        boolean socket = colon > 0 && !new File(source).isDirectory();
+        int port = 0;
+        if (socket) {
+            try {
+                port = Integer.parseInt(source.substring(colon + 1));
+            } catch (NumberFormatException e) {
+                System.out.println("Error in port number: " + e.getMessage());
+                return;
+            }
+        }
+        while (!Thread.currentThread().isInterrupted()) {
+            long before = replica.getNextSequence();
+            try {
+                if (socket) {
+                    replica.follow(source.substring(0, colon), port);
+                } else {
+                    replica.catchUp(source);
+                }
+            } catch (IOException e) {
+                System.out.println("Error in following primary: " + e.getMessage());
+            } catch (IllegalArgumentException e) {
+                //the same delta would fail again on every retry
+                System.out.println("Error in applying delta: " + e.getMessage());
+                return;
+            }
+            if (replica.getNextSequence() != before) {
+                System.out.println("Applied deltas up to sequence " + (replica.getNextSequence() - 1)
+                    + "; tree has " + ParallelTreeOps.count(replica.getEngine().getRoot()) + " nodes");
+            }
+            try {
+                Thread.sleep(POLL_MILLIS);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,235 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Log of played games that can be replayed against a tree at machine speed
+ * Each game is one line: the Y/N answers in the order they were given,
+ * ending with the answer to the final guess, and for a wrong guess then a
+ * tab, the player's animal, a tab, their question, a tab and Y or N for the
+ * animal's answer to that question, e.g. "YNN" or "YNN\tCat\tDoes it purr?\tY"
+ * Replaying the lines in order repeats every round and every learned split
+ */
+public class SessionLog implements Closeable {
+    /** Size of read and write buffers */
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /** Buffered writer for recorded games */
+    private final BufferedWriter out;
+
+    /** Totals from replaying a log */
+    public static class ReplayStats {
+        private long games;
+        private long guessedRight;
+        private long learned;
+        private long invalid;
+
+        /** @return number of lines replayed */
+        public long getGames() { return games; }
+
+        /** @return number of games ending in a correct guess */
+        public long getGuessedRight() { return guessedRight; }
+
+        /** @return number of splits learned */
+        public long getLearned() { return learned; }
+
+        /** @return number of lines that didn't fit the tree and were skipped */
+        public long getInvalid() { return invalid; }
+
+        @Override
+        public String toString() {
+            return games + " games, " + guessedRight + " guessed right, " + learned + " learned, "
+                + invalid + " invalid";
+        }
+    }
+
+    /**
+     * Opens a log for appending recorded games
+     * @param filename log file, created if missing
+     * @throws IOException if the file can't be opened
+     */
+    public SessionLog(String filename) throws IOException {
+        this.out = new BufferedWriter(new OutputStreamWriter(
+            new FileOutputStream(filename, true), StandardCharsets.UTF_8), BUFFER_SIZE);
+    }
+
+    /**
+     * Records one finished game
+     * Tabs and line breaks in the player's text are written as spaces
+     * @param game game in state DONE
+     * @param question question the player typed, or null if the guess was right
+     * @param animalIsYes the animal's answer to the question
+     * @throws IOException if writing fails
+     */
+    public synchronized void record(GameEngine.Game game, String question, boolean animalIsYes) throws IOException {
+        game.getPath().appendTo(out);
+        if (game.isGuessedRight()) {
+            out.write('Y');
+        } else {
+            out.write('N');
+            out.write('\t');
+            out.write(clean(game.getAnimal()));
+            out.write('\t');
+            out.write(clean(question));
+            out.write('\t');
+            out.write(animalIsYes ? 'Y' : 'N');
+        }
+        out.newLine();
+    }
+
+    /**
+     * Flushes recorded games to the file
+     * @throws IOException if writing fails
+     */
+    public synchronized void flush() throws IOException {
+        out.flush();
+    }
+
+    /**
+     * Flushes and closes the log
+     * @throws IOException if writing fails
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        out.close();
+    }
+
+    private static String clean(String text) {
+        return text.replace('\t', ' ').replace('\n', ' ').replace('\r', ' ');
+    }
+
+    /**
+     * Replays every game in a log, learning as the players taught
+     * Lines that don't fit the tree are counted as invalid and skipped
+     * @param engine engine to play against
+     * @param filename log to replay
+     * @param transcript where to write one result line per game, or null
+     * @return totals for the replay
+     * @throws IOException if reading the log or a learning listener fails
+     */
+    public static ReplayStats replay(GameEngine engine, String filename, Writer transcript) throws IOException {
+        ReplayStats stats = new ReplayStats();
+        PrintWriter report = (transcript == null) ? null
+            : new PrintWriter(new BufferedWriter(transcript, BUFFER_SIZE), false);
+        try (BufferedReader in = new BufferedReader(
+                new InputStreamReader(new FileInputStream(filename), StandardCharsets.UTF_8), BUFFER_SIZE)) {
+            String line;
+            long lineNumber = 0;
+            while ((line = in.readLine()) != null) {
+                lineNumber++;
+                if (line.isEmpty()) {
+                    continue;
+                }
+                stats.games++;
+                String result = replayLine(engine, line, stats);
+                if (result == null) {
+                    stats.invalid++;
+                    result = "invalid line";
+                }
+                if (report != null) {
+                    report.print(lineNumber);
+                    report.print(": ");
+                    report.println(result);
+                }
+            }
+        } finally {
+            if (report != null) {
+                report.flush();
+            }
+        }
+        return stats;
+    }
+
+    /**
+     * Plays one logged game
+     * @return description of the outcome, or null if the line doesn't fit the tree
+     */
+    private static String replayLine(GameEngine engine, String line, ReplayStats stats) throws IOException {
+        int tab = line.indexOf('\t');
+        int answersEnd = (tab == -1) ? line.length() : tab;
+
+        GameEngine.Game game = engine.newGame();
+        for (int i = 0; i < answersEnd; i++) {
+            char answer = line.charAt(i);
+            if ((answer != 'Y' && answer != 'N') || game.getState() == GameEngine.State.LEARN
+                    || game.getState() == GameEngine.State.DONE) {
+                return null;
+            }
+            game.answer(answer == 'Y');
+        }
+
+        if (game.getState() == GameEngine.State.DONE && tab == -1) {
+            if (game.isGuessedRight()) {
+                stats.guessedRight++;
+            }
+            return game.isGuessedRight() ? "guessed " + game.getPrompt() : "no answer at " + game.getPath();
+        }
+        if (game.getState() != GameEngine.State.LEARN || tab == -1) {
+            return null;
+        }
+
+        int questionStart = line.indexOf('\t', tab + 1) + 1;
+        int answerStart = (questionStart == 0) ? -1 : line.indexOf('\t', questionStart) + 1;
+        if (answerStart <= 0 || answerStart != line.length() - 1) {
+            return null;
+        }
+        char animalAnswer = line.charAt(answerStart);
+        if (animalAnswer != 'Y' && animalAnswer != 'N') {
+            return null;
+        }
+        String animal = line.substring(tab + 1, questionStart - 1);
+        String question = line.substring(questionStart, answerStart - 1);
+        String wrongGuess = game.getPrompt();
+        game.learn(animal, question, animalAnswer == 'Y');
+        stats.learned++;
+        return "learned " + animal + " instead of " + wrongGuess;
+    }
+
+    /**
+     * Replays session logs against a knowledge base
+     * Usage: java SessionLog [-v] tree log... [-o output]
+     * -v writes a line per game to standard output; -o saves the resulting tree
+     * @param args command line arguments
+     */
+    public static void main(String[] args) {
+        boolean verbose = false;
+        String output = null;
+        List<String> files = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-v")) {
+                verbose = true;
+            } else if (args[i].equals("-o") && i + 1 < args.length) {
+                output = args[++i];
+            } else {
+                files.add(args[i]);
+            }
+        }
+        if (files.size() < 2) {
+            System.out.println("Usage: java SessionLog [-v] tree log... [-o output]");
+            return;
+        }
+
+        try {
+            String treeFile = files.get(0);
+            DecisionTree tree = BinaryKnowledgeBase.isBinaryFile(treeFile)
+                ? BinaryKnowledgeBase.read(treeFile) : DecisionTree.readFile(treeFile);
+            GameEngine engine = new GameEngine(tree);
+
+            Writer transcript = verbose ? new OutputStreamWriter(System.out, StandardCharsets.UTF_8) : null;
+            for (String log : files.subList(1, files.size())) {
+                long start = System.nanoTime();
+                ReplayStats stats = replay(engine, log, transcript);
+                double seconds = (System.nanoTime() - start) / 1e9;
+                System.out.printf("%s: %s in %.3f s (%.0f games/s)%n", log, stats, seconds, stats.getGames() / seconds);
+            }
+
+            if (output != null) {
+                engine.getRoot().writeToFile(output);
+                System.out.println("Replayed tree saved to: " + output);
+            }
+        } catch (IOException e) {
+            System.out.println("Error in replaying session log: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,464 @@
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Knowledge base stored as a directory of small text files
+ * The top levels of the tree, down to and including the nodes at the shard
+ * depth, are kept in root.txt; the subtree below each node at the shard
+ * depth is kept in its own file named by its path, e.g. shard-YNNY.txt
+ * Shards are read only when a game first reaches them, and a save rewrites
+ * only the files holding nodes that learning changed, so load and save cost
+ * follow the part of the tree in use rather than its total size
+ * Every file is in the ordinary breadth-first text format
+ * A save writes its files beside the old ones, then lists them in
+ * save.pending before renaming any; open finishes the renames of a save
+ * that was listed but interrupted, so the files always come from one save
+ * The tree is never read in full, so there is no animal index and learning
+ * can't detect that an animal already has a leaf elsewhere
+ */
+public class ShardedKnowledgeBase implements GameEngine.LearningListener {
+    /** Shard depth for new knowledge bases */
+    public static final int DEFAULT_DEPTH = Integer.getInteger("animalguess.shardDepth", 8);
+
+    private static final String ROOT_FILE = "root.txt";
+    private static final String MANIFEST_FILE = "shards.properties";
+    private static final String PENDING_FILE = "save.pending";
+
+    /** Directory holding the files */
+    private final Path directory;
+
+    /** Path length of shard roots */
+    private final int depth;
+
+    /** Whether root.txt needs rewriting */
+    private boolean rootChanged;
+
+    /** Whether every shard needs writing, as for a new knowledge base */
+    private boolean allChanged;
+
+    /** Prefixes of shards that need rewriting */
+    private final Set<TreePath> changedShards = new HashSet<>();
+
+    /** Number of shards read so far */
+    private final AtomicInteger loadedShards = new AtomicInteger();
+
+    /**
+     * Node at the shard depth whose children are read from its shard file on first use
+     */
+    private static class ShardNode extends DecisionTree {
+        private final ShardedKnowledgeBase owner;
+        private final Path file;
+        private volatile boolean loaded;
+
+        ShardNode(ShardedKnowledgeBase owner, Path file, String data) {
+            super(data);
+            this.owner = owner;
+            this.file = file;
+        }
+
+        /**
+         * Reads the children from the shard file the first time they're needed
+         * @throws UncheckedIOException if the shard can't be read, since getters can't throw IOException
+         */
+        private void load() {
+            if (loaded) {
+                return;
+            }
+            synchronized (this) {
+                if (loaded) {
+                    return;
+                }
+                try {
+                    DecisionTree shard = DecisionTree.readFile(file.toString());
+                    if (shard != null) {
+                        super.setLeft(shard.getLeft());
+                        super.setRight(shard.getRight());
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException("Error in loading shard " + file, e);
+                }
+                owner.loadedShards.incrementAndGet();
+                loaded = true;
+            }
+        }
+
+        /** Gets left child, reading the shard if needed */
+        public DecisionTree getLeft() {
+            load();
+            return super.getLeft();
+        }
+
+        /** Gets right child, reading the shard if needed */
+        public DecisionTree getRight() {
+            load();
+            return super.getRight();
+        }
+
+        /** Determines whether this node is a leaf, reading the shard if needed */
+        public boolean isLeaf() {
+            load();
+            return super.isLeaf();
+        }
+
+        /** Determines whether this node is a branch */
+        public boolean isBranch() {
+            return !isLeaf();
+        }
+
+        /** Sets left child once the shard is read, so the read can't undo it */
+        public void setLeft(BinaryTree<String> left) {
+            load();
+            super.setLeft(left);
+        }
+
+        /** Sets right child once the shard is read, so the read can't undo it */
+        public void setRight(BinaryTree<String> right) {
+            load();
+            super.setRight(right);
+        }
+    }
+
+    private ShardedKnowledgeBase(Path directory, int depth) {
+        this.directory = directory;
+        this.depth = depth;
+    }
+
+    /**
+     * Checks whether a knowledge base name refers to a sharded directory
+     * @param filename name given on the command line
+     * @return true if it is a directory
+     */
+    public static boolean isShardedDirectory(String filename) {
+        return Files.isDirectory(Paths.get(filename));
+    }
+
+    /**
+     * Starts a new sharded knowledge base; the first save writes every file
+     * @param directory directory to store the files in, created if missing
+     * @param depth path length of shard roots, at least 1
+     * @return empty knowledge base
+     * @throws IllegalArgumentException if depth is less than 1
+     */
+    public static ShardedKnowledgeBase create(String directory, int depth) {
+        if (depth < 1) {
+            throw new IllegalArgumentException("Shard depth must be at least 1: " + depth);
+        }
+        ShardedKnowledgeBase shards = new ShardedKnowledgeBase(Paths.get(directory), depth);
+        shards.rootChanged = true;
+        shards.allChanged = true;
+        return shards;
+    }
+
+    /**
+     * Opens an existing sharded knowledge base, finishing a save that was interrupted
+     * @param directory directory holding the files
+     * @return knowledge base ready to load
+     * @throws IOException if the manifest is missing or invalid, or an interrupted save can't be finished
+     */
+    public static ShardedKnowledgeBase open(String directory) throws IOException {
+        finishSave(Paths.get(directory));
+        Properties manifest = new Properties();
+        try (Reader in = Files.newBufferedReader(Paths.get(directory, MANIFEST_FILE), StandardCharsets.UTF_8)) {
+            manifest.load(in);
+        }
+        try {
+            int depth = Integer.parseInt(manifest.getProperty("depth", ""));
+            if (depth < 1) {
+                throw new IOException("Invalid shard depth in " + MANIFEST_FILE + ": " + depth);
+            }
+            return new ShardedKnowledgeBase(Paths.get(directory), depth);
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid shard depth in " + MANIFEST_FILE + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Reads root.txt; nodes at the shard depth read their shards when first used
+     * @return root node, or null if the tree is empty
+     * @throws IOException if root.txt can't be read
+     */
+    public DecisionTree load() throws IOException {
+        DecisionTree root = DecisionTree.readFile(directory.resolve(ROOT_FILE).toString());
+        if (root == null) {
+            return null;
+        }
+
+        //swap each node at the shard depth for a node that reads its shard on demand
+        ArrayDeque<DecisionTree> nodes = new ArrayDeque<>();
+        ArrayDeque<TreePath> paths = new ArrayDeque<>();
+        nodes.addLast(root);
+        paths.addLast(TreePath.ROOT);
+        while (!nodes.isEmpty()) {
+            DecisionTree node = nodes.pollFirst();
+            TreePath path = paths.pollFirst();
+            if (path.length() == depth - 1) {
+                if (node.getLeft() != null) {
+                    node.setLeft(shardNode(path.child(true), node.getLeft()));
+                }
+                if (node.getRight() != null) {
+                    node.setRight(shardNode(path.child(false), node.getRight()));
+                }
+                continue;
+            }
+            if (node.getLeft() != null) {
+                nodes.addLast(node.getLeft());
+                paths.addLast(path.child(true));
+            }
+            if (node.getRight() != null) {
+                nodes.addLast(node.getRight());
+                paths.addLast(path.child(false));
+            }
+        }
+        return root;
+    }
+
+    private ShardNode shardNode(TreePath prefix, DecisionTree top) {
+        ShardNode node = new ShardNode(this, shardFile(prefix), top.getData());
+        node.setVisits(top.getVisits());
+        return node;
+    }
+
+    /**
+     * Records that the leaf at a path was split, so the files holding it are saved
+     * @param path path of the split leaf
+     */
+    public synchronized void markChanged(TreePath path) {
+        if (path.length() < depth) {
+            rootChanged = true;
+            if (path.length() == depth - 1) {
+                //the new children start two new shards
+                changedShards.add(path.child(true));
+                changedShards.add(path.child(false));
+            }
+        } else {
+            if (path.length() == depth) {
+                rootChanged = true; //root.txt holds the shard root's text
+            }
+            changedShards.add(path.prefix(depth));
+        }
+    }
+
+    /**
+     * Marks the files touched by a learned split, as a learning listener
+     */
+    @Override
+    public void learned(TreePath path, String question, String animal, boolean animalIsYes) {
+        markChanged(path);
+    }
+
+    /**
+     * Writes root.txt and the shards changed since the last save
+     * The files replace the old ones together: each is written to a temporary
+     * file first, and the renames are recorded in save.pending so open can
+     * finish them after a crash. Shards are renamed before root.txt
+     * @param root current root of tree
+     * @return totals for the files written
+     * @throws IOException if writing fails
+     */
+    public synchronized TreeFileWriter.WriteStats save(DecisionTree root) throws IOException {
+        long start = System.nanoTime();
+        long nodes = 0;
+        long bytes = 0;
+        Files.createDirectories(directory);
+        finishSave(directory); //a save left half done must not be mixed with this one
+
+        Set<TreePath> shards = changedShards;
+        if (allChanged) {
+            shards = shardPrefixes(root);
+        }
+        List<Path> written = new ArrayList<>();
+        try {
+            for (TreePath prefix : shards) {
+                Path target = shardFile(prefix);
+                written.add(target);
+                TreeFileWriter.WriteStats stats = TreeFileWriter.writeTemporary(root.followPath(prefix),
+                    TreeFileWriter.temporaryFileFor(target));
+                nodes += stats.getNodes();
+                bytes += stats.getBytes();
+            }
+            if (rootChanged) {
+                Path manifestFile = directory.resolve(MANIFEST_FILE);
+                if (!Files.exists(manifestFile)) {
+                    Properties manifest = new Properties();
+                    manifest.setProperty("depth", Integer.toString(depth));
+                    try (Writer out = Files.newBufferedWriter(manifestFile, StandardCharsets.UTF_8)) {
+                        manifest.store(out, "Sharded animal knowledge base");
+                    }
+                }
+                Path target = directory.resolve(ROOT_FILE);
+                written.add(target);
+                TreeFileWriter.WriteStats stats = writeTop(root, TreeFileWriter.temporaryFileFor(target));
+                nodes += stats.getNodes();
+                bytes += stats.getBytes();
+            }
+        } catch (IOException e) {
+            for (Path target : written) {
+                Files.deleteIfExists(TreeFileWriter.temporaryFileFor(target));
+            }
+            throw e;
+        }
+
+        //once the list is in place the save counts as made, even if the renames are cut short
+        Path pending = directory.resolve(PENDING_FILE);
+        Path pendingTemp = TreeFileWriter.temporaryFileFor(pending);
+        try (FileChannel channel = FileChannel.open(pendingTemp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            Writer out = new OutputStreamWriter(Channels.newOutputStream(channel), StandardCharsets.UTF_8);
+            for (Path target : written) {
+                out.write(target.getFileName().toString());
+                out.write('\n');
+            }
+            out.flush();
+            channel.force(true);
+        }
+        TreeFileWriter.moveIntoPlace(pendingTemp, pending);
+        finishSave(directory);
+
+        rootChanged = false;
+        allChanged = false;
+        changedShards.clear();
+        return new TreeFileWriter.WriteStats(nodes, bytes, System.nanoTime() - start);
+    }
+
+    /**
+     * Renames the files listed in save.pending into place, then removes the list
+     * Files already renamed have no temporary file left and are skipped
+     */
+    private static void finishSave(Path directory) throws IOException {
+        Path pending = directory.resolve(PENDING_FILE);
+        if (!Files.exists(pending)) {
+            return;
+        }
+        for (String name : Files.readAllLines(pending, StandardCharsets.UTF_8)) {
+            if (name.isEmpty()) {
+                continue;
+            }
+            Path target = directory.resolve(name);
+            Path temp = TreeFileWriter.temporaryFileFor(target);
+            if (Files.exists(temp)) {
+                TreeFileWriter.moveIntoPlace(temp, target);
+            }
+        }
+        Files.delete(pending);
+    }
+
+    /**
+     * Writes the nodes down to the shard depth in breadth-first order and forces them to disk
+     */
+    private TreeFileWriter.WriteStats writeTop(DecisionTree root, Path temp) throws IOException {
+        long start = System.nanoTime();
+        long nodes = 0;
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            Writer out = new BufferedWriter(new OutputStreamWriter(Channels.newOutputStream(channel), StandardCharsets.UTF_8));
+            ArrayDeque<DecisionTree> queue = new ArrayDeque<>();
+            ArrayDeque<TreePath> paths = new ArrayDeque<>();
+            queue.addLast(root);
+            paths.addLast(TreePath.ROOT);
+            while (!queue.isEmpty()) {
+                DecisionTree node = queue.pollFirst();
+                TreePath path = paths.pollFirst();
+                path.appendTo(out);
+                out.write(' ');
+                out.write(node.getData());
+                out.write('\n');
+                nodes++;
+                if (path.length() == depth) {
+                    continue; //children live in the shard
+                }
+                if (node.getLeft() != null) {
+                    queue.addLast(node.getLeft());
+                    paths.addLast(path.child(true));
+                }
+                if (node.getRight() != null) {
+                    queue.addLast(node.getRight());
+                    paths.addLast(path.child(false));
+                }
+            }
+            out.flush();
+            channel.force(true);
+        } catch (IOException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        long bytes = Files.size(temp);
+        return new TreeFileWriter.WriteStats(nodes, bytes, System.nanoTime() - start);
+    }
+
+    /**
+     * Lists the paths of every node at the shard depth
+     */
+    private Set<TreePath> shardPrefixes(DecisionTree root) {
+        Set<TreePath> prefixes = new HashSet<>();
+        ArrayDeque<DecisionTree> nodes = new ArrayDeque<>();
+        ArrayDeque<TreePath> paths = new ArrayDeque<>();
+        nodes.push(root);
+        paths.push(TreePath.ROOT);
+        while (!nodes.isEmpty()) {
+            DecisionTree node = nodes.pop();
+            TreePath path = paths.pop();
+            if (path.length() == depth) {
+                prefixes.add(path);
+                continue;
+            }
+            if (node.getLeft() != null) {
+                nodes.push(node.getLeft());
+                paths.push(path.child(true));
+            }
+            if (node.getRight() != null) {
+                nodes.push(node.getRight());
+                paths.push(path.child(false));
+            }
+        }
+        return prefixes;
+    }
+
+    private Path shardFile(TreePath prefix) {
+        return directory.resolve("shard-" + prefix + ".txt");
+    }
+
+    /** Accessor for path length of shard roots */
+    public int getDepth() {
+        return depth;
+    }
+
+    /** Accessor for number of shards read so far */
+    public int getLoadedShards() {
+        return loadedShards.get();
+    }
+
+    /**
+     * Splits a knowledge file into a new sharded directory
+     * Usage: java ShardedKnowledgeBase input directory [depth]
+     * @param args command line arguments
+     */
+    public static void main(String[] args) {
+        if (args.length < 2 || args.length > 3) {
+            System.out.println("Usage: java ShardedKnowledgeBase input directory [depth]");
+            return;
+        }
+
+        try {
+            int depth = (args.length == 3) ? Integer.parseInt(args[2]) : DEFAULT_DEPTH;
+            DecisionTree tree = BinaryKnowledgeBase.isBinaryFile(args[0])
+                ? BinaryKnowledgeBase.read(args[0]) : DecisionTree.readFile(args[0]);
+            TreeFileWriter.WriteStats stats = create(args[1], depth).save(tree);
+            System.out.println("Sharded knowledge saved to: " + args[1] + " (" + stats + ")");
+        } catch (IOException e) {
+            System.out.println("Error in sharding knowledge base: " + e.getMessage());
+        }
+    }
+}
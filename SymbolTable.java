@@ -0,0 +1,163 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Table that stores each distinct question or animal text once
+ * Texts are kept as compact UTF-8 byte arrays and referenced by int id.
+ * Ids are local to one table, so each tree, load or file being written owns
+ * its table and the texts go away with it. Each id also keeps its String,
+ * taken from the TextPool when the text is added, so text() neither decodes
+ * nor locks
+ */
+public class SymbolTable {
+    /** UTF-8 bytes of each symbol, indexed by id */
+    private byte[][] symbols = new byte[16][];
+
+    /** String hash code of each symbol, indexed by id */
+    private int[] hashes = new int[16];
+
+    /** Pooled String of each symbol, indexed by id; replaced, never resized in place, so readers need no lock */
+    private volatile String[] texts = new String[16];
+
+    /** Open-addressing hash table of id + 1, with 0 marking an empty slot */
+    private int[] slots = new int[32];
+
+    /** Number of symbols */
+    private int size;
+
+    /**
+     * Finds the id of a text, adding it if it is new
+     * @param text text to store
+     * @return id of the text
+     */
+    public synchronized int intern(String text) {
+        int hash = text.hashCode();
+        int mask = slots.length - 1;
+        int slot = spread(hash) & mask;
+        while (slots[slot] != 0) {
+            int id = slots[slot] - 1;
+            if (hashes[id] == hash && matches(symbols[id], text)) {
+                return id;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        if (size == symbols.length) {
+            symbols = Arrays.copyOf(symbols, size * 2);
+            hashes = Arrays.copyOf(hashes, size * 2);
+        }
+        int id = size++;
+        symbols[id] = text.getBytes(StandardCharsets.UTF_8);
+        hashes[id] = hash;
+        String[] pooled = (id < texts.length) ? texts : Arrays.copyOf(texts, symbols.length);
+        pooled[id] = TextPool.shared().canonical(text);
+        texts = pooled; //volatile write publishes the new entry to text()
+        slots[slot] = id + 1;
+        if (size * 2 > slots.length) {
+            rehash();
+        }
+        return id;
+    }
+
+    /**
+     * Finds the id of a text without adding it
+     * @param text text to look up
+     * @return id of the text, or -1 if it isn't in the table
+     */
+    public synchronized int lookup(String text) {
+        int hash = text.hashCode();
+        int mask = slots.length - 1;
+        for (int slot = spread(hash) & mask; slots[slot] != 0; slot = (slot + 1) & mask) {
+            int id = slots[slot] - 1;
+            if (hashes[id] == hash && matches(symbols[id], text)) {
+                return id;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Gets the text of a symbol as its pooled String, without locking
+     * @param id symbol id
+     * @return text of the symbol
+     */
+    public String text(int id) {
+        String[] texts = this.texts;
+        String text = (id >= 0 && id < texts.length) ? texts[id] : null;
+        if (text == null) {
+            throw new IndexOutOfBoundsException("No symbol with id " + id);
+        }
+        return text;
+    }
+
+    /**
+     * Gets the pooled String for a text, adding the text if it is new
+     * Repeated texts take only this table's lock, not the TextPool's
+     * @param text text to canonicalize
+     * @return String equal to text that is shared with every other holder of the text
+     */
+    public String canonical(String text) {
+        return text(intern(text));
+    }
+
+    /**
+     * Gets the UTF-8 bytes of a symbol
+     * The returned array is the table's own copy and must not be modified
+     * @param id symbol id
+     * @return UTF-8 encoded text
+     */
+    public synchronized byte[] utf8(int id) {
+        checkId(id);
+        return symbols[id];
+    }
+
+    /**
+     * Gets the number of symbols in the table
+     * @return symbol count
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    private void checkId(int id) {
+        if (id < 0 || id >= size) {
+            throw new IndexOutOfBoundsException("No symbol with id " + id);
+        }
+    }
+
+    /** Doubles the hash table and reinserts every id */
+    private void rehash() {
+        slots = new int[slots.length * 2];
+        int mask = slots.length - 1;
+        for (int id = 0; id < size; id++) {
+            int slot = spread(hashes[id]) & mask;
+            while (slots[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = id + 1;
+        }
+    }
+
+    /** Mixes high bits of a hash code into the low bits used for slots */
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * Compares stored UTF-8 bytes with a String, without encoding ASCII text
+     */
+    private static boolean matches(byte[] bytes, String text) {
+        int length = text.length();
+        if (bytes.length == length) {
+            //equal lengths can only match if the text is pure ASCII
+            for (int i = 0; i < length; i++) {
+                char c = text.charAt(i);
+                if (c >= 0x80 || bytes[i] != c) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return bytes.length > length && Arrays.equals(bytes, text.getBytes(StandardCharsets.UTF_8));
+    }
+}
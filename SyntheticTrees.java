@@ -0,0 +1,91 @@
+import java.util.Random;
+
+/**
+ * Seeded generator of decision trees with a chosen shape and size
+ * Trees are grown the way learnFromWrongGuess grows them, by repeatedly
+ * splitting a leaf into a question with two animals, so every tree has an
+ * odd number of nodes and every question has both children
+ */
+public class SyntheticTrees {
+
+    /** Which leaf is split at each step */
+    public enum Shape {
+        /** Oldest leaf first, giving a complete tree of minimum height */
+        BALANCED,
+        /** Uniformly random leaf, like organic learning */
+        RANDOM,
+        /** Newest leaf, giving a degenerate chain as tall as possible */
+        CHAIN
+    }
+
+    /**
+     * Generates a tree
+     * @param shape how leaves are chosen for splitting
+     * @param nodes target node count, rounded up to the next odd number
+     * @param seed random seed, so the same arguments give the same tree
+     * @return root of generated tree
+     */
+    public static DecisionTree generate(Shape shape, int nodes, long seed) {
+        Random random = new Random(seed);
+        int splits = Math.max(0, nodes / 2);
+        DecisionTree root = new DecisionTree("Animal 0");
+
+        //leaves waiting to be split; BALANCED reads from the front, others from anywhere
+        DecisionTree[] leaves = new DecisionTree[2 * splits + 1];
+        int head = 0;
+        int tail = 0;
+        leaves[tail++] = root;
+
+        for (int i = 0; i < splits; i++) {
+            int index;
+            if (shape == Shape.BALANCED) {
+                index = head++;
+            } else if (shape == Shape.CHAIN) {
+                index = tail - 1;
+            } else {
+                index = head + random.nextInt(tail - head);
+            }
+            DecisionTree leaf = leaves[index];
+            //remove the chosen leaf by moving the last one into its slot
+            if (shape != Shape.BALANCED) {
+                leaves[index] = leaves[--tail];
+            }
+
+            DecisionTree newAnimal = new DecisionTree("Animal " + (i + 1));
+            DecisionTree oldAnimal = new DecisionTree(leaf.getData());
+            boolean newAnimalIsYes = random.nextBoolean();
+            leaf.setData("Question " + i + "?");
+            leaf.setLeft(newAnimalIsYes ? newAnimal : oldAnimal);
+            leaf.setRight(newAnimalIsYes ? oldAnimal : newAnimal);
+
+            //CHAIN always splits the "N" child pushed last
+            leaves[tail++] = leaf.getLeft();
+            leaves[tail++] = leaf.getRight();
+        }
+        return root;
+    }
+
+    /**
+     * Generates paths from the root to randomly chosen leaves
+     * @param tree root of tree
+     * @param count number of paths
+     * @param seed random seed
+     * @return Y/N paths that each end at a leaf
+     */
+    public static String[] randomLeafPaths(DecisionTree tree, int count, long seed) {
+        Random random = new Random(seed);
+        String[] paths = new String[count];
+        StringBuilder path = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            path.setLength(0);
+            DecisionTree node = tree;
+            while (!node.isLeaf()) {
+                boolean yes = (node.getRight() == null) || (node.getLeft() != null && random.nextBoolean());
+                node = yes ? node.getLeft() : node.getRight();
+                path.append(yes ? 'Y' : 'N');
+            }
+            paths[i] = path.toString();
+        }
+        return paths;
+    }
+}
@@ -0,0 +1,66 @@
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Pool that lets every node with the same question or animal text share one String
+ * Entries are held weakly, so a text drops out of the pool once no tree
+ * refers to it any more and long sessions that load, learn and discard
+ * trees don't accumulate every text they have ever seen
+ */
+public class TextPool {
+    /** Pool shared by loading, learning and serialization */
+    private static final TextPool SHARED = new TextPool();
+
+    /** Each pooled text mapped to itself; neither key nor value keeps it alive */
+    private final WeakHashMap<String, WeakReference<String>> texts = new WeakHashMap<>();
+
+    /**
+     * Gets the pool shared by the whole program
+     * @return shared text pool
+     */
+    public static TextPool shared() {
+        return SHARED;
+    }
+
+    /**
+     * Gets the shared String instance for a text, adding the text if it is new
+     * @param text text to canonicalize
+     * @return String equal to text that is shared by every caller
+     */
+    public synchronized String canonical(String text) {
+        WeakReference<String> reference = texts.get(text);
+        String pooled = (reference == null) ? null : reference.get();
+        if (pooled == null) {
+            texts.put(text, new WeakReference<>(text));
+            pooled = text;
+        }
+        return pooled;
+    }
+
+    /**
+     * Canonicalizes a batch of texts under one lock
+     * Each value, a text mapped to itself, is replaced by the pooled String equal to it
+     * @param texts texts to canonicalize, as keys and values
+     * @return true if any value was replaced by an already pooled String
+     */
+    public synchronized boolean canonicalAll(Map<String, String> texts) {
+        boolean replaced = false;
+        for (Map.Entry<String, String> entry : texts.entrySet()) {
+            String pooled = canonical(entry.getValue());
+            if (pooled != entry.getValue()) {
+                entry.setValue(pooled);
+                replaced = true;
+            }
+        }
+        return replaced;
+    }
+
+    /**
+     * Gets the number of texts in the pool, including ones not yet cleared after being released
+     * @return pooled text count
+     */
+    public synchronized int size() {
+        return texts.size();
+    }
+}
@@ -0,0 +1,261 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Writes decision trees in the breadth-first text format read by DecisionTree.readFile
+ * Paths are rebuilt into one reusable buffer from parent links instead of
+ * building a new String per node, output goes through a large channel buffer,
+ * and the file is written to a temporary sibling that is renamed into place
+ * so a crash never leaves a half-written knowledge base
+ */
+public class TreeFileWriter {
+    /** Size of the output buffer */
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /** Counts and timing for one completed write */
+    public static class WriteStats {
+        private final long nodes;
+        private final long bytes;
+        private final long nanos;
+
+        /**
+         * Records the outcome of a write
+         * @param nodes number of nodes written
+         * @param bytes number of bytes written
+         * @param nanos elapsed time in nanoseconds
+         */
+        public WriteStats(long nodes, long bytes, long nanos) {
+            this.nodes = nodes;
+            this.bytes = bytes;
+            this.nanos = nanos;
+        }
+
+        /** Accessor for number of nodes written */
+        public long getNodes() {
+            return nodes;
+        }
+
+        /** Accessor for number of bytes written */
+        public long getBytes() {
+            return bytes;
+        }
+
+        /** Accessor for elapsed time in nanoseconds */
+        public long getNanos() {
+            return nanos;
+        }
+
+        /** Computes write rate in nodes per second */
+        public double nodesPerSecond() {
+            return nodes * 1e9 / Math.max(nanos, 1);
+        }
+
+        /** Computes write rate in bytes per second */
+        public double bytesPerSecond() {
+            return bytes * 1e9 / Math.max(nanos, 1);
+        }
+
+        /** Creates a one-line summary */
+        public String toString() {
+            return String.format("%d nodes, %d bytes in %.1f ms (%.0f nodes/s, %.1f MB/s)",
+                nodes, bytes, nanos / 1e6, nodesPerSecond(), bytesPerSecond() / 1e6);
+        }
+    }
+
+    /**
+     * Writes a decision tree to a file in breadth-first order
+     * Each line has a path and node data separated by a space
+     * @param tree root of tree to write
+     * @param filename file to write to
+     * @return counts and timing for the write
+     * @throws IOException if file writing fails
+     */
+    public static WriteStats write(DecisionTree tree, String filename) throws IOException {
+        Path target = Paths.get(filename);
+        Path temp = temporaryFileFor(target);
+        WriteStats stats = writeTemporary(tree, temp);
+        moveIntoPlace(temp, target);
+        return stats;
+    }
+
+    /**
+     * Writes a decision tree to a temporary file and forces it to disk, leaving
+     * the caller to move it into place, so several files can be replaced together
+     * @param tree root of tree to write
+     * @param temp file to write to; deleted if writing fails
+     * @return counts and timing for the write
+     * @throws IOException if file writing fails
+     */
+    public static WriteStats writeTemporary(DecisionTree tree, Path temp) throws IOException {
+        long start = System.nanoTime();
+
+        //breadth-first queue as growable arrays: node, index of its parent, and which side it hangs on
+        DecisionTree[] nodes = new DecisionTree[16];
+        int[] parents = new int[16];
+        int[] depths = new int[16];
+        boolean[] isYes = new boolean[16];
+        int tail = 0;
+        nodes[tail] = tree;
+        parents[tail++] = -1;
+
+        //path of the last node written, and the queue index of the node each step leads to
+        byte[] pathBuffer = new byte[16];
+        int[] pathOwners = new int[16]; //0 is the root, which no step leads to
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        long bytes = 0;
+
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            for (int head = 0; head < tail; head++) {
+                DecisionTree currentNode = nodes[head];
+                nodes[head] = null; //tree still holds it; queue doesn't need to
+                int depth = depths[head];
+
+                if (depth > pathBuffer.length) {
+                    int capacity = Math.max(depth, pathBuffer.length * 2);
+                    pathBuffer = Arrays.copyOf(pathBuffer, capacity);
+                    pathOwners = Arrays.copyOf(pathOwners, capacity);
+                }
+                //rebuild path back to front by following parent links, stopping at
+                //the first ancestor already in the buffer; depths never decrease
+                //breadth first, so the steps before it are still that ancestor's
+                int step = head;
+                for (int i = depth - 1; i >= 0 && pathOwners[i] != step; i--) {
+                    pathBuffer[i] = (byte)(isYes[step] ? 'Y' : 'N');
+                    pathOwners[i] = step;
+                    step = parents[step];
+                }
+
+                bytes += put(channel, buffer, pathBuffer, depth);
+                bytes += put(channel, buffer, (byte)' ');
+                bytes += putData(channel, buffer, currentNode.getData());
+                bytes += put(channel, buffer, (byte)'\n');
+
+                if (tail + 2 > nodes.length) {
+                    int capacity = nodes.length * 2;
+                    nodes = Arrays.copyOf(nodes, capacity);
+                    parents = Arrays.copyOf(parents, capacity);
+                    depths = Arrays.copyOf(depths, capacity);
+                    isYes = Arrays.copyOf(isYes, capacity);
+                }
+
+                //left child is the "Y" branch, right child is the "N" branch
+                if (currentNode.getLeft() != null) {
+                    nodes[tail] = currentNode.getLeft();
+                    parents[tail] = head;
+                    depths[tail] = depth + 1;
+                    isYes[tail++] = true;
+                }
+                if (currentNode.getRight() != null) {
+                    nodes[tail] = currentNode.getRight();
+                    parents[tail] = head;
+                    depths[tail] = depth + 1;
+                    isYes[tail++] = false;
+                }
+            }
+
+            drain(channel, buffer);
+            channel.force(true);
+        } catch (IOException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+
+        WriteStats stats = new WriteStats(tail, bytes, System.nanoTime() - start);
+        GameMetrics.shared().saved(stats);
+        return stats;
+    }
+
+    /**
+     * Chooses the temporary file written before replacing a target
+     * @param target file that will be replaced
+     * @return sibling path in the same directory
+     */
+    public static Path temporaryFileFor(Path target) {
+        return target.resolveSibling(target.getFileName() + ".tmp");
+    }
+
+    /**
+     * Renames a completed temporary file over its target, atomically where supported
+     * @param temp completed temporary file
+     * @param target file to replace
+     * @throws IOException if the rename fails
+     */
+    public static void moveIntoPlace(Path temp, Path target) throws IOException {
+        try {
+            Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Encodes node data as UTF-8, copying ASCII text straight into the buffer
+     * @return number of bytes written
+     */
+    private static int putData(FileChannel channel, ByteBuffer buffer, String data) throws IOException {
+        int length = data.length();
+        for (int i = 0; i < length; i++) {
+            if (data.charAt(i) >= 0x80) {
+                byte[] encoded = data.getBytes(StandardCharsets.UTF_8);
+                return put(channel, buffer, encoded, encoded.length);
+            }
+        }
+        for (int i = 0; i < length; i++) {
+            if (!buffer.hasRemaining()) {
+                drain(channel, buffer);
+            }
+            buffer.put((byte)data.charAt(i));
+        }
+        return length;
+    }
+
+    /**
+     * Copies bytes into the buffer, draining it to the channel as it fills
+     * @return number of bytes written
+     */
+    private static int put(FileChannel channel, ByteBuffer buffer, byte[] bytes, int length) throws IOException {
+        int offset = 0;
+        while (offset < length) {
+            if (!buffer.hasRemaining()) {
+                drain(channel, buffer);
+            }
+            int chunk = Math.min(buffer.remaining(), length - offset);
+            buffer.put(bytes, offset, chunk);
+            offset += chunk;
+        }
+        return length;
+    }
+
+    /**
+     * Puts a single byte into the buffer, draining it first if full
+     * @return number of bytes written
+     */
+    private static int put(FileChannel channel, ByteBuffer buffer, byte value) throws IOException {
+        if (!buffer.hasRemaining()) {
+            drain(channel, buffer);
+        }
+        buffer.put(value);
+        return 1;
+    }
+
+    /**
+     * Writes all buffered bytes to the channel and empties the buffer
+     */
+    private static void drain(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
@@ -0,0 +1,947 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Combines knowledge bases learned by separate games into one
+ * Both trees are walked side by side; wherever they agree the merge only
+ * visits each node once, so identical question structure merges in linear
+ * time. Branches only one tree has are grafted in, and where the trees
+ * disagree the base tree wins and the disagreement is reported
+ * Files can also be merged a level at a time without loading either tree,
+ * since breadth-first files are sorted by TreePath order
+ */
+public class TreeMerger {
+
+    /** Outcome of a merge: the conflicts found and what was combined */
+    public static class MergeReport {
+        /** Kinds of disagreement between merged trees */
+        public enum Kind {
+            /** The trees hold different animals at the same leaf */
+            CONTRADICTORY_ANIMALS,
+            /** The trees ask different questions with no animal in common below them */
+            DIVERGENT_QUESTIONS,
+            /** An animal of one tree didn't make it into the merged tree */
+            DROPPED_ANIMAL,
+            /** The merged tree reaches the same animal by contradictory answers */
+            DUPLICATE_ANIMAL
+        }
+
+        /** One disagreement and where it was found */
+        public static class Conflict {
+            private final Kind kind;
+            private final TreePath path;
+            private final String detail;
+
+            Conflict(Kind kind, TreePath path, String detail) {
+                this.kind = kind;
+                this.path = path;
+                this.detail = detail;
+            }
+
+            /** Accessor for kind of disagreement */
+            public Kind getKind() {
+                return kind;
+            }
+
+            /** Accessor for path in the merged tree */
+            public TreePath getPath() {
+                return path;
+            }
+
+            /** Accessor for description of the nodes involved */
+            public String getDetail() {
+                return detail;
+            }
+
+            @Override
+            public String toString() {
+                return kind + " at " + (path.isRoot() ? "root" : path.toString()) + ": " + detail;
+            }
+        }
+
+        private final List<Conflict> conflicts = new ArrayList<>();
+        private long nodes;
+        private long grafts;
+
+        /** Accessor for conflicts in the order they were found */
+        public List<Conflict> getConflicts() {
+            return Collections.unmodifiableList(conflicts);
+        }
+
+        /** Accessor for number of nodes in the merged tree */
+        public long getNodes() {
+            return nodes;
+        }
+
+        /** Accessor for number of subtrees taken from the other tree */
+        public long getGrafts() {
+            return grafts;
+        }
+
+        void add(Kind kind, TreePath path, String detail) {
+            conflicts.add(new Conflict(kind, path, detail));
+        }
+
+        @Override
+        public String toString() {
+            return nodes + " nodes, " + grafts + " grafts, " + conflicts.size() + " conflicts";
+        }
+    }
+
+    /** Pair of nodes at the same path, waiting to be merged */
+    private static class Task {
+        final DecisionTree base;
+        final DecisionTree other;
+        final TreePath path;
+        final DecisionTree parent; //merged parent to attach to, or null for the root
+        final boolean isYes;
+
+        Task(DecisionTree base, DecisionTree other, TreePath path, DecisionTree parent, boolean isYes) {
+            this.base = base;
+            this.other = other;
+            this.path = path;
+            this.parent = parent;
+            this.isYes = isYes;
+        }
+    }
+
+    /**
+     * Merges two trees into a new tree, leaving both unchanged
+     * Nodes with the same text at the same path become one node whose visit
+     * count is the sum of both. Where the texts differ, the other subtree is
+     * grafted onto the base leaf holding one of its animals, which is how two
+     * games that split the same leaf differently end up with both questions
+     * @param base tree that wins conflicts, or null
+     * @param other tree to merge into it, or null
+     * @param report report to add conflicts and counts to
+     * @return root of merged tree, or null if both are null
+     */
+    public static DecisionTree merge(DecisionTree base, DecisionTree other, MergeReport report) {
+        DecisionTree root = null;
+        List<DecisionTree> dropped = new ArrayList<>();
+        List<TreePath> droppedPaths = new ArrayList<>(); //where each dropped leaf lost its place
+        ArrayDeque<Task> stack = new ArrayDeque<>();
+        if (base != null || other != null) {
+            stack.push(new Task(base, other, TreePath.ROOT, null, false));
+        }
+
+        while (!stack.isEmpty()) {
+            Task task = stack.pop();
+            DecisionTree node;
+            if (task.other == null) {
+                node = ParallelTreeOps.deepCopy(task.base);
+            } else if (task.base == null) {
+                node = ParallelTreeOps.deepCopy(task.other);
+                report.grafts++;
+            } else if (sameText(task.base.getData(), task.other.getData())) {
+                node = new DecisionTree(task.base.getData());
+                node.setVisits(task.base.getVisits() + task.other.getVisits());
+                DecisionTree left = task.base.getLeft(), otherLeft = task.other.getLeft();
+                DecisionTree right = task.base.getRight(), otherRight = task.other.getRight();
+                if (right != null || otherRight != null) {
+                    stack.push(new Task(right, otherRight, task.path.child(false), node, false));
+                }
+                if (left != null || otherLeft != null) {
+                    stack.push(new Task(left, otherLeft, task.path.child(true), node, true));
+                }
+            } else {
+                node = resolve(task.base, task.other, task.path, report, dropped, droppedPaths);
+            }
+
+            if (task.parent == null) {
+                root = node;
+            } else if (task.isYes) {
+                task.parent.setLeft(node);
+            } else {
+                task.parent.setRight(node);
+            }
+        }
+
+        if (root == null) {
+            return null;
+        }
+        AnimalIndex index = AnimalIndex.build(root);
+        for (int i = 0; i < dropped.size(); i++) {
+            if (index.lookup(dropped.get(i).getData()) == null) {
+                report.add(MergeReport.Kind.DROPPED_ANIMAL, droppedPaths.get(i), dropped.get(i).getData());
+            }
+        }
+        for (Map.Entry<String, List<TreePath>> duplicate : index.duplicates().entrySet()) {
+            List<TreePath> paths = duplicate.getValue();
+            report.add(MergeReport.Kind.DUPLICATE_ANIMAL, paths.get(0),
+                duplicate.getKey() + " also at " + paths.subList(1, paths.size()));
+        }
+        report.nodes = ParallelTreeOps.count(root);
+        return root;
+    }
+
+    /**
+     * Merges two subtrees whose roots have different text
+     * A base leaf is replaced by the other subtree. Otherwise the other subtree
+     * replaces the first base leaf, in preorder, holding one of its animals;
+     * if there is none the base subtree is kept as it is
+     */
+    private static DecisionTree resolve(DecisionTree base, DecisionTree other, TreePath path,
+            MergeReport report, List<DecisionTree> dropped, List<TreePath> droppedPaths) {
+        if (base.isLeaf() && !other.isLeaf()) {
+            //other split the base animal's leaf
+            dropped.add(base);
+            droppedPaths.add(path);
+            report.grafts++;
+            return ParallelTreeOps.deepCopy(other);
+        }
+
+        Set<String> otherAnimals = new HashSet<>();
+        List<DecisionTree> otherLeaves = leaves(other);
+        for (DecisionTree leaf : otherLeaves) {
+            otherAnimals.add(AnimalIndex.normalize(leaf.getData()));
+        }
+
+        DecisionTree copy = ParallelTreeOps.deepCopy(base);
+        TreePath graftPath = findLeaf(base, otherAnimals);
+        if (graftPath == null) {
+            if (base.isLeaf()) {
+                report.add(MergeReport.Kind.CONTRADICTORY_ANIMALS, path,
+                    base.getData() + " in base, " + other.getData() + " in other");
+            } else if (!other.isLeaf()) {
+                report.add(MergeReport.Kind.DIVERGENT_QUESTIONS, path,
+                    "kept \"" + base.getData() + "\", not \"" + other.getData() + "\"");
+            }
+            dropped.addAll(otherLeaves);
+            droppedPaths.addAll(Collections.nCopies(otherLeaves.size(), path));
+            return copy;
+        }
+        if (other.isLeaf()) {
+            return copy; //the base subtree already holds the other animal
+        }
+
+        //graftPath isn't the root, since base is a question here
+        DecisionTree parent = copy.followPath(graftPath.parent());
+        DecisionTree graft = ParallelTreeOps.deepCopy(other);
+        if (graftPath.isYes(graftPath.length() - 1)) {
+            parent.setLeft(graft);
+        } else {
+            parent.setRight(graft);
+        }
+        report.grafts++;
+        return copy;
+    }
+
+    /**
+     * Lists the leaves of a subtree in preorder
+     */
+    private static List<DecisionTree> leaves(DecisionTree tree) {
+        List<DecisionTree> leaves = new ArrayList<>();
+        ArrayDeque<DecisionTree> stack = new ArrayDeque<>();
+        stack.push(tree);
+        while (!stack.isEmpty()) {
+            DecisionTree node = stack.pop();
+            if (node.isLeaf()) {
+                leaves.add(node);
+            }
+            if (node.getRight() != null) stack.push(node.getRight());
+            if (node.getLeft() != null) stack.push(node.getLeft());
+        }
+        return leaves;
+    }
+
+    /**
+     * Finds the first leaf in preorder whose animal is in a set
+     * @return path from the subtree root, or null if none matches
+     */
+    private static TreePath findLeaf(DecisionTree tree, Set<String> animals) {
+        ArrayDeque<DecisionTree> nodes = new ArrayDeque<>();
+        ArrayDeque<TreePath> paths = new ArrayDeque<>();
+        nodes.push(tree);
+        paths.push(TreePath.ROOT);
+        while (!nodes.isEmpty()) {
+            DecisionTree node = nodes.pop();
+            TreePath path = paths.pop();
+            if (node.isLeaf() && animals.contains(AnimalIndex.normalize(node.getData()))) {
+                return path;
+            }
+            if (node.getRight() != null) {
+                nodes.push(node.getRight());
+                paths.push(path.child(false));
+            }
+            if (node.getLeft() != null) {
+                nodes.push(node.getLeft());
+                paths.push(path.child(true));
+            }
+        }
+        return null;
+    }
+
+    private static boolean sameText(String first, String second) {
+        return first.equals(second) || AnimalIndex.normalize(first).equals(AnimalIndex.normalize(second));
+    }
+
+    /** One line of a breadth-first file */
+    private static class Line {
+        final TreePath path;
+        final String data;
+        int children;
+        boolean leaf;
+        boolean eligible; //parent was taken into the merged tree from this line's file
+        boolean underBase; //the base line at the parent's path was taken, for other lines
+
+        Line(TreePath path, String data) {
+            this.path = path;
+            this.data = data;
+        }
+    }
+
+    /**
+     * Reads a breadth-first file one level at a time
+     */
+    private static class LevelReader implements Closeable {
+        private final BufferedReader reader;
+        private final String filename;
+        private Line pending;
+        private TreePath last;
+
+        LevelReader(String filename) throws IOException {
+            this.reader = new BufferedReader(new InputStreamReader(new FileInputStream(filename), StandardCharsets.UTF_8));
+            this.filename = filename;
+        }
+
+        /**
+         * Gets the next line of a level without consuming it
+         * @param length path length of the level
+         * @return line, or null if the level has no more lines
+         */
+        Line peek(int length) throws IOException {
+            Line line = peek();
+            return (line != null && line.path.length() == length) ? line : null;
+        }
+
+        /**
+         * Consumes the next line of a level
+         * @param length path length of the level
+         * @return line, or null if the level has no more lines
+         */
+        Line next(int length) throws IOException {
+            Line line = peek(length);
+            if (line != null) {
+                pending = null;
+            }
+            return line;
+        }
+
+        /**
+         * Gets the next line that hasn't been consumed
+         * @return line, or null at end of file
+         */
+        Line peek() throws IOException {
+            if (pending == null) {
+                pending = readLine();
+            }
+            return pending;
+        }
+
+        private Line readLine() throws IOException {
+            String line;
+            do {
+                line = reader.readLine();
+                if (line == null) {
+                    return null;
+                }
+            } while (line.isEmpty());
+
+            int pathLength = line.indexOf(' ');
+            if (pathLength == -1) {
+                throw new IOException("Invalid file format: " + line);
+            }
+            TreePath path;
+            try {
+                path = TreePath.parse(line, 0, pathLength);
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Invalid path in " + filename + ": " + line.substring(0, pathLength));
+            }
+            if (last != null && path.compareTo(last) <= 0) {
+                throw new IOException("Lines are not in breadth-first order in " + filename + " at path: " + path);
+            }
+            last = path;
+            return new Line(path, TextPool.shared().canonical(line.substring(pathLength + 1).trim()));
+        }
+
+        @Override
+        public void close() throws IOException {
+            reader.close();
+        }
+    }
+
+    /**
+     * One flag per line of a level, spilled to a temporary file while the
+     * level above it is merged and read back in the same order for the level itself
+     */
+    private static class FlagSpool implements Closeable {
+        private final Path[] files = new Path[2];
+        private int writing;
+        private DataOutputStream out;
+        private DataInputStream in; //null while merging the root, which is always eligible
+
+        FlagSpool(Path directory) throws IOException {
+            files[0] = Files.createTempFile(directory, "merge", ".tmp");
+            files[1] = Files.createTempFile(directory, "merge", ".tmp");
+            out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(files[0])));
+        }
+
+        /** Adds a flag for each child of a line */
+        void add(boolean flag, int count) throws IOException {
+            for (int i = 0; i < count; i++) {
+                out.writeBoolean(flag);
+            }
+        }
+
+        /** Reads the flag of the next line in the level being merged */
+        boolean next() throws IOException {
+            return in == null || in.readBoolean();
+        }
+
+        /** Starts reading the flags written for the next level */
+        void nextLevel() throws IOException {
+            out.close();
+            if (in != null) {
+                in.close();
+            }
+            in = new DataInputStream(new BufferedInputStream(Files.newInputStream(files[writing])));
+            writing = 1 - writing;
+            out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(files[writing])));
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                out.close();
+                if (in != null) {
+                    in.close();
+                }
+            } finally {
+                Files.deleteIfExists(files[0]);
+                Files.deleteIfExists(files[1]);
+            }
+        }
+    }
+
+    /**
+     * Tab-separated records, starting with a normalized animal name, sorted
+     * by name through runs on disk so only one run is ever held in memory
+     * Records with the same name keep the order of the rest of their fields
+     */
+    private static class RecordSorter implements Closeable {
+        /** Records held in memory before a run is written out */
+        private static final int RUN_RECORDS = Math.max(1, Integer.getInteger("animalguess.merge.runRecords", 1 << 16));
+
+        private final Path directory;
+        private final List<Path> runs = new ArrayList<>();
+        private final List<BufferedReader> readers = new ArrayList<>();
+        private List<String> records = new ArrayList<>();
+        private PriorityQueue<Head> heads;
+        private int position;
+
+        /** Next record of one run, for the k-way merge */
+        private static class Head {
+            final String record;
+            final BufferedReader reader;
+
+            Head(String record, BufferedReader reader) {
+                this.record = record;
+                this.reader = reader;
+            }
+        }
+
+        RecordSorter(Path directory) {
+            this.directory = directory;
+        }
+
+        void add(String record) throws IOException {
+            records.add(record);
+            if (records.size() >= RUN_RECORDS) {
+                writeRun();
+            }
+        }
+
+        private void writeRun() throws IOException {
+            records.sort(RecordSorter::compare);
+            Path run = Files.createTempFile(directory, "merge", ".tmp");
+            runs.add(run);
+            Files.write(run, records, StandardCharsets.UTF_8);
+            records.clear();
+        }
+
+        /**
+         * Gets the records in sorted order, once every record has been added
+         * @return next record, or null after the last one
+         */
+        String next() throws IOException {
+            if (heads == null && !runs.isEmpty()) {
+                if (!records.isEmpty()) {
+                    writeRun();
+                }
+                heads = new PriorityQueue<>((a, b) -> compare(a.record, b.record));
+                for (Path run : runs) {
+                    BufferedReader reader = Files.newBufferedReader(run, StandardCharsets.UTF_8);
+                    readers.add(reader);
+                    String record = reader.readLine();
+                    if (record != null) {
+                        heads.add(new Head(record, reader));
+                    }
+                }
+            }
+            if (heads == null) {
+                if (position == 0) {
+                    records.sort(RecordSorter::compare);
+                }
+                return (position < records.size()) ? records.get(position++) : null;
+            }
+
+            Head head = heads.poll();
+            if (head == null) {
+                return null;
+            }
+            String record = head.reader.readLine();
+            if (record != null) {
+                heads.add(new Head(record, head.reader));
+            }
+            return head.record;
+        }
+
+        /** Orders records by name, then by the fields after it */
+        private static int compare(String first, String second) {
+            int firstEnd = first.indexOf('\t');
+            int secondEnd = second.indexOf('\t');
+            int order = CharSequence.compare(first.subSequence(0, firstEnd), second.subSequence(0, secondEnd));
+            if (order != 0) {
+                return order;
+            }
+            return CharSequence.compare(first.subSequence(firstEnd + 1, first.length()),
+                second.subSequence(secondEnd + 1, second.length()));
+        }
+
+        @Override
+        public void close() throws IOException {
+            records = null;
+            try {
+                for (BufferedReader reader : readers) {
+                    reader.close();
+                }
+            } finally {
+                for (Path run : runs) {
+                    Files.deleteIfExists(run);
+                }
+            }
+        }
+    }
+
+    /**
+     * Merges two breadth-first text files without loading either tree
+     * Each file is read through two cursors a level apart: one for the lines
+     * being merged and one for their children, which tells leaves from
+     * questions. Whether each line's parent was taken into the merged tree
+     * is passed down through flag files, and the animal names for the
+     * duplicate and dropped checks are sorted on disk in runs of
+     * animalguess.merge.runRecords records, so memory stays bounded by those
+     * runs whatever the size of the trees
+     * The rules match merge, except that an other subtree whose question
+     * differs from the base question is only grafted when the base node is a
+     * leaf, since moving it below the base question would need the whole
+     * subtree; visit counts aren't merged
+     * @param baseFile tree that wins conflicts
+     * @param otherFile tree to merge into it
+     * @param outputFile file to write the merged tree to, replaced atomically
+     * @return conflicts and counts
+     * @throws IOException if reading or writing fails or an input is malformed
+     */
+    public static MergeReport mergeFiles(String baseFile, String otherFile, String outputFile) throws IOException {
+        MergeReport report = new MergeReport();
+        Path target = Paths.get(outputFile);
+        Path temp = TreeFileWriter.temporaryFileFor(target);
+        Path directory = target.toAbsolutePath().getParent();
+
+        try (LevelReader baseReader = new LevelReader(baseFile);
+             LevelReader baseChildren = new LevelReader(baseFile);
+             LevelReader otherReader = new LevelReader(otherFile);
+             LevelReader otherChildren = new LevelReader(otherFile);
+             FlagSpool baseEligible = new FlagSpool(directory);
+             FlagSpool otherEligible = new FlagSpool(directory);
+             FlagSpool otherUnderBase = new FlagSpool(directory);
+             RecordSorter animals = new RecordSorter(directory); //name, emit order, path, text of merged leaves
+             RecordSorter dropped = new RecordSorter(directory); //name, path, text of leaves left out
+             Writer out = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(temp), StandardCharsets.UTF_8))) {
+            //the child cursors start one level down
+            baseChildren.next(0);
+            otherChildren.next(0);
+
+            for (int depth = 0; ; depth++) {
+                Line b = nextLine(baseReader, baseChildren, baseEligible, null, depth);
+                Line o = nextLine(otherReader, otherChildren, otherEligible, otherUnderBase, depth);
+                if (b == null && o == null) {
+                    break;
+                }
+
+                //walk both levels in path order, like the merge step of merge sort
+                while (b != null || o != null) {
+                    int order = (b == null) ? 1 : (o == null) ? -1 : b.path.compareTo(o.path);
+                    Line baseLine = (order <= 0) ? b : null;
+                    Line otherLine = (order >= 0) ? o : null;
+                    boolean baseTaken = false, otherTaken = false;
+                    Line bl = baseLine, ol = otherLine;
+                    if (bl != null && !bl.eligible) {
+                        if (bl.leaf) drop(dropped, bl);
+                        bl = null;
+                    }
+                    if (ol != null && !ol.eligible) {
+                        if (ol.leaf) drop(dropped, ol);
+                        ol = null;
+                    }
+
+                    if (bl != null && ol != null) {
+                        if (sameText(bl.data, ol.data)) {
+                            emit(out, bl.path, bl.data, bl.leaf && ol.leaf, report, animals);
+                            baseTaken = true;
+                            otherTaken = true;
+                        } else if (bl.leaf && !ol.leaf) {
+                            //other split the base animal's leaf
+                            emit(out, ol.path, ol.data, false, report, animals);
+                            otherTaken = true;
+                            drop(dropped, bl);
+                            report.grafts++;
+                        } else {
+                            emit(out, bl.path, bl.data, bl.leaf, report, animals);
+                            baseTaken = true;
+                            if (ol.leaf) {
+                                drop(dropped, ol);
+                            }
+                            if (bl.leaf) {
+                                report.add(MergeReport.Kind.CONTRADICTORY_ANIMALS, bl.path,
+                                    bl.data + " in base, " + ol.data + " in other");
+                            } else if (!ol.leaf) {
+                                report.add(MergeReport.Kind.DIVERGENT_QUESTIONS, bl.path,
+                                    "kept \"" + bl.data + "\", not \"" + ol.data + "\"");
+                            }
+                        }
+                    } else if (bl != null) {
+                        emit(out, bl.path, bl.data, bl.leaf, report, animals);
+                        baseTaken = true;
+                    } else if (ol != null) {
+                        emit(out, ol.path, ol.data, ol.leaf, report, animals);
+                        otherTaken = true;
+                        if (ol.path.isRoot() || ol.underBase) {
+                            report.grafts++; //branch the base tree doesn't have
+                        }
+                    }
+
+                    if (baseLine != null) {
+                        baseEligible.add(baseTaken, baseLine.children);
+                        b = nextLine(baseReader, baseChildren, baseEligible, null, depth);
+                    }
+                    if (otherLine != null) {
+                        otherEligible.add(otherTaken, otherLine.children);
+                        otherUnderBase.add(baseTaken, otherLine.children);
+                        o = nextLine(otherReader, otherChildren, otherEligible, otherUnderBase, depth);
+                    }
+                }
+
+                checkChildrenFinished(baseChildren, depth + 1);
+                checkChildrenFinished(otherChildren, depth + 1);
+                baseEligible.nextLevel();
+                otherEligible.nextLevel();
+                otherUnderBase.nextLevel();
+            }
+
+            checkFinished(baseReader);
+            checkFinished(otherReader);
+            reportAnimals(animals, dropped, report);
+        } catch (IOException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        TreeFileWriter.moveIntoPlace(temp, target);
+        return report;
+    }
+
+    /**
+     * Reads the next line of a level and counts its children in the level below
+     * @throws IOException if a line in the level below has no parent
+     */
+    private static Line nextLine(LevelReader lines, LevelReader children, FlagSpool eligible,
+            FlagSpool underBase, int depth) throws IOException {
+        Line line = lines.next(depth);
+        if (line == null) {
+            return null;
+        }
+        line.eligible = eligible.next();
+        if (underBase != null) {
+            line.underBase = underBase.next();
+        }
+        Line child;
+        while ((child = children.peek(depth + 1)) != null) {
+            TreePath parent = child.path.parent();
+            int order = parent.compareTo(line.path);
+            if (order > 0) {
+                break;
+            } else if (order < 0) {
+                throw new IOException("Parent node not found for path:" + parent);
+            }
+            children.next(depth + 1);
+            line.children++;
+        }
+        line.leaf = line.children == 0;
+        return line;
+    }
+
+    /**
+     * Checks that every line of a level was the child of a line above it
+     */
+    private static void checkChildrenFinished(LevelReader children, int depth) throws IOException {
+        Line line = children.peek(depth);
+        if (line != null) {
+            throw new IOException("Parent node not found for path:" + line.path.parent());
+        }
+    }
+
+    /**
+     * Checks that the last level read was the end of the file
+     */
+    private static void checkFinished(LevelReader reader) throws IOException {
+        Line line = reader.peek();
+        if (line != null) {
+            throw new IOException("Parent node not found for path:" + line.path.parent());
+        }
+    }
+
+    /**
+     * Writes one merged line and records its animal
+     */
+    private static void emit(Writer out, TreePath path, String data, boolean leaf,
+            MergeReport report, RecordSorter animals) throws IOException {
+        path.appendTo(out);
+        out.write(' ');
+        out.write(data);
+        out.write('\n');
+        report.nodes++;
+        if (leaf) {
+            //zero padded so records with the same name sort in the order they were written
+            String order = Long.toString(report.nodes);
+            animals.add(AnimalIndex.normalize(data) + '\t' + "0000000000000000000".substring(order.length()) + order
+                + '\t' + path + '\t' + data);
+        }
+    }
+
+    /**
+     * Records a leaf that was left out of the merged tree
+     */
+    private static void drop(RecordSorter dropped, Line line) throws IOException {
+        dropped.add(AnimalIndex.normalize(line.data) + '\t' + line.path + '\t' + line.data);
+    }
+
+    /**
+     * Reports animals merged more than once and dropped animals that aren't
+     * anywhere in the merged tree, walking both sorted record lists together
+     */
+    private static void reportAnimals(RecordSorter animals, RecordSorter dropped, MergeReport report) throws IOException {
+        String name = null;
+        String firstPath = null;
+        String drop = dropped.next();
+        for (String record = animals.next(); record != null; record = animals.next()) {
+            String[] fields = record.split("\t", 4); //name, order, path, text
+            if (fields[0].equals(name)) {
+                report.add(MergeReport.Kind.DUPLICATE_ANIMAL, TreePath.parse(fields[2]), fields[3] + " also at " + firstPath);
+                continue;
+            }
+            drop = reportDropped(dropped, drop, fields[0], report);
+            name = fields[0];
+            firstPath = fields[2];
+        }
+        reportDropped(dropped, drop, null, report);
+    }
+
+    /**
+     * Reports the dropped records that sort before a merged name and skips the ones that match it
+     * @param name merged animal name, or null to report every remaining record
+     * @return first dropped record after the name, or null if there are none
+     */
+    private static String reportDropped(RecordSorter dropped, String drop, String name, MergeReport report)
+            throws IOException {
+        while (drop != null) {
+            String[] fields = drop.split("\t", 3); //name, path, text
+            int order = (name == null) ? -1 : fields[0].compareTo(name);
+            if (order > 0) {
+                break;
+            } else if (order < 0) {
+                report.add(MergeReport.Kind.DROPPED_ANIMAL, TreePath.parse(fields[1]), fields[2]);
+            }
+            drop = dropped.next();
+        }
+        return drop;
+    }
+
+    /**
+     * Merges a generated pair of trees both in memory and from files and compares the results
+     * The other tree is the base with some leaves split further and some
+     * animals renamed, differences that merge and mergeFiles resolve alike
+     * @param nodes size of the base tree
+     * @param seed random seed
+     * @return description of the first difference, or null if the merges agree
+     * @throws IOException if the temporary files can't be written or read
+     */
+    static String checkEquivalence(int nodes, long seed) throws IOException {
+        Random random = new Random(seed);
+        DecisionTree base = SyntheticTrees.generate(SyntheticTrees.Shape.RANDOM, nodes, seed);
+        DecisionTree other = ParallelTreeOps.deepCopy(base);
+        int changed = 0;
+        for (DecisionTree leaf : leaves(other)) {
+            int choice = random.nextInt(8);
+            if (choice == 0) {
+                leaf.splitLeaf("Other question " + changed + "?", "Other animal " + changed, random.nextBoolean());
+                changed++;
+            } else if (choice == 1) {
+                leaf.setData("Other animal " + changed);
+                changed++;
+            }
+        }
+
+        Path baseFile = Files.createTempFile("merge", ".txt");
+        Path otherFile = Files.createTempFile("merge", ".txt");
+        Path mergedFile = Files.createTempFile("merge", ".txt");
+        try {
+            base.writeToFile(baseFile.toString());
+            other.writeToFile(otherFile.toString());
+            MergeReport memoryReport = new MergeReport();
+            DecisionTree inMemory = merge(base, other, memoryReport);
+            MergeReport fileReport = mergeFiles(baseFile.toString(), otherFile.toString(), mergedFile.toString());
+            DecisionTree fromFiles = DecisionTree.readFile(mergedFile.toString());
+
+            if (memoryReport.getNodes() != fileReport.getNodes() || memoryReport.getGrafts() != fileReport.getGrafts()) {
+                return "merge gave " + memoryReport + ", mergeFiles gave " + fileReport;
+            }
+            TreePath difference = firstDifference(inMemory, fromFiles);
+            return (difference == null) ? null : "merged trees differ at path: " + difference;
+        } finally {
+            Files.deleteIfExists(baseFile);
+            Files.deleteIfExists(otherFile);
+            Files.deleteIfExists(mergedFile);
+        }
+    }
+
+    /**
+     * Finds the first path in preorder where two trees differ in text or shape
+     * @return path, or null if the trees are the same
+     */
+    private static TreePath firstDifference(DecisionTree first, DecisionTree second) {
+        ArrayDeque<DecisionTree> firsts = new ArrayDeque<>();
+        ArrayDeque<DecisionTree> seconds = new ArrayDeque<>();
+        ArrayDeque<TreePath> paths = new ArrayDeque<>();
+        firsts.push(first);
+        seconds.push(second);
+        paths.push(TreePath.ROOT);
+        while (!paths.isEmpty()) {
+            DecisionTree a = firsts.pop();
+            DecisionTree b = seconds.pop();
+            TreePath path = paths.pop();
+            if (!a.getData().equals(b.getData())
+                    || (a.getLeft() == null) != (b.getLeft() == null)
+                    || (a.getRight() == null) != (b.getRight() == null)) {
+                return path;
+            }
+            if (a.getRight() != null) {
+                firsts.push(a.getRight());
+                seconds.push(b.getRight());
+                paths.push(path.child(false));
+            }
+            if (a.getLeft() != null) {
+                firsts.push(a.getLeft());
+                seconds.push(b.getLeft());
+                paths.push(path.child(true));
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Merges knowledge bases into one file, the first input winning conflicts
+     * With -stream the text inputs are merged a level at a time instead of being loaded,
+     * and -check compares both ways of merging on generated trees
+     * Usage: java TreeMerger [-stream] output input... | java TreeMerger -check [nodes]
+     * @param args command line arguments
+     */
+    public static void main(String[] args) {
+        if (args.length > 0 && args[0].equals("-check")) {
+            try {
+                int nodes = (args.length > 1) ? Integer.parseInt(args[1]) : 10001;
+                for (long seed = 1; seed <= 10; seed++) {
+                    String difference = checkEquivalence(nodes, seed);
+                    if (difference != null) {
+                        System.out.println("Seed " + seed + ": " + difference);
+                        return;
+                    }
+                }
+                System.out.println("merge and mergeFiles agree on 10 generated pairs");
+            } catch (IOException e) {
+                System.out.println("Error in checking merges: " + e.getMessage());
+            } catch (NumberFormatException e) {
+                System.out.println("Error in node count: " + e.getMessage());
+            }
+            return;
+        }
+        boolean streaming = args.length > 0 && args[0].equals("-stream");
+        int first = streaming ? 1 : 0;
+        if (args.length - first < 3) {
+            System.out.println("Usage: java TreeMerger [-stream] output input... | java TreeMerger -check [nodes]");
+            return;
+        }
+        String output = args[first];
+
+        try {
+            if (streaming) {
+                //fold the inputs in pairs through temporary files
+                String merged = args[first + 1];
+                for (int i = first + 2; i < args.length; i++) {
+                    String target = (i == args.length - 1) ? output : output + ".merge" + i;
+                    MergeReport report = mergeFiles(merged, args[i], target);
+                    printReport(args[i], report);
+                    if (i > first + 2) {
+                        Files.deleteIfExists(Paths.get(merged));
+                    }
+                    merged = target;
+                }
+            } else {
+                DecisionTree merged = read(args[first + 1]);
+                for (int i = first + 2; i < args.length; i++) {
+                    MergeReport report = new MergeReport();
+                    merged = merge(merged, read(args[i]), report);
+                    printReport(args[i], report);
+                }
+                merged.writeToFile(output);
+            }
+            System.out.println("Merged knowledge saved to: " + output);
+        } catch (IOException e) {
+            System.out.println("Error in merging knowledge bases: " + e.getMessage());
+        }
+    }
+
+    private static DecisionTree read(String filename) throws IOException {
+        return BinaryKnowledgeBase.isBinaryFile(filename)
+            ? BinaryKnowledgeBase.read(filename) : DecisionTree.readFile(filename);
+    }
+
+    private static void printReport(String filename, MergeReport report) {
+        System.out.println("Merged " + filename + ": " + report);
+        for (MergeReport.Conflict conflict : report.getConflicts()) {
+            System.out.println("  " + conflict);
+        }
+    }
+}
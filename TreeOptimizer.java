@@ -0,0 +1,311 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Offline tool that measures how far question order is from the fewest questions per game
+ * Leaves are weighted by how many games ended there (plus one, so unseen
+ * animals still count). The expected number of questions is compared with
+ * the Huffman bound for the same weights, the least any tree separating
+ * these animals could ask, and the animals costing the most extra questions
+ * are listed with the depth Huffman would give them
+ * The tree itself isn't changed: a learned question only separates the
+ * animals below it, so moving it above other branches would ask players
+ * something the tree has no answer for
+ */
+public class TreeOptimizer {
+
+    /** Animal that sits deeper than the Huffman bound would put it */
+    public static class Suggestion {
+        private final String animal;
+        private final TreePath path;
+        private final long weight;
+        private final int idealDepth;
+
+        Suggestion(String animal, TreePath path, long weight, int idealDepth) {
+            this.animal = animal;
+            this.path = path;
+            this.weight = weight;
+            this.idealDepth = idealDepth;
+        }
+
+        /** Accessor for animal name */
+        public String getAnimal() {
+            return animal;
+        }
+
+        /** Accessor for path to the animal's leaf */
+        public TreePath getPath() {
+            return path;
+        }
+
+        /** Accessor for games ending at the leaf, plus one */
+        public long getWeight() {
+            return weight;
+        }
+
+        /** Accessor for depth of the leaf in a Huffman tree for the same weights */
+        public int getIdealDepth() {
+            return idealDepth;
+        }
+
+        /**
+         * Gets the questions per game the tree would save with the leaf at its ideal depth
+         * @return weight times depth above ideal
+         */
+        public long getExtraQuestions() {
+            return weight * (path.length() - idealDepth);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %d questions, ideal %d, %d games", animal, path.length(), idealDepth, weight - 1);
+        }
+    }
+
+    /**
+     * Computes the expected number of questions asked per game
+     * @param tree root of tree
+     * @return average leaf depth weighted by games ending at each leaf
+     */
+    public static double expectedQuestions(DecisionTree tree) {
+        double weightedDepth = 0;
+        double totalWeight = 0;
+        ArrayDeque<DecisionTree> nodes = new ArrayDeque<>();
+        ArrayDeque<Integer> depths = new ArrayDeque<>();
+        nodes.push(tree);
+        depths.push(0);
+        while (!nodes.isEmpty()) {
+            DecisionTree node = nodes.pop();
+            int depth = depths.pop();
+            if (node.isLeaf()) {
+                long weight = node.getVisits() + 1;
+                weightedDepth += (double)weight * depth;
+                totalWeight += weight;
+            }
+            if (node.getLeft() != null) {
+                nodes.push(node.getLeft());
+                depths.push(depth + 1);
+            }
+            if (node.getRight() != null) {
+                nodes.push(node.getRight());
+                depths.push(depth + 1);
+            }
+        }
+        return (totalWeight == 0) ? 0 : weightedDepth / totalWeight;
+    }
+
+    /**
+     * Computes the fewest expected questions per game any tree with the same
+     * leaves and visit counts could ask, from a Huffman code over leaf weights
+     * @param tree root of tree
+     * @return weighted average depth of the Huffman tree
+     */
+    public static double optimalExpectedQuestions(DecisionTree tree) {
+        List<DecisionTree> leaves = new ArrayList<>();
+        List<TreePath> paths = new ArrayList<>();
+        leaves(tree, leaves, paths);
+        int[] depths = huffmanDepths(leaves);
+        double weightedDepth = 0;
+        double totalWeight = 0;
+        for (int i = 0; i < leaves.size(); i++) {
+            long weight = leaves.get(i).getVisits() + 1;
+            weightedDepth += (double)weight * depths[i];
+            totalWeight += weight;
+        }
+        return (totalWeight == 0) ? 0 : weightedDepth / totalWeight;
+    }
+
+    /**
+     * Lists the animals whose depth costs the most questions over the Huffman bound
+     * @param tree root of tree
+     * @param limit most animals to list
+     * @return animals deeper than ideal, costliest first
+     */
+    public static List<Suggestion> suggestions(DecisionTree tree, int limit) {
+        List<DecisionTree> leaves = new ArrayList<>();
+        List<TreePath> paths = new ArrayList<>();
+        leaves(tree, leaves, paths);
+        int[] depths = huffmanDepths(leaves);
+        PriorityQueue<Suggestion> costliest = new PriorityQueue<>(
+            (a, b) -> Long.compare(a.getExtraQuestions(), b.getExtraQuestions()));
+        for (int i = 0; i < leaves.size(); i++) {
+            if (paths.get(i).length() <= depths[i]) {
+                continue;
+            }
+            costliest.add(new Suggestion(leaves.get(i).getData(), paths.get(i),
+                leaves.get(i).getVisits() + 1, depths[i]));
+            if (costliest.size() > limit) {
+                costliest.poll(); //drop the cheapest
+            }
+        }
+        List<Suggestion> list = new ArrayList<>(costliest);
+        list.sort((a, b) -> Long.compare(b.getExtraQuestions(), a.getExtraQuestions()));
+        return list;
+    }
+
+    /**
+     * Collects every leaf and its path, left to right
+     */
+    private static void leaves(DecisionTree tree, List<DecisionTree> leaves, List<TreePath> paths) {
+        ArrayDeque<DecisionTree> nodes = new ArrayDeque<>();
+        ArrayDeque<TreePath> nodePaths = new ArrayDeque<>();
+        nodes.push(tree);
+        nodePaths.push(TreePath.ROOT);
+        while (!nodes.isEmpty()) {
+            DecisionTree node = nodes.pop();
+            TreePath path = nodePaths.pop();
+            if (node.isLeaf()) {
+                leaves.add(node);
+                paths.add(path);
+            }
+            if (node.getRight() != null) {
+                nodes.push(node.getRight());
+                nodePaths.push(path.child(false));
+            }
+            if (node.getLeft() != null) {
+                nodes.push(node.getLeft());
+                nodePaths.push(path.child(true));
+            }
+        }
+    }
+
+    /**
+     * Gets each leaf's depth in a Huffman tree over the leaves' weights
+     * Merged subtrees are numbered after the leaves, so every parent has a
+     * larger number than its children and depths can be set in one backward pass
+     */
+    private static int[] huffmanDepths(List<DecisionTree> leaves) {
+        int count = leaves.size();
+        long[] weights = new long[Math.max(1, 2 * count - 1)];
+        int[] parents = new int[weights.length];
+        PriorityQueue<Integer> queue = new PriorityQueue<>((a, b) -> (weights[a] != weights[b])
+            ? Long.compare(weights[a], weights[b]) : Integer.compare(a, b));
+        for (int i = 0; i < count; i++) {
+            weights[i] = leaves.get(i).getVisits() + 1;
+            queue.add(i);
+        }
+        int next = count;
+        while (queue.size() > 1) {
+            int first = queue.poll();
+            int second = queue.poll();
+            weights[next] = weights[first] + weights[second];
+            parents[first] = next;
+            parents[second] = next;
+            queue.add(next++);
+        }
+
+        int[] depths = new int[next];
+        for (int i = next - 2; i >= 0; i--) {
+            depths[i] = depths[parents[i]] + 1;
+        }
+        return Arrays.copyOf(depths, count);
+    }
+
+    /**
+     * Saves the visit count of every visited node as "count path" lines
+     * @param tree root of tree
+     * @param filename file to write to
+     * @throws IOException if file writing fails
+     */
+    public static void saveVisits(DecisionTree tree, String filename) throws IOException {
+        Path target = Paths.get(filename);
+        Path temp = TreeFileWriter.temporaryFileFor(target);
+        try (BufferedWriter out = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+            ArrayDeque<DecisionTree> nodes = new ArrayDeque<>();
+            ArrayDeque<TreePath> paths = new ArrayDeque<>();
+            nodes.add(tree);
+            paths.add(TreePath.ROOT);
+            while (!nodes.isEmpty()) {
+                DecisionTree node = nodes.poll();
+                TreePath path = paths.poll();
+                if (node.getVisits() == 0) {
+                    continue; //no game has reached this node or anything below it
+                }
+                out.write(Long.toString(node.getVisits()));
+                out.write(' ');
+                path.appendTo(out);
+                out.newLine();
+                if (node.getLeft() != null) {
+                    nodes.add(node.getLeft());
+                    paths.add(path.child(true));
+                }
+                if (node.getRight() != null) {
+                    nodes.add(node.getRight());
+                    paths.add(path.child(false));
+                }
+            }
+        }
+        TreeFileWriter.moveIntoPlace(temp, target);
+    }
+
+    /**
+     * Loads visit counts saved by saveVisits, skipping paths the tree no longer has
+     * @param tree root of tree to update
+     * @param filename file to read from
+     * @throws IOException if file reading fails or format is invalid
+     */
+    public static void loadVisits(DecisionTree tree, String filename) throws IOException {
+        try (BufferedReader in = Files.newBufferedReader(Paths.get(filename), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                int space = line.indexOf(' ');
+                if (space == -1) {
+                    throw new IOException("Invalid visit count line: " + line);
+                }
+                try {
+                    long visits = Long.parseLong(line.substring(0, space));
+                    tree.followPath(TreePath.parse(line, space + 1, line.length())).setVisits(visits);
+                } catch (NumberFormatException e) {
+                    throw new IOException("Invalid visit count line: " + line);
+                } catch (IllegalArgumentException e) {
+                    //path no longer in tree
+                }
+            }
+        }
+    }
+
+    /**
+     * Reports expected questions per game against the Huffman bound, and the
+     * animals costing the most extra questions
+     * Usage: java TreeOptimizer input [count]
+     * Visit counts are read from input.visits
+     * @param args command line arguments
+     */
+    public static void main(String[] args) {
+        if (args.length < 1 || args.length > 2) {
+            System.out.println("Usage: java TreeOptimizer input [count]");
+            return;
+        }
+
+        try {
+            int limit = (args.length == 2) ? Integer.parseInt(args[1]) : 20;
+            DecisionTree tree = BinaryKnowledgeBase.isBinaryFile(args[0])
+                ? BinaryKnowledgeBase.read(args[0]) : DecisionTree.readFile(args[0]);
+            if (Files.exists(Paths.get(args[0] + ".visits"))) {
+                loadVisits(tree, args[0] + ".visits");
+            }
+
+            System.out.printf("Expected questions per game:   %.3f%n", expectedQuestions(tree));
+            System.out.printf("Fewest possible (Huffman):     %.3f%n", optimalExpectedQuestions(tree));
+            List<Suggestion> suggestions = suggestions(tree, limit);
+            if (!suggestions.isEmpty()) {
+                System.out.println("Animals asked the most extra questions; questions closer to the root separating them would help:");
+                for (Suggestion suggestion : suggestions) {
+                    System.out.println("  " + suggestion);
+                }
+            }
+        } catch (NumberFormatException e) {
+            System.out.println("Error in animal count: " + e.getMessage());
+        } catch (IOException e) {
+            System.out.println("Error in reading knowledge base: " + e.getMessage());
+        }
+    }
+}
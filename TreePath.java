@@ -0,0 +1,300 @@
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Immutable Y/N path from the root of a decision tree, packed one bit per step
+ * Step i is bit i, set for 'Y' (left) and clear for 'N' (right). Paths of up
+ * to 63 steps live in a single long; deeper paths spill into an array of
+ * words, so navigation and file I/O never need a String per path
+ * Paths order breadth-first: shorter first, then Y before N at the first difference
+ */
+public final class TreePath implements Comparable<TreePath> {
+    /** Longest path held in a single long */
+    private static final int INLINE_STEPS = 63;
+
+    /** Path of the root itself */
+    public static final TreePath ROOT = new TreePath(0, 0, null);
+
+    /** Number of steps */
+    private final int length;
+
+    /** Steps when length is at most INLINE_STEPS */
+    private final long bits;
+
+    /** Steps 64 at a time when the path is deeper, otherwise null */
+    private final long[] words;
+
+    private TreePath(int length, long bits, long[] words) {
+        this.length = length;
+        this.bits = bits;
+        this.words = words;
+    }
+
+    /**
+     * Parses a path of 'Y' and 'N' characters
+     * @param text path text, empty for the root
+     * @return parsed path
+     * @throws IllegalArgumentException if text has other characters
+     */
+    public static TreePath parse(CharSequence text) {
+        return parse(text, 0, text.length());
+    }
+
+    /**
+     * Parses the 'Y' and 'N' characters in part of a text, such as the start of a file line
+     * @param text text holding the path
+     * @param start index of first step
+     * @param end index after last step
+     * @return parsed path
+     * @throws IllegalArgumentException if the range has other characters
+     */
+    public static TreePath parse(CharSequence text, int start, int end) {
+        int length = end - start;
+        long bits = 0;
+        long[] words = (length > INLINE_STEPS) ? new long[(length + 63) >>> 6] : null;
+        for (int i = 0; i < length; i++) {
+            char direction = text.charAt(start + i);
+            if (direction == 'Y') {
+                if (words == null) {
+                    bits |= 1L << i;
+                } else {
+                    words[i >>> 6] |= 1L << i;
+                }
+            } else if (direction != 'N') {
+                throw new IllegalArgumentException("Path must only include 'Y' or 'N' characters.");
+            }
+        }
+        return new TreePath(length, bits, words);
+    }
+
+    /**
+     * Parses 'Y' and 'N' ASCII bytes, such as the start of a line in a mapped file
+     * @param bytes bytes holding the path
+     * @param start index of first step
+     * @param end index after last step
+     * @return parsed path
+     * @throws IllegalArgumentException if the range has other bytes
+     */
+    public static TreePath parse(byte[] bytes, int start, int end) {
+        int length = end - start;
+        long bits = 0;
+        long[] words = (length > INLINE_STEPS) ? new long[(length + 63) >>> 6] : null;
+        for (int i = 0; i < length; i++) {
+            byte direction = bytes[start + i];
+            if (direction == 'Y') {
+                if (words == null) {
+                    bits |= 1L << i;
+                } else {
+                    words[i >>> 6] |= 1L << i;
+                }
+            } else if (direction != 'N') {
+                throw new IllegalArgumentException("Path must only include 'Y' or 'N' characters.");
+            }
+        }
+        return new TreePath(length, bits, words);
+    }
+
+    /**
+     * Gets the number of steps
+     * @return path length, 0 for the root
+     */
+    public int length() {
+        return length;
+    }
+
+    /**
+     * Checks whether this is the root path
+     * @return true if there are no steps
+     */
+    public boolean isRoot() {
+        return length == 0;
+    }
+
+    /**
+     * Gets one step of the path
+     * @param index step number, from 0 at the root
+     * @return true for 'Y' (left), false for 'N' (right)
+     * @throws IndexOutOfBoundsException if index isn't a step of this path
+     */
+    public boolean isYes(int index) {
+        if (index < 0 || index >= length) {
+            throw new IndexOutOfBoundsException("No step " + index + " in path of length " + length);
+        }
+        return step(index);
+    }
+
+    /** Reads a step without checking the index */
+    private boolean step(int index) {
+        return (words == null) ? (bits & (1L << index)) != 0 : (words[index >>> 6] & (1L << index)) != 0;
+    }
+
+    /**
+     * Gets the path one step further down
+     * @param yes true for the 'Y' (left) child, false for 'N' (right)
+     * @return child path
+     */
+    public TreePath child(boolean yes) {
+        if (length < INLINE_STEPS) {
+            return new TreePath(length + 1, yes ? bits | (1L << length) : bits, null);
+        }
+        long[] grown;
+        if (words == null) {
+            grown = new long[] {bits};
+        } else if ((length >>> 6) >= words.length) {
+            grown = Arrays.copyOf(words, words.length + 1);
+        } else {
+            grown = words.clone();
+        }
+        if (yes) {
+            grown[length >>> 6] |= 1L << length;
+        }
+        return new TreePath(length + 1, 0, grown);
+    }
+
+    /**
+     * Gets the path one step up
+     * @return parent path
+     * @throws IllegalStateException if this is the root
+     */
+    public TreePath parent() {
+        if (length == 0) {
+            throw new IllegalStateException("Root path has no parent");
+        }
+        return prefix(length - 1);
+    }
+
+    /**
+     * Gets the first steps of this path
+     * @param prefixLength number of steps to keep
+     * @return path to the ancestor at that depth
+     * @throws IndexOutOfBoundsException if prefixLength is negative or longer than this path
+     */
+    public TreePath prefix(int prefixLength) {
+        if (prefixLength < 0 || prefixLength > length) {
+            throw new IndexOutOfBoundsException("Prefix length " + prefixLength + " of path of length " + length);
+        }
+        if (prefixLength == length) {
+            return this;
+        }
+        if (prefixLength <= INLINE_STEPS) {
+            long low = (words == null) ? bits : words[0];
+            return new TreePath(prefixLength, low & mask(prefixLength), null);
+        }
+        long[] kept = Arrays.copyOf(words, (prefixLength + 63) >>> 6);
+        if ((prefixLength & 63) != 0) {
+            kept[kept.length - 1] &= mask(prefixLength & 63);
+        }
+        return new TreePath(prefixLength, 0, kept);
+    }
+
+    /**
+     * Checks whether this path leads to an ancestor of, or the same node as, another path
+     * @param other path to compare with
+     * @return true if other starts with every step of this path
+     */
+    public boolean isPrefixOf(TreePath other) {
+        if (length > other.length) {
+            return false;
+        }
+        if (length <= INLINE_STEPS) {
+            long otherLow = (other.words == null) ? other.bits : other.words[0];
+            return ((otherLow ^ bits) & mask(length)) == 0;
+        }
+        int fullWords = length >>> 6;
+        for (int i = 0; i < fullWords; i++) {
+            if (words[i] != other.words[i]) {
+                return false;
+            }
+        }
+        int rest = length & 63;
+        return rest == 0 || ((words[fullWords] ^ other.words[fullWords]) & mask(rest)) == 0;
+    }
+
+    /**
+     * Checks whether part of a text spells this path, without parsing it
+     * @param text text holding a Y/N path
+     * @param start index of the first step in text
+     * @return true if the length() characters from start match this path
+     */
+    public boolean matches(CharSequence text, int start) {
+        if (start + length > text.length()) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (text.charAt(start + i) != (step(i) ? 'Y' : 'N')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Writes the path as 'Y' and 'N' ASCII bytes
+     * @param buffer destination, at least length() bytes long
+     */
+    public void copyTo(byte[] buffer) {
+        for (int i = 0; i < length; i++) {
+            buffer[i] = (byte)(step(i) ? 'Y' : 'N');
+        }
+    }
+
+    /**
+     * Appends the path as 'Y' and 'N' characters
+     * @param out destination
+     * @throws IOException if appending fails
+     */
+    public void appendTo(Appendable out) throws IOException {
+        for (int i = 0; i < length; i++) {
+            out.append(step(i) ? 'Y' : 'N');
+        }
+    }
+
+    /** Mask of the lowest steps bits */
+    private static long mask(int steps) {
+        return (steps >= 64) ? -1L : (1L << steps) - 1;
+    }
+
+    /**
+     * Orders paths breadth-first: by length, then Y before N at the first different step
+     */
+    @Override
+    public int compareTo(TreePath other) {
+        if (length != other.length) {
+            return Integer.compare(length, other.length);
+        }
+        int wordCount = (length + 63) >>> 6;
+        for (int i = 0; i < wordCount; i++) {
+            long a = (words == null) ? bits : words[i];
+            long b = (other.words == null) ? other.bits : other.words[i];
+            long difference = a ^ b;
+            if (difference != 0) {
+                //lowest differing bit is the first differing step; the path with Y there comes first
+                return ((a & Long.lowestOneBit(difference)) != 0) ? -1 : 1;
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof TreePath && compareTo((TreePath)other) == 0;
+    }
+
+    @Override
+    public int hashCode() {
+        return (words == null) ? Long.hashCode(bits) * 31 + length : Arrays.hashCode(words) * 31 + length;
+    }
+
+    /**
+     * Spells the path as 'Y' and 'N' characters
+     * @return path text, empty for the root
+     */
+    @Override
+    public String toString() {
+        StringBuilder text = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            text.append(step(i) ? 'Y' : 'N');
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,91 @@
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Publishes successive immutable versions of a decision tree
+ * Readers, serializers and backups take a Version and keep using it for as
+ * long as they like; learning builds the next version by path copying and
+ * swaps it in with a single compare-and-set
+ * Registered as a learning listener, it follows an engine's tree: splits
+ * arrive in publication order, so every version is a state the tree was in
+ */
+public class VersionedDecisionTree implements GameEngine.LearningListener {
+
+    /** One published root together with its version number */
+    public static final class Version {
+        private final long number;
+        private final PersistentDecisionTree root;
+
+        private Version(long number, PersistentDecisionTree root) {
+            this.number = number;
+            this.root = root;
+        }
+
+        /** Accessor for version number, starting at 0 and increasing by one per split */
+        public long getNumber() {
+            return number;
+        }
+
+        /** Accessor for root of this version */
+        public PersistentDecisionTree getRoot() {
+            return root;
+        }
+    }
+
+    /** Most recently published version */
+    private final AtomicReference<Version> current;
+
+    /**
+     * Starts version history from an immutable root
+     * @param root root of version 0
+     */
+    public VersionedDecisionTree(PersistentDecisionTree root) {
+        current = new AtomicReference<>(new Version(0, root));
+    }
+
+    /**
+     * Starts version history from a snapshot of a mutable tree
+     * @param tree tree to copy as version 0
+     */
+    public VersionedDecisionTree(DecisionTree tree) {
+        this(PersistentDecisionTree.fromTree(tree));
+    }
+
+    /**
+     * Gets the latest version without blocking
+     * @return current version
+     */
+    public Version current() {
+        return current.get();
+    }
+
+    /**
+     * Splits the leaf at a path in the latest version and publishes the result
+     * Retries against newer versions published meanwhile, as long as the
+     * path still ends at a leaf in them
+     * @param path packed path from the root to the leaf
+     * @param question question that distinguishes the two animals
+     * @param newAnimal animal to add
+     * @param newAnimalIsYes whether the answer to the question is yes for the new animal
+     * @return newly published version
+     * @throws IllegalArgumentException if the path leads to a null node
+     * @throws UnsupportedOperationException if another split already turned the leaf into a question
+     */
+    public Version learn(TreePath path, String question, String newAnimal, boolean newAnimalIsYes) {
+        while (true) {
+            Version base = current.get();
+            PersistentDecisionTree root = base.root.withSplit(path, question, newAnimal, newAnimalIsYes);
+            Version next = new Version(base.number + 1, root);
+            if (current.compareAndSet(base, next)) {
+                return next;
+            }
+        }
+    }
+
+    /**
+     * Publishes the next version for a split an engine learned
+     */
+    @Override
+    public void learned(TreePath path, String question, String animal, boolean animalIsYes) {
+        learn(path, question, animal, animalIsYes);
+    }
+}
@@ -0,0 +1,43 @@
+package animalguess.jmh;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Both copy constructors, the fork-join deep copy and conversion to the array-backed store
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class CopyBenchmark {
+
+    /** DecisionTree's copy constructor shares the children, so this times one node whatever the size */
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public Object decisionTreeCopy(TreeState trees) throws Throwable {
+        return (Object)Game.DECISION_TREE_COPY.invokeExact(trees.tree);
+    }
+
+    @Benchmark
+    public Object binaryTreeCopy(TreeState trees) throws Throwable {
+        return (Object)Game.BINARY_TREE_COPY.invokeExact(trees.tree);
+    }
+
+    @Benchmark
+    public Object parallelDeepCopy(TreeState trees) throws Throwable {
+        return (Object)Game.PARALLEL_COPY.invokeExact(trees.tree);
+    }
+
+    @Benchmark
+    public Object arrayFromTree(TreeState trees) throws Throwable {
+        return (Object)Game.ARRAY_FROM_TREE.invokeExact(trees.tree);
+    }
+}
@@ -0,0 +1,122 @@
+package animalguess.jmh;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Loading and saving the text knowledge file, and the binary and indexed
+ * formats, for the same generated trees
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class FileBenchmark {
+    /** Largest chain written to a text file; each line holds its whole path, so the file grows with nodes squared */
+    private static final int MAX_CHAIN_NODES = 20_000;
+
+    /**
+     * Tree and its files in every format
+     * CHAIN is left out of the default shapes because of its text file size;
+     * pass -p shape=CHAIN -p nodes=1000,10000 to measure it
+     */
+    @State(Scope.Benchmark)
+    public static class Files {
+        @Param({"BALANCED", "RANDOM"})
+        public String shape;
+
+        @Param({"1000", "10000", "100000", "1000000", "10000000"})
+        public int nodes;
+
+        /** Generated DecisionTree */
+        Object tree;
+
+        String textFile;
+        String binaryFile;
+        String indexedFile;
+
+        /** Target of the save benchmarks, so the files being read stay intact */
+        String scratchFile;
+
+        /**
+         * Generates the tree and writes it in every format
+         * @throws Throwable if generation or writing fails
+         */
+        @Setup(Level.Trial)
+        public void write() throws Throwable {
+            if (shape.equals("CHAIN") && nodes > MAX_CHAIN_NODES) {
+                throw new IllegalArgumentException("CHAIN text files grow with the square of the node count;"
+                    + " use at most " + MAX_CHAIN_NODES + " nodes");
+            }
+            tree = (Object)Game.GENERATE.invokeExact(Game.shape(shape), nodes, TreeState.SEED);
+            textFile = temporaryFile(".txt");
+            binaryFile = temporaryFile(".kb");
+            indexedFile = temporaryFile(".idx");
+            scratchFile = temporaryFile(".out");
+            Game.WRITE_TO_FILE.invokeExact(tree, (Object)textFile);
+            Object binaryStats = Game.BINARY_WRITE.invokeExact(tree, (Object)binaryFile);
+            Object indexedStats = Game.INDEXED_WRITE.invokeExact(tree, (Object)indexedFile);
+        }
+
+        /**
+         * Removes the files
+         */
+        @TearDown(Level.Trial)
+        public void delete() {
+            for (String file : new String[] {textFile, binaryFile, indexedFile, scratchFile}) {
+                new File(file).delete();
+            }
+        }
+
+        private static String temporaryFile(String suffix) throws java.io.IOException {
+            File file = File.createTempFile("benchmark", suffix);
+            file.deleteOnExit();
+            return file.getPath();
+        }
+    }
+
+    @Benchmark
+    public Object readFile(Files files) throws Throwable {
+        return (Object)Game.READ_FILE.invokeExact((Object)files.textFile);
+    }
+
+    @Benchmark
+    public void writeToFile(Files files) throws Throwable {
+        Game.WRITE_TO_FILE.invokeExact(files.tree, (Object)files.scratchFile);
+    }
+
+    @Benchmark
+    public Object parallelLoad(Files files) throws Throwable {
+        return (Object)Game.PARALLEL_LOAD.invokeExact((Object)files.textFile);
+    }
+
+    @Benchmark
+    public Object binaryRead(Files files) throws Throwable {
+        return (Object)Game.BINARY_READ.invokeExact((Object)files.binaryFile);
+    }
+
+    @Benchmark
+    public Object binaryWrite(Files files) throws Throwable {
+        return (Object)Game.BINARY_WRITE.invokeExact(files.tree, (Object)files.scratchFile);
+    }
+
+    @Benchmark
+    public int indexedOpenAndCount(Files files) throws Throwable {
+        Object tree = (Object)Game.LAZY_OPEN.invokeExact((Object)files.indexedFile);
+        return (int)Game.COUNT.invokeExact(tree);
+    }
+}
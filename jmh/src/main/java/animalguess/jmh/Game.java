@@ -0,0 +1,143 @@
+package animalguess.jmh;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+/**
+ * Handles on the game's classes for the benchmarks
+ * The game lives in the unnamed package, which code in a named package
+ * (as JMH requires of benchmarks) can't name. The handles are static finals,
+ * so the JIT treats them as constants and inlines through them like direct
+ * calls. Every handle takes and returns Object in place of game types
+ */
+final class Game {
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.publicLookup();
+
+    static final Class<?> BINARY_TREE = type("BinaryTree");
+    static final Class<?> DECISION_TREE = type("DecisionTree");
+    static final Class<?> ARRAY_TREE = type("ArrayDecisionTree");
+
+    /** SyntheticTrees.generate(Shape, int, long) */
+    static final MethodHandle GENERATE = staticMethod("SyntheticTrees", "generate", DECISION_TREE,
+        type("SyntheticTrees$Shape"), int.class, long.class);
+
+    /** SyntheticTrees.randomLeafPaths(DecisionTree, int, long) */
+    static final MethodHandle RANDOM_LEAF_PATHS = staticMethod("SyntheticTrees", "randomLeafPaths", String[].class,
+        DECISION_TREE, int.class, long.class);
+
+    /** DecisionTree.readFile(String) */
+    static final MethodHandle READ_FILE = staticMethod("DecisionTree", "readFile", DECISION_TREE, String.class);
+
+    /** DecisionTree.writeToFile(String) */
+    static final MethodHandle WRITE_TO_FILE = virtualMethod(DECISION_TREE, "writeToFile", void.class, String.class);
+
+    /** DecisionTree.followPath(String) */
+    static final MethodHandle FOLLOW_PATH = virtualMethod(DECISION_TREE, "followPath", DECISION_TREE, String.class);
+
+    /** new DecisionTree(DecisionTree) */
+    static final MethodHandle DECISION_TREE_COPY = constructor(DECISION_TREE, DECISION_TREE);
+
+    /** new BinaryTree(BinaryTree) */
+    static final MethodHandle BINARY_TREE_COPY = constructor(BINARY_TREE, BINARY_TREE);
+
+    /** BinaryTree.count() */
+    static final MethodHandle COUNT = virtualMethod(BINARY_TREE, "count", int.class);
+
+    /** BinaryTree.height() */
+    static final MethodHandle HEIGHT = virtualMethod(BINARY_TREE, "height", int.class);
+
+    /** BinaryTree.preorderString(BinaryTree) */
+    static final MethodHandle PREORDER_STRING = staticMethod("BinaryTree", "preorderString", String.class, BINARY_TREE);
+
+    /** BinaryTree.inorderString(BinaryTree) */
+    static final MethodHandle INORDER_STRING = staticMethod("BinaryTree", "inorderString", String.class, BINARY_TREE);
+
+    /** BinaryTree.postorderString(BinaryTree) */
+    static final MethodHandle POSTORDER_STRING = staticMethod("BinaryTree", "postorderString", String.class, BINARY_TREE);
+
+    /** ParallelTreeOps.count(BinaryTree) */
+    static final MethodHandle PARALLEL_COUNT = staticMethod("ParallelTreeOps", "count", int.class, BINARY_TREE);
+
+    /** ParallelTreeOps.height(BinaryTree) */
+    static final MethodHandle PARALLEL_HEIGHT = staticMethod("ParallelTreeOps", "height", int.class, BINARY_TREE);
+
+    /** ParallelTreeOps.deepCopy(DecisionTree) */
+    static final MethodHandle PARALLEL_COPY = staticMethod("ParallelTreeOps", "deepCopy", DECISION_TREE, DECISION_TREE);
+
+    /** ParallelTreeLoader.load(String) */
+    static final MethodHandle PARALLEL_LOAD = staticMethod("ParallelTreeLoader", "load", DECISION_TREE, String.class);
+
+    /** BinaryKnowledgeBase.read(String) */
+    static final MethodHandle BINARY_READ = staticMethod("BinaryKnowledgeBase", "read", DECISION_TREE, String.class);
+
+    /** BinaryKnowledgeBase.write(DecisionTree, String) */
+    static final MethodHandle BINARY_WRITE = staticMethod("BinaryKnowledgeBase", "write",
+        type("TreeFileWriter$WriteStats"), DECISION_TREE, String.class);
+
+    /** IndexedTreeFile.write(DecisionTree, String) */
+    static final MethodHandle INDEXED_WRITE = staticMethod("IndexedTreeFile", "write",
+        type("TreeFileWriter$WriteStats"), DECISION_TREE, String.class);
+
+    /** LazyDecisionTree.open(String) */
+    static final MethodHandle LAZY_OPEN = staticMethod("LazyDecisionTree", "open", type("LazyDecisionTree"), String.class);
+
+    /** ArrayDecisionTree.fromTree(DecisionTree) */
+    static final MethodHandle ARRAY_FROM_TREE = staticMethod("ArrayDecisionTree", "fromTree", ARRAY_TREE, DECISION_TREE);
+
+    /** ArrayDecisionTree.followPath(String) */
+    static final MethodHandle ARRAY_FOLLOW_PATH = virtualMethod(ARRAY_TREE, "followPath", int.class, String.class);
+
+    /** ArrayDecisionTree.height() */
+    static final MethodHandle ARRAY_HEIGHT = virtualMethod(ARRAY_TREE, "height", int.class);
+
+    private Game() {
+    }
+
+    /**
+     * Gets a SyntheticTrees.Shape constant
+     * @param name constant name
+     * @return shape
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    static Object shape(String name) {
+        return Enum.valueOf((Class)type("SyntheticTrees$Shape"), name);
+    }
+
+    private static Class<?> type(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("Game class not found; was the game jar installed? " + name, e);
+        }
+    }
+
+    private static MethodHandle staticMethod(String owner, String name, Class<?> returnType, Class<?>... parameters) {
+        try {
+            return erase(LOOKUP.findStatic(type(owner), name, MethodType.methodType(returnType, parameters)));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Game method not found: " + owner + "." + name, e);
+        }
+    }
+
+    private static MethodHandle virtualMethod(Class<?> owner, String name, Class<?> returnType, Class<?>... parameters) {
+        try {
+            return erase(LOOKUP.findVirtual(owner, name, MethodType.methodType(returnType, parameters)));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Game method not found: " + owner.getName() + "." + name, e);
+        }
+    }
+
+    private static MethodHandle constructor(Class<?> owner, Class<?>... parameters) {
+        try {
+            return erase(LOOKUP.findConstructor(owner, MethodType.methodType(void.class, parameters)));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Game constructor not found: " + owner.getName(), e);
+        }
+    }
+
+    /** Widens every reference type in a handle's type to Object */
+    private static MethodHandle erase(MethodHandle handle) {
+        return handle.asType(handle.type().erase());
+    }
+}
@@ -0,0 +1,101 @@
+package animalguess.jmh;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Path following, count, height and string traversals, on linked nodes and
+ * on the array-backed store built from the same tree
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class TraversalBenchmark {
+
+    /** Array-backed copy of the tree */
+    @State(Scope.Benchmark)
+    public static class ArrayState {
+        /** ArrayDecisionTree built from the TreeState tree */
+        Object array;
+
+        /**
+         * Builds the array store
+         * @param trees generated tree
+         * @throws Throwable if building fails
+         */
+        @Setup(Level.Trial)
+        public void build(TreeState trees) throws Throwable {
+            array = (Object)Game.ARRAY_FROM_TREE.invokeExact(trees.tree);
+        }
+    }
+
+    @Benchmark
+    public Object followPath(TreeState trees) throws Throwable {
+        return (Object)Game.FOLLOW_PATH.invokeExact(trees.tree, (Object)trees.nextPath());
+    }
+
+    @Benchmark
+    public int arrayFollowPath(TreeState trees, ArrayState arrays) throws Throwable {
+        return (int)Game.ARRAY_FOLLOW_PATH.invokeExact(arrays.array, (Object)trees.nextPath());
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public int count(TreeState trees) throws Throwable {
+        return (int)Game.COUNT.invokeExact(trees.tree);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public int height(TreeState trees) throws Throwable {
+        return (int)Game.HEIGHT.invokeExact(trees.tree);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public int arrayHeight(ArrayState arrays) throws Throwable {
+        return (int)Game.ARRAY_HEIGHT.invokeExact(arrays.array);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public int parallelCount(TreeState trees) throws Throwable {
+        return (int)Game.PARALLEL_COUNT.invokeExact(trees.tree);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public int parallelHeight(TreeState trees) throws Throwable {
+        return (int)Game.PARALLEL_HEIGHT.invokeExact(trees.tree);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public Object preorderString(TreeState trees) throws Throwable {
+        return (Object)Game.PREORDER_STRING.invokeExact(trees.tree);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public Object inorderString(TreeState trees) throws Throwable {
+        return (Object)Game.INORDER_STRING.invokeExact(trees.tree);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public Object postorderString(TreeState trees) throws Throwable {
+        return (Object)Game.POSTORDER_STRING.invokeExact(trees.tree);
+    }
+}
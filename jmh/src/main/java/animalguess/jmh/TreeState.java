@@ -0,0 +1,64 @@
+package animalguess.jmh;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Seeded synthetic tree shared by the in-memory benchmarks
+ * Every storage engine is measured on the same trees: the same shape, size
+ * and seed always generate the same tree
+ */
+@State(Scope.Benchmark)
+public class TreeState {
+    /** Seed for trees and paths */
+    static final long SEED = 210;
+
+    /** Most leaf paths kept for followPath */
+    private static final int MAX_PATHS = 1024;
+
+    /** Most path steps kept in total, so chains millions deep fit in memory */
+    private static final int MAX_PATH_STEPS = 1 << 26;
+
+    /** SyntheticTrees.Shape to generate */
+    @Param({"BALANCED", "RANDOM", "CHAIN"})
+    public String shape;
+
+    /** Node count, 10^3 to 10^7 */
+    @Param({"1000", "10000", "100000", "1000000", "10000000"})
+    public int nodes;
+
+    /** Generated DecisionTree */
+    Object tree;
+
+    /** Y/N paths to random leaves */
+    String[] paths;
+
+    /** Index of the next path followPath walks */
+    private int nextPath;
+
+    /**
+     * Generates the tree and the leaf paths
+     * @throws Throwable if generation fails
+     */
+    @Setup(Level.Trial)
+    public void generate() throws Throwable {
+        tree = (Object)Game.GENERATE.invokeExact(Game.shape(shape), nodes, SEED);
+        int height = (int)Game.HEIGHT.invokeExact(tree);
+        int count = Math.max(1, Math.min(MAX_PATHS, MAX_PATH_STEPS / height));
+        Object generated = Game.RANDOM_LEAF_PATHS.invokeExact(tree, count, SEED);
+        paths = (String[])generated;
+    }
+
+    /**
+     * Gets the next leaf path, cycling through them
+     * @return Y/N path
+     */
+    String nextPath() {
+        String path = paths[nextPath];
+        nextPath = (nextPath + 1 == paths.length) ? 0 : nextPath + 1;
+        return path;
+    }
+}